@@ -0,0 +1,225 @@
+package com.anandnatrajan.plastichash.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes requests on the client itself, so that clients can connect to
+ * backends directly, without a hop through the load balancer just to work
+ * out a server. The router holds only the read path of plastic hashing,
+ * and depends on nothing but the JDK, so it can be copied into any client
+ * on its own.
+ *
+ * The history comes from the owner of the plastic hash instance, which
+ * exports a snapshot of it to a file, or serves it on a loopback port.
+ * Only the history is exported, so the router agrees with the owner only
+ * as long as the owner neither pins ids nor rolls out changes gradually.
+ * The router pulls the snapshot now and then on a background thread, and
+ * switches over whenever the version goes up, or the owner has restarted,
+ * so that a stale copy of the file, or a slow endpoint, never takes it
+ * back to an older history. Until the first pull succeeds, it has nowhere
+ * to route to. If a pull fails, it carries on with the last snapshot it
+ * had.
+ *
+ * @author Anand Natrajan
+ */
+public class ClientRouter implements AutoCloseable
+{
+	/**
+	 * Somewhere to pull snapshots from.
+	 */
+	@FunctionalInterface
+	public interface Source
+	{
+		/**
+		 * Pull the latest snapshot.
+		 *
+		 * @return the snapshot.
+		 * @throws IOException if the snapshot can't be had.
+		 */
+		Snapshot pull() throws IOException;
+	}
+
+	private final Source source;
+	private volatile Snapshot snapshot;
+	private final AtomicLong failures = new AtomicLong();
+	private volatile boolean isClosed;
+	private Thread thread;
+
+	/**
+	 * @param source where to pull snapshots from.
+	 */
+	public ClientRouter(final Source source)
+	{
+		this.source = source;
+	}
+
+	/**
+	 * Get a source that reads snapshots from a file.
+	 *
+	 * @param file the file.
+	 * @return the source.
+	 */
+	public static Source fromFile(final Path file)
+	{
+		return () -> Snapshot.parse(new String(Files.readAllBytes(file),
+			StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Get a source that reads snapshots from an endpoint, which sends one
+	 * line and hangs up on every connection.
+	 *
+	 * @param address the address of the endpoint.
+	 * @return the source.
+	 */
+	public static Source fromEndpoint(final InetSocketAddress address)
+	{
+		return () -> {
+			try (Socket socket = new Socket())
+			{
+				socket.connect(address, 1000);
+				socket.setSoTimeout(1000);
+				final BufferedReader in = new BufferedReader
+					(new InputStreamReader(socket.getInputStream(),
+						StandardCharsets.US_ASCII));
+				final String line = in.readLine();
+				if (line == null)
+					throw new IOException("No snapshot from " + address);
+				return Snapshot.parse(line);
+			}
+		};
+	}
+
+	/**
+	 * Pull the latest snapshot now, and switch over to it if it supersedes
+	 * the one the router has.
+	 *
+	 * @return true if the router switched over.
+	 */
+	public boolean refresh()
+	{
+		final Snapshot latest;
+		try
+		{
+			latest = source.pull();
+		}
+		catch (IOException | RuntimeException e)
+		{
+			failures.incrementAndGet();
+			return false;
+		}
+		// Pulls can overlap, so only the decision is made under the lock.
+		synchronized (this)
+		{
+			if (!latest.supersedes(snapshot))
+				return false;
+			snapshot = latest;
+			return true;
+		}
+	}
+
+	/**
+	 * Pull snapshots on a background thread, every so often, starting
+	 * with one right away.
+	 *
+	 * @param interval the time between pulls.
+	 * @return the current instance, just so we can chain calls.
+	 */
+	public synchronized ClientRouter start(final Duration interval)
+	{
+		if (thread != null)
+			throw new IllegalStateException("Already started");
+		refresh();
+		thread = new Thread(() -> {
+			while (!isClosed)
+			{
+				try
+				{
+					Thread.sleep(interval.toMillis());
+				}
+				catch (InterruptedException ie)
+				{
+					return;
+				}
+				refresh();
+			}
+		}, "ClientRouter");
+		thread.setDaemon(true);
+		thread.start();
+		return this;
+	}
+
+	/**
+	 * Get the server allocation for one request, by the latest snapshot.
+	 *
+	 * @param id the id of the request.
+	 * @return the number of the server, zero-based, or -1 if there is no
+	 * snapshot yet.
+	 */
+	public int getServer(final long id)
+	{
+		final Snapshot snapshot = this.snapshot;
+		return (snapshot == null) ? -1 : snapshot.getServer(id);
+	}
+
+	/**
+	 * Get the latest snapshot.
+	 *
+	 * @return the snapshot, or null if there is none yet.
+	 */
+	public Snapshot getSnapshot()
+	{
+		return snapshot;
+	}
+
+	/**
+	 * Get the version of the latest snapshot.
+	 *
+	 * @return the version, or -1 if there is no snapshot yet.
+	 */
+	public long getVersion()
+	{
+		final Snapshot snapshot = this.snapshot;
+		return (snapshot == null) ? -1 : snapshot.getVersion();
+	}
+
+	/**
+	 * Get the count of pulls that failed.
+	 *
+	 * @return the number of failures.
+	 */
+	public long getFailures()
+	{
+		return failures.get();
+	}
+
+	/**
+	 * Stop pulling snapshots. The router still routes by the last one.
+	 */
+	public synchronized void close()
+	{
+		isClosed = true;
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	/**
+	  * Human-friendly string representation.
+	  *
+	  * @return string version of this instance.
+	  */
+	public String toString()
+	{
+		final Snapshot snapshot = this.snapshot;
+		return (snapshot == null) ? "No snapshot" : snapshot.toString();
+	}
+}
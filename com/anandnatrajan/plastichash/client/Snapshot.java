@@ -0,0 +1,174 @@
+package com.anandnatrajan.plastichash.client;
+
+import java.util.Arrays;
+
+/**
+ * One version of a configuration history, as exported by the owner of a
+ * plastic hash instance and pulled by client routers. On the wire, and on
+ * disk, a snapshot is one line of text: a tag, the incarnation of the
+ * owner, the version, and the server count of each epoch, oldest first,
+ * all separated by spaces, e.g., "plastichash 7150 42 10 12 11".
+ *
+ * Versions only go up for as long as the owner is up. An owner that
+ * restarts starts counting versions over, so every start gets a new
+ * incarnation, and versions are only comparable within one incarnation.
+ *
+ * @author Anand Natrajan
+ */
+public final class Snapshot
+{
+	// Marks a line as a snapshot, and its format.
+	static final String TAG = "plastichash";
+
+	private final long incarnation;
+	private final long version;
+	private final int[] N;
+
+	/**
+	 * @param incarnation the incarnation of the owner of the history.
+	 * @param version the version of the history.
+	 * @param N the server counts, oldest first, not empty.
+	 * @throws IllegalArgumentException if the history is empty.
+	 */
+	public Snapshot(final long incarnation, final long version,
+		final int[] N)
+	{
+		if (N.length == 0 || N[0] <= 0)
+			throw new IllegalArgumentException("Empty history");
+		this.incarnation = incarnation;
+		this.version = version;
+		this.N = N.clone();
+	}
+
+	/**
+	 * Read a snapshot from its text form.
+	 *
+	 * @param line the text.
+	 * @return the snapshot.
+	 * @throws IllegalArgumentException if the text isn't a snapshot.
+	 */
+	public static Snapshot parse(final String line)
+	{
+		final String[] fields = line.trim().split(" +");
+		if (fields.length < 4 || !TAG.equals(fields[0]))
+			throw new IllegalArgumentException("Not a snapshot: " + line);
+		final int[] N = new int[fields.length - 3];
+		for (int i = 0; i < N.length; i++)
+			N[i] = Integer.parseInt(fields[i + 3]);
+		return new Snapshot(Long.parseLong(fields[1]),
+			Long.parseLong(fields[2]), N);
+	}
+
+	/**
+	 * Get the incarnation of the owner of the history.
+	 *
+	 * @return the incarnation.
+	 */
+	public long getIncarnation()
+	{
+		return incarnation;
+	}
+
+	/**
+	 * Tell whether this snapshot supersedes another one, i.e., whether it
+	 * comes from another incarnation of the owner, or is a later version of
+	 * the same incarnation.
+	 *
+	 * @param other the other snapshot, or null if there is none.
+	 * @return true if this snapshot should be used instead.
+	 */
+	public boolean supersedes(final Snapshot other)
+	{
+		return other == null || incarnation != other.incarnation
+			|| version > other.version;
+	}
+
+	/**
+	 * Get the version of the history.
+	 *
+	 * @return the version.
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * Get the server count of the last epoch.
+	 *
+	 * @return the number of servers.
+	 */
+	public int getLastEpoch()
+	{
+		return N[N.length - 1];
+	}
+
+	/**
+	 * Get the server allocation for one request, exactly as the history
+	 * would work it out. Pins and rollouts are not part of a snapshot, so
+	 * this agrees with the owner only as long as the owner uses neither.
+	 *
+	 * @param id the id of the request.
+	 * @return the number of the server, zero-based.
+	 */
+	public int getServer(final long id)
+	{
+		int No = N[0];
+		int So = (int) (id % No);
+		for (int i = 1; i < N.length; i++)
+		{
+			final int Nn = N[i];
+			// Zeros mark the end of the history that matters.
+			if (Nn <= 0)
+				break;
+			final int Sn = (int) (id % Nn);
+			if ((Nn > No && Sn >= No) || (Nn < No && So >= Nn))
+			{
+				No = Nn;
+				So = Sn;
+			}
+		}
+		return (So < N[N.length - 1] ? So : 0);
+	}
+
+	/**
+	 * Get the text form of the snapshot, without a line break.
+	 *
+	 * @return the text.
+	 */
+	public String format()
+	{
+		final StringBuilder sb = new StringBuilder(TAG).append(' ')
+			.append(incarnation).append(' ').append(version);
+		for (int n : N)
+			sb.append(' ').append(n);
+		return sb.toString();
+	}
+
+	public boolean equals(final Object o)
+	{
+		if (this == o)
+			return true;
+		if (!(o instanceof Snapshot))
+			return false;
+		final Snapshot other = (Snapshot) o;
+		return incarnation == other.incarnation && version == other.version
+			&& Arrays.equals(N, other.N);
+	}
+
+	public int hashCode()
+	{
+		return (Long.hashCode(incarnation) * 31 + Long.hashCode(version)) * 31
+			+ Arrays.hashCode(N);
+	}
+
+	/**
+	  * Human-friendly string representation.
+	  *
+	  * @return string version of this instance.
+	  */
+	public String toString()
+	{
+		return format();
+	}
+}
@@ -0,0 +1,216 @@
+package com.anandnatrajan.plastichash.proxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A backend for trying out the proxy on loopback, which sends back
+ * whatever it receives, on a selector thread of its own. It counts the
+ * connections it gets, so that we can tell which clients went where.
+ *
+ * @author Anand Natrajan
+ */
+public class EchoServer implements AutoCloseable
+{
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final AtomicLong numConnections = new AtomicLong();
+	private final Thread thread;
+	private volatile boolean isClosed;
+
+	/**
+	 * @param port the port to listen on, or 0 for any free port.
+	 * @throws IOException if the port can't be listened on.
+	 */
+	public EchoServer(final int port) throws IOException
+	{
+		this.selector = Selector.open();
+		this.server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+			port));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		this.thread = new Thread(this::run, "EchoServer-" + getPort());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public EchoServer() throws IOException
+	{
+		this(0);
+	}
+
+	/**
+	 * Get the address the server listens on.
+	 *
+	 * @return the address.
+	 */
+	public InetSocketAddress getAddress()
+	{
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(),
+			getPort());
+	}
+
+	/**
+	 * Get the port the server listens on.
+	 *
+	 * @return the port.
+	 */
+	public int getPort()
+	{
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Get the count of connections accepted so far.
+	 *
+	 * @return the number of connections.
+	 */
+	public long getNumConnections()
+	{
+		return numConnections.get();
+	}
+
+	/**
+	 * Stop echoing, and close every connection.
+	 */
+	public void close()
+	{
+		isClosed = true;
+		selector.wakeup();
+		try
+		{
+			thread.join();
+			server.close();
+		}
+		catch (IOException ioe)
+		{
+			// Nothing more to do.
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run()
+	{
+		try
+		{
+			while (!isClosed)
+			{
+				selector.select();
+				final Iterator<SelectionKey> keys =
+					selector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					final SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept();
+					else
+						echo(key);
+				}
+			}
+		}
+		catch (IOException ioe)
+		{
+			// Can't go on, so close everything.
+		}
+		finally
+		{
+			for (SelectionKey key : selector.keys())
+			{
+				try
+				{
+					key.channel().close();
+				}
+				catch (IOException ioe)
+				{
+					// Nothing more to do.
+				}
+			}
+			try
+			{
+				selector.close();
+			}
+			catch (IOException ioe)
+			{
+				// Nothing more to do.
+			}
+		}
+	}
+
+	private void accept() throws IOException
+	{
+		final SocketChannel client = server.accept();
+		if (client == null)
+			return;
+		numConnections.incrementAndGet();
+		client.configureBlocking(false);
+		client.socket().setTcpNoDelay(true);
+		client.register(selector, SelectionKey.OP_READ, new Connection());
+	}
+
+	// Read while there's room, write back while there's something to write,
+	// and close once the client is done and everything has gone back.
+	private static void echo(final SelectionKey key)
+	{
+		final SocketChannel client = (SocketChannel) key.channel();
+		final Connection c = (Connection) key.attachment();
+		try
+		{
+			if (key.isReadable())
+				c.isDone = client.read(c.buffer) < 0;
+			c.buffer.flip();
+			client.write(c.buffer);
+			c.buffer.compact();
+			if (c.isDone && c.buffer.position() == 0)
+			{
+				client.close();
+				return;
+			}
+			final boolean canRead = !c.isDone && c.buffer.hasRemaining();
+			key.interestOps((canRead ? SelectionKey.OP_READ : 0)
+				| (c.buffer.position() > 0 ? SelectionKey.OP_WRITE : 0));
+		}
+		catch (IOException ioe)
+		{
+			try
+			{
+				client.close();
+			}
+			catch (IOException e)
+			{
+				// Nothing more to do.
+			}
+		}
+	}
+
+	// What is echoed back on one connection.
+	static final class Connection
+	{
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(16 * 1024);
+		boolean isDone;
+	}
+
+	/**
+	  * Human-friendly string representation.
+	  *
+	  * @return string version of this instance.
+	  */
+	public String toString()
+	{
+		return "Echo=" + getPort();
+	}
+}
@@ -0,0 +1,264 @@
+package com.anandnatrajan.plastichash.proxy;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.anandnatrajan.plastichash.utils.PlasticHashFactory;
+
+/**
+ * Drives a proxy with a number of clients, each on a thread and a
+ * connection of its own, sending a message and waiting for its echo, over
+ * and over. Each client sends its id as a header first, so that the proxy
+ * can keep it on one backend. Reports the throughput and the latency
+ * percentiles of the round trips.
+ *
+ * Run it on its own to measure a proxy and a fleet of echo backends on
+ * loopback, with the fleet growing halfway through.
+ *
+ * @author Anand Natrajan
+ */
+public class LoadGenerator
+{
+	private final InetSocketAddress target;
+	private final int numClients;
+	private final int messageSize;
+
+	/**
+	 * @param target the address of the proxy.
+	 * @param numClients the number of clients, whose ids are 0 onwards.
+	 * @param messageSize the size of each message, in bytes.
+	 */
+	public LoadGenerator(final InetSocketAddress target, final int numClients,
+		final int messageSize)
+	{
+		this.target = target;
+		this.numClients = numClients;
+		this.messageSize = messageSize;
+	}
+
+	/**
+	 * Send messages from all the clients for a while.
+	 *
+	 * @param duration how long to keep sending.
+	 * @return what was measured.
+	 * @throws IOException if a client fails to talk to the proxy, or the
+	 * run is interrupted.
+	 * @throws IllegalStateException if a client fails otherwise, with the
+	 * failure as the cause.
+	 */
+	public Result run(final Duration duration) throws IOException
+	{
+		final long deadline = System.nanoTime() + duration.toNanos();
+		final long[][] latencies = new long[numClients][];
+		final Exception[] failures = new Exception[numClients];
+		final List<Thread> threads = new ArrayList<>();
+		final long start = System.nanoTime();
+		for (int c = 0; c < numClients; c++)
+		{
+			final int client = c;
+			final Thread thread = new Thread(() -> {
+				try
+				{
+					latencies[client] = runClient(client, deadline);
+				}
+				catch (IOException | RuntimeException e)
+				{
+					failures[client] = e;
+				}
+			}, "LoadGenerator-" + c);
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads)
+		{
+			try
+			{
+				thread.join();
+			}
+			catch (InterruptedException ie)
+			{
+				// The clients may not be done, so there's nothing to report.
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted mid-run");
+			}
+		}
+		// A client that failed has no latencies, so report why instead.
+		for (int c = 0; c < numClients; c++)
+		{
+			if (failures[c] instanceof IOException)
+				throw (IOException) failures[c];
+			if (failures[c] != null)
+				throw new IllegalStateException("Client " + c + " failed",
+					failures[c]);
+		}
+		return new Result(latencies, System.nanoTime() - start);
+	}
+
+	// One client: a header, and then round trips until the deadline.
+	private long[] runClient(final int id, final long deadline)
+		throws IOException
+	{
+		try (SocketChannel channel = SocketChannel.open(target))
+		{
+			channel.socket().setTcpNoDelay(true);
+			final ByteBuffer header = ByteBuffer.allocate(Long.BYTES);
+			header.putLong(id).flip();
+			while (header.hasRemaining())
+				channel.write(header);
+			final ByteBuffer out = ByteBuffer.allocateDirect(messageSize);
+			final ByteBuffer in = ByteBuffer.allocateDirect(messageSize);
+			long[] latencies = new long[1024];
+			int n = 0;
+			while (System.nanoTime() < deadline)
+			{
+				final long t0 = System.nanoTime();
+				out.clear();
+				while (out.hasRemaining())
+					channel.write(out);
+				in.clear();
+				while (in.hasRemaining())
+				{
+					if (channel.read(in) < 0)
+						throw new IOException("Closed by the proxy");
+				}
+				if (n == latencies.length)
+					latencies = Arrays.copyOf(latencies, n * 2);
+				latencies[n++] = System.nanoTime() - t0;
+			}
+			return Arrays.copyOf(latencies, n);
+		}
+	}
+
+	/**
+	 * The round trips of a run, and how long it took.
+	 */
+	public static class Result
+	{
+		private final long[] latencies;
+		private final long elapsedNanos;
+
+		Result(final long[][] perClient, final long elapsedNanos)
+		{
+			int n = 0;
+			for (long[] l : perClient)
+				n += l.length;
+			this.latencies = new long[n];
+			n = 0;
+			for (long[] l : perClient)
+			{
+				System.arraycopy(l, 0, latencies, n, l.length);
+				n += l.length;
+			}
+			Arrays.sort(latencies);
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		/**
+		 * Get the count of round trips.
+		 *
+		 * @return the number of round trips.
+		 */
+		public int getNumRoundTrips()
+		{
+			return latencies.length;
+		}
+
+		/**
+		 * Get the round trips per second, over all the clients.
+		 *
+		 * @return the throughput.
+		 */
+		public double getThroughput()
+		{
+			return latencies.length * 1e9 / Math.max(1, elapsedNanos);
+		}
+
+		/**
+		 * Get a percentile of the round-trip latencies.
+		 *
+		 * @param p the percentile, between 0 and 100.
+		 * @return the latency, in nanoseconds, or 0 if there were none.
+		 */
+		public long getPercentile(final double p)
+		{
+			if (latencies.length == 0)
+				return 0;
+			final int i = (int) Math.ceil(p / 100 * latencies.length) - 1;
+			return latencies[Math.max(0, Math.min(latencies.length - 1, i))];
+		}
+
+		/**
+		  * Human-friendly string representation.
+		  *
+		  * @return string version of this instance.
+		  */
+		public String toString()
+		{
+			return String.format("%d round trips, %.0f/s, p50=%dus p99=%dus",
+				latencies.length, getThroughput(),
+				getPercentile(50) / 1000, getPercentile(99) / 1000);
+		}
+	}
+
+	/**
+	 * Measure a proxy in front of a fleet of echo backends, on loopback.
+	 *
+	 * @param args the number of backends, the number of clients, the size
+	 * of each message and the number of seconds to run, all optional.
+	 * @throws IOException if anything can't be set up.
+	 */
+	public static void main(String... args) throws IOException
+	{
+		final int numBackends = intArg(args, 0, 4);
+		final int numClients = intArg(args, 1, 64);
+		final int messageSize = intArg(args, 2, 512);
+		final int seconds = intArg(args, 3, 10);
+		final List<EchoServer> echoes = new ArrayList<>();
+		final List<InetSocketAddress> addresses = new ArrayList<>();
+		for (int i = 0; i < numBackends + 1; i++)
+		{
+			echoes.add(new EchoServer());
+			addresses.add(echoes.get(i).getAddress());
+		}
+		try (StickyProxy proxy = new StickyProxy(0,
+			new PlasticHashFactory().createInstance(),
+			StickyProxy.IdSource.HEADER, 16 * 1024))
+		{
+			proxy.setBackends(addresses.subList(0, numBackends)).start();
+			final InetSocketAddress target =
+				new InetSocketAddress(InetAddress.getLoopbackAddress(),
+					proxy.getPort());
+			final LoadGenerator generator =
+				new LoadGenerator(target, numClients, messageSize);
+			final Duration half = Duration.ofSeconds(seconds).dividedBy(2);
+			System.out.println(numBackends + " backends: "
+				+ generator.run(half));
+			// New connections from here on see the bigger fleet.
+			proxy.setBackends(addresses);
+			System.out.println((numBackends + 1) + " backends: "
+				+ generator.run(half));
+			for (EchoServer echo : echoes)
+				System.out.println(echo + " connections="
+					+ echo.getNumConnections());
+		}
+		finally
+		{
+			for (EchoServer echo : echoes)
+				echo.close();
+		}
+	}
+
+	private static int intArg(final String[] args, final int i,
+		final int otherwise)
+	{
+		return (args.length > i) ? Integer.parseInt(args[i]) : otherwise;
+	}
+}
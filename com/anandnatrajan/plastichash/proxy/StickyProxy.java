@@ -0,0 +1,399 @@
+package com.anandnatrajan.plastichash.proxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.anandnatrajan.plastichash.utils.PlasticHash;
+
+/**
+ * A small non-blocking TCP proxy that sends every client to a backend
+ * picked by a plastic hash, so that a client keeps going to the same
+ * backend across connections, and as few clients as possible are moved
+ * when backends come and go. One thread runs a selector over all the
+ * connections, and bytes are forwarded through direct buffers, without
+ * being copied onto the heap.
+ *
+ * The id of a client is either its address, without the port, or the
+ * first eight bytes it sends, read as a big-endian long. A header is
+ * consumed by the proxy, and never reaches the backend.
+ *
+ * @author Anand Natrajan
+ */
+public class StickyProxy implements AutoCloseable
+{
+	// How clients are identified.
+	public enum IdSource { ADDRESS, HEADER }
+
+	static final int HEADER_SIZE = Long.BYTES;
+
+	private final PlasticHash ph;
+	private final IdSource idSource;
+	private final int bufferSize;
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private volatile List<InetSocketAddress> backends = new ArrayList<>();
+	private final AtomicLong numConnections = new AtomicLong();
+	private Thread thread;
+	private volatile boolean isClosed;
+
+	/**
+	 * @param port the port to listen on, or 0 for any free port.
+	 * @param ph the plastic hash instance for picking backends. Its
+	 * configuration history is managed by this proxy from here on.
+	 * @param idSource how clients are identified.
+	 * @param bufferSize the size of the buffer in each direction of each
+	 * connection.
+	 * @throws IOException if the port can't be listened on.
+	 */
+	public StickyProxy(final int port, final PlasticHash ph,
+		final IdSource idSource, final int bufferSize) throws IOException
+	{
+		this.ph = ph;
+		this.idSource = idSource;
+		this.bufferSize = Math.max(HEADER_SIZE, bufferSize);
+		this.selector = Selector.open();
+		this.server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+			port));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Change the fleet of backends. This is the admin hook: the new fleet
+	 * size becomes a new epoch in the configuration history. Backends are
+	 * added and removed at the end of the list, as with any plastic hash.
+	 *
+	 * @param backends the new fleet.
+	 * @return the current instance, just so we can chain calls.
+	 */
+	public synchronized StickyProxy setBackends
+		(final List<InetSocketAddress> backends)
+	{
+		final List<InetSocketAddress> newBackends = new ArrayList<>(backends);
+		// A new backend has to be there before anybody is sent to it, and
+		// nobody must be sent to a backend by the time it goes.
+		if (newBackends.size() >= this.backends.size())
+		{
+			this.backends = newBackends;
+			ph.addEpoch(newBackends.size());
+		}
+		else
+		{
+			ph.addEpoch(newBackends.size());
+			this.backends = newBackends;
+		}
+		return this;
+	}
+
+	/**
+	 * Get the backend for a client id.
+	 *
+	 * @param id the id of the client.
+	 * @return the address of the backend.
+	 */
+	public InetSocketAddress getBackend(final long id)
+	{
+		final List<InetSocketAddress> backends = this.backends;
+		final int server = ph.getServer(id & Long.MAX_VALUE);
+		return backends.get(server < backends.size() ? server : 0);
+	}
+
+	/**
+	 * Get the port the proxy listens on.
+	 *
+	 * @return the port.
+	 */
+	public int getPort()
+	{
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Get the count of client connections accepted so far.
+	 *
+	 * @return the number of connections.
+	 */
+	public long getNumConnections()
+	{
+		return numConnections.get();
+	}
+
+	/**
+	 * Start forwarding, on a thread of its own.
+	 *
+	 * @return the current instance, just so we can chain calls.
+	 */
+	public synchronized StickyProxy start()
+	{
+		thread = new Thread(this::run, "StickyProxy-" + getPort());
+		thread.setDaemon(true);
+		thread.start();
+		return this;
+	}
+
+	/**
+	 * Stop forwarding, and close every connection.
+	 */
+	public void close()
+	{
+		final Thread thread;
+		synchronized (this)
+		{
+			isClosed = true;
+			thread = this.thread;
+		}
+		try
+		{
+			if (thread == null)
+				selector.close();
+			else
+			{
+				selector.wakeup();
+				thread.join();
+			}
+			server.close();
+		}
+		catch (IOException ioe)
+		{
+			// Nothing more to do.
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run()
+	{
+		try
+		{
+			while (!isClosed)
+			{
+				selector.select();
+				final Iterator<SelectionKey> keys =
+					selector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					final SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept();
+					else
+						((Session) key.attachment()).handle(key);
+				}
+			}
+		}
+		catch (IOException ioe)
+		{
+			// Can't go on, so close everything.
+		}
+		finally
+		{
+			for (SelectionKey key : selector.keys())
+			{
+				if (key.channel() != server)
+					closeQuietly(key.channel());
+			}
+			try
+			{
+				selector.close();
+			}
+			catch (IOException ioe)
+			{
+				// Nothing more to do.
+			}
+		}
+	}
+
+	// Accept one client. Whatever goes wrong with it, e.g., there being no
+	// backend to send it to, costs only its own session; only failing to
+	// accept at all stops the proxy.
+	private void accept() throws IOException
+	{
+		final SocketChannel client = server.accept();
+		if (client == null)
+			return;
+		numConnections.incrementAndGet();
+		final Session session = new Session(client);
+		try
+		{
+			client.configureBlocking(false);
+			client.socket().setTcpNoDelay(true);
+			session.clientKey = client.register(selector, 0, session);
+			if (idSource == IdSource.ADDRESS)
+				session.connect(addressId(client));
+			session.update();
+		}
+		catch (IOException | RuntimeException e)
+		{
+			session.close();
+		}
+	}
+
+	// Fold the address of a client, but not its port, into a long, so that
+	// a client keeps its id across connections.
+	private static long addressId(final SocketChannel client)
+		throws IOException
+	{
+		final byte[] bytes = ((InetSocketAddress) client.getRemoteAddress())
+			.getAddress().getAddress();
+		long id = 0;
+		for (int i = 0; i < bytes.length; i++)
+			id ^= (bytes[i] & 0xFFL) << (8 * (i % Long.BYTES));
+		return id;
+	}
+
+	private static void closeQuietly(final Channel channel)
+	{
+		try
+		{
+			channel.close();
+		}
+		catch (IOException ioe)
+		{
+			// Nothing more to do.
+		}
+	}
+
+	/**
+	 * One client connection and its backend connection, with a buffer in
+	 * each direction. Buffers are always left ready to be filled, and are
+	 * flipped just to be drained. A side stops being read while its buffer
+	 * is full, which pushes back on a sender that is faster than the
+	 * receiver.
+	 */
+	final class Session
+	{
+		final SocketChannel client;
+		SocketChannel backend;
+		SelectionKey clientKey;
+		SelectionKey backendKey;
+		final ByteBuffer up = ByteBuffer.allocateDirect(bufferSize);
+		final ByteBuffer down = ByteBuffer.allocateDirect(bufferSize);
+		boolean isConnected;
+		boolean clientDone;
+		boolean backendDone;
+
+		Session(final SocketChannel client)
+		{
+			this.client = client;
+		}
+
+		void connect(final long id) throws IOException
+		{
+			backend = SocketChannel.open();
+			backend.configureBlocking(false);
+			backend.socket().setTcpNoDelay(true);
+			backendKey = backend.register(selector, 0, this);
+			isConnected = backend.connect(getBackend(id));
+		}
+
+		void handle(final SelectionKey key)
+		{
+			try
+			{
+				if (key == backendKey && key.isConnectable())
+					isConnected = backend.finishConnect();
+				if (key.isReadable())
+				{
+					if (key == clientKey)
+						clientDone = client.read(up) < 0;
+					else
+						backendDone = backend.read(down) < 0;
+				}
+				if (backend == null && up.position() >= HEADER_SIZE)
+				{
+					up.flip();
+					final long id = up.getLong();
+					up.compact();
+					connect(id);
+				}
+				if (isConnected)
+				{
+					flush(up, backend);
+					flush(down, client);
+					if (clientDone && up.position() == 0)
+						backend.shutdownOutput();
+					if (backendDone && down.position() == 0)
+						client.shutdownOutput();
+				}
+				if ((clientDone && (backendDone || backend == null))
+					&& up.position() == 0 && down.position() == 0)
+					close();
+				else
+					update();
+			}
+			catch (IOException | RuntimeException e)
+			{
+				close();
+			}
+		}
+
+		// Read where there's room, write where there's something to write,
+		// and wait for the backend to connect before anything else.
+		void update()
+		{
+			int ops = 0;
+			if (!clientDone && up.hasRemaining())
+				ops |= SelectionKey.OP_READ;
+			if (isConnected && down.position() > 0)
+				ops |= SelectionKey.OP_WRITE;
+			clientKey.interestOps(ops);
+			if (backendKey == null)
+				return;
+			ops = 0;
+			if (!isConnected)
+				ops |= SelectionKey.OP_CONNECT;
+			else
+			{
+				if (!backendDone && down.hasRemaining())
+					ops |= SelectionKey.OP_READ;
+				if (up.position() > 0)
+					ops |= SelectionKey.OP_WRITE;
+			}
+			backendKey.interestOps(ops);
+		}
+
+		// Closing the channels cancels their keys, if they have any.
+		void close()
+		{
+			closeQuietly(client);
+			if (backend != null)
+				closeQuietly(backend);
+		}
+
+		private void flush(final ByteBuffer buffer, final SocketChannel to)
+			throws IOException
+		{
+			if (buffer.position() == 0)
+				return;
+			buffer.flip();
+			to.write(buffer);
+			buffer.compact();
+		}
+	}
+
+	/**
+	  * Human-friendly string representation.
+	  *
+	  * @return string version of this instance.
+	  */
+	public String toString()
+	{
+		return "Port=" + getPort() + " Backends=" + backends + " " + ph;
+	}
+}
@@ -0,0 +1,72 @@
+package com.anandnatrajan.plastichash.utils;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gives plastic hash instances a regular chance to act on deferred
+ * decisions of their when algorithms, by asking them to reconsider their
+ * configuration history every so often. Without this, a deferred
+ * compaction would have to wait for the next epoch to come along.
+ *
+ * @author Anand Natrajan
+ */
+public class CompactionScheduler implements AutoCloseable
+{
+	private final ScheduledExecutorService executor;
+	private final boolean ownExecutor;
+
+	/**
+	 * Create a scheduler that runs on an executor owned by the caller.
+	 *
+	 * @param executor the executor to schedule reconsiderations on.
+	 */
+	public CompactionScheduler(final ScheduledExecutorService executor)
+	{
+		this.executor = executor;
+		this.ownExecutor = false;
+	}
+
+	/**
+	 * Create a scheduler that runs on a daemon thread of its own.
+	 */
+	public CompactionScheduler()
+	{
+		this.executor = Executors.newSingleThreadScheduledExecutor(r ->
+		{
+			final Thread t = new Thread(r, "plastichash-compaction");
+			t.setDaemon(true);
+			return t;
+		});
+		this.ownExecutor = true;
+	}
+
+	/**
+	 * Ask an instance to reconsider its configuration history every so
+	 * often, until the returned future is cancelled or the scheduler is
+	 * closed.
+	 *
+	 * @param ph the plastic hash instance.
+	 * @param period how often to ask.
+	 * @return the future for the scheduled reconsiderations.
+	 */
+	public ScheduledFuture<?> schedule(final PlasticHash ph,
+		final Duration period)
+	{
+		final long millis = period.toMillis();
+		return executor.scheduleWithFixedDelay
+			(ph::reconsider, millis, millis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop the scheduler, if it owns its executor.
+	 */
+	public void close()
+	{
+		if (ownExecutor)
+			executor.shutdownNow();
+	}
+}
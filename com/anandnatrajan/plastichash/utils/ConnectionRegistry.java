@@ -0,0 +1,360 @@
+package com.anandnatrajan.plastichash.utils;
+
+import java.util.Arrays;
+
+/**
+ * Keeps track of the clients that are connected right now, and the server
+ * each one is connected to, so that a what algorithm can count exactly how
+ * many live connections a change to the history would move, rather than
+ * how much of the id space. Connections stay where they landed, so a
+ * client counts as moved whenever a history routes it anywhere else.
+ *
+ * The ids are kept in one primitive set per server, open-addressed, with
+ * nothing boxed. Removing an id looks first in the set of the server the
+ * current history routes it to, which is usually the right one. To weigh
+ * many histories against the same connections without holding up
+ * registrations, take a snapshot of the ids and count over that.
+ *
+ * @author Anand Natrajan
+ */
+public class ConnectionRegistry
+{
+	private final Router router;
+	private IdSet[] servers = new IdSet[0];
+	private int size;
+
+	/**
+	 * @param router where connections land when registered by id alone.
+	 */
+	public ConnectionRegistry(final Router router)
+	{
+		this.router = router;
+	}
+
+	/**
+	 * Register a connection on the server its id is routed to now.
+	 *
+	 * @param id the id of the client.
+	 * @return the server the connection is on.
+	 */
+	public int register(final long id)
+	{
+		final int server = route(id);
+		register(id, server);
+		return server;
+	}
+
+	/**
+	 * Register a connection on a server, e.g., one that connected before
+	 * the registry was created.
+	 *
+	 * @param id the id of the client.
+	 * @param server the server the client is connected to.
+	 * @return the current instance, just so we can chain calls.
+	 */
+	public synchronized ConnectionRegistry register(final long id,
+		final int server)
+	{
+		if (server < 0)
+			throw new IllegalArgumentException("No server for " + id);
+		if (server >= servers.length)
+		{
+			final int oldLength = servers.length;
+			servers = Arrays.copyOf(servers, server + 1);
+			for (int s = oldLength; s < servers.length; s++)
+				servers[s] = new IdSet();
+		}
+		// A client is only ever connected to one server.
+		final int old = find(id);
+		if (old == server)
+			return this;
+		if (old >= 0)
+			servers[old].remove(id);
+		else
+			size++;
+		servers[server].add(id);
+		return this;
+	}
+
+	/**
+	 * Unregister a connection, wherever it is.
+	 *
+	 * @param id the id of the client.
+	 * @return true if the client was connected.
+	 */
+	public synchronized boolean unregister(final long id)
+	{
+		final int server = find(id);
+		if (server < 0)
+			return false;
+		servers[server].remove(id);
+		size--;
+		return true;
+	}
+
+	/**
+	 * Get the server a client is connected to.
+	 *
+	 * @param id the id of the client.
+	 * @return the server, or -1 if the client is not connected.
+	 */
+	public synchronized int getServer(final long id)
+	{
+		return find(id);
+	}
+
+	/**
+	 * Get the count of live connections.
+	 *
+	 * @return the number of connections.
+	 */
+	public synchronized int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Get the count of live connections on one server.
+	 *
+	 * @param server the server.
+	 * @return the number of connections.
+	 */
+	public synchronized int size(final int server)
+	{
+		return (server < 0 || server >= servers.length) ? 0
+			: servers[server].size;
+	}
+
+	/**
+	 * Count the live connections a history would route to servers other
+	 * than the ones they are on.
+	 *
+	 * @param history the history.
+	 * @return the number of connections that would move.
+	 */
+	public int countMoved(final EpochHistory history)
+	{
+		return countMoved(history, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Count the live connections a history would route to servers other
+	 * than the ones they are on, giving up once the count goes past a
+	 * limit.
+	 *
+	 * @param history the history.
+	 * @param limit the most moves worth counting exactly.
+	 * @return the number of connections that would move, or some number
+	 * past the limit.
+	 */
+	public synchronized int countMoved(final EpochHistory history,
+		final int limit)
+	{
+		if (history.size() == 0)
+			return size;
+		int moved = 0;
+		for (int s = 0; s < servers.length; s++)
+		{
+			final IdSet set = servers[s];
+			if (set.hasZero && history.getServer(0) != s)
+				moved++;
+			for (long id : set.ids)
+			{
+				if (id != 0 && history.getServer(id) != s && ++moved > limit)
+					return moved;
+			}
+		}
+		return moved;
+	}
+
+	/**
+	 * Take a copy of the live connections, packed, so that histories can
+	 * be weighed against them with the registry unlocked.
+	 *
+	 * @return the connections.
+	 */
+	synchronized Connections snapshot()
+	{
+		final long[][] ids = new long[servers.length][];
+		for (int s = 0; s < servers.length; s++)
+		{
+			final IdSet set = servers[s];
+			final long[] packed = new long[set.size];
+			int i = 0;
+			if (set.hasZero)
+				packed[i++] = 0;
+			for (long id : set.ids)
+			{
+				if (id != 0)
+					packed[i++] = id;
+			}
+			ids[s] = packed;
+		}
+		return new Connections(ids, size);
+	}
+
+	/**
+	 * The live connections at one moment, server by server.
+	 */
+	static final class Connections
+	{
+		private final long[][] ids;
+		private final int size;
+
+		Connections(final long[][] ids, final int size)
+		{
+			this.ids = ids;
+			this.size = size;
+		}
+
+		int size()
+		{
+			return size;
+		}
+
+		// Count the connections a history would route elsewhere, giving up
+		// once the count goes past a limit.
+		int countMoved(final EpochHistory history, final int limit)
+		{
+			if (history.size() == 0)
+				return size;
+			int moved = 0;
+			for (int s = 0; s < ids.length; s++)
+			{
+				for (long id : ids[s])
+				{
+					if (history.getServer(id) != s && ++moved > limit)
+						return moved;
+				}
+			}
+			return moved;
+		}
+	}
+
+	// Route an id without it counting as a request, which would skew the
+	// request meter and hot id sketch of a plastic hash instance.
+	private int route(final long id)
+	{
+		return (router instanceof PlasticHash)
+			? ((PlasticHash) router).lookup(id) : router.getServer(id);
+	}
+
+	// Find the server a client is on, looking where it is routed now first.
+	private int find(final long id)
+	{
+		final int routed = route(id);
+		if (routed >= 0 && routed < servers.length
+			&& servers[routed].contains(id))
+			return routed;
+		for (int s = 0; s < servers.length; s++)
+		{
+			if (s != routed && servers[s].contains(id))
+				return s;
+		}
+		return -1;
+	}
+
+	/**
+	 * A set of ids, open-addressed, with zero marking an empty slot and
+	 * kept aside when it is an id itself.
+	 */
+	static final class IdSet
+	{
+		long[] ids = new long[8];
+		boolean hasZero;
+		int size;
+
+		boolean contains(final long id)
+		{
+			if (id == 0)
+				return hasZero;
+			final int mask = ids.length - 1;
+			for (int i = slot(id, mask); ids[i] != 0; i = (i + 1) & mask)
+			{
+				if (ids[i] == id)
+					return true;
+			}
+			return false;
+		}
+
+		void add(final long id)
+		{
+			if (id == 0)
+			{
+				hasZero = true;
+				size++;
+				return;
+			}
+			final int mask = ids.length - 1;
+			int i = slot(id, mask);
+			while (ids[i] != 0)
+				i = (i + 1) & mask;
+			ids[i] = id;
+			// Keep the table at most half full, so probes stay short.
+			if (++size * 2 > ids.length)
+				rehash(ids.length * 2);
+		}
+
+		void remove(final long id)
+		{
+			size--;
+			if (id == 0)
+			{
+				hasZero = false;
+				return;
+			}
+			final int mask = ids.length - 1;
+			int i = slot(id, mask);
+			while (ids[i] != id)
+				i = (i + 1) & mask;
+			// Shift later ids of the same run back into the hole, so that
+			// no probe ends early.
+			for (int j = (i + 1) & mask; ids[j] != 0; j = (j + 1) & mask)
+			{
+				final int home = slot(ids[j], mask);
+				if (((j - home) & mask) >= ((j - i) & mask))
+				{
+					ids[i] = ids[j];
+					i = j;
+				}
+			}
+			ids[i] = 0;
+			if (size * 8 < ids.length && ids.length > 8)
+				rehash(ids.length / 2);
+		}
+
+		private void rehash(final int capacity)
+		{
+			final long[] oldIds = ids;
+			ids = new long[capacity];
+			final int mask = capacity - 1;
+			for (long id : oldIds)
+			{
+				if (id == 0)
+					continue;
+				int j = slot(id, mask);
+				while (ids[j] != 0)
+					j = (j + 1) & mask;
+				ids[j] = id;
+			}
+		}
+
+		private static int slot(final long id, final int mask)
+		{
+			return (int) PlasticHash.mix(id) & mask;
+		}
+	}
+
+	/**
+	  * Human-friendly string representation.
+	  *
+	  * @return string version of this instance.
+	  */
+	public synchronized String toString()
+	{
+		final int[] counts = new int[servers.length];
+		for (int s = 0; s < servers.length; s++)
+			counts[s] = servers[s].size;
+		return "Connections=" + size + " " + Arrays.toString(counts);
+	}
+}
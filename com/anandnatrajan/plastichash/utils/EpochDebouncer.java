@@ -0,0 +1,199 @@
+package com.anandnatrajan.plastichash.utils;
+
+import java.time.Clock;
+import java.time.Duration;
+
+/**
+ * Stands in front of a plastic hash instance and holds back proposed
+ * server counts until they have settled, so that health checks that flap,
+ * e.g., from 20 to 19 and back to 20 within seconds, don't deepen the
+ * history and move clients twice for nothing. A proposal is committed as
+ * an epoch only once it has gone unchanged for a settle window; a
+ * proposal that returns to the committed count cancels whatever was held
+ * back. Shrinking because a server really is gone can't wait, so urgent
+ * shrinks are committed right away. Epochs may still be added to the
+ * instance directly; one that lands on the count held back cancels it.
+ *
+ * Nothing happens on its own: call tick every so often, say, once per
+ * settle window or more, to commit proposals that have settled. Every new
+ * proposal ticks too. Time is told by the clock of the plastic hash
+ * instance.
+ *
+ * @author Anand Natrajan
+ */
+public class EpochDebouncer
+{
+	private final PlasticHash ph;
+	private final Clock clock;
+	private final long settleMillis;
+	// The count held back, if any, and since when.
+	private int pending = -1;
+	private long since;
+	private long proposals;
+	private long commits;
+	private long suppressed;
+	private long cancelled;
+
+	/**
+	 * @param ph the plastic hash instance to commit epochs to.
+	 * @param settle how long a proposal must go unchanged to be committed.
+	 */
+	public EpochDebouncer(final PlasticHash ph, final Duration settle)
+	{
+		this.ph = ph;
+		this.clock = ph.getServerContext().getClock();
+		this.settleMillis = settle.toMillis();
+	}
+
+	/**
+	 * Propose a server count, to be committed once it settles.
+	 *
+	 * @param n the number of servers, at least one.
+	 * @return the current instance, just so we can chain calls.
+	 * @throws IllegalArgumentException if there are no servers.
+	 */
+	public synchronized EpochDebouncer propose(final int n)
+	{
+		check(n);
+		proposals++;
+		tick();
+		if (n == pending)
+			return this; // Still the same, so keep waiting.
+		if (pending >= 0)
+			suppressed++; // Never settled.
+		if (n == ph.getServerContext().getLastEpoch())
+		{
+			// Back where we were: nothing to do, once the blip is gone.
+			if (pending >= 0)
+				cancelled++;
+			pending = -1;
+			return this;
+		}
+		pending = n;
+		since = clock.millis();
+		return this;
+	}
+
+	/**
+	 * Propose a server count that can't wait, e.g., because a server is
+	 * gone for good. A shrink is committed right away, along with dropping
+	 * whatever was held back; anything else is proposed as usual.
+	 *
+	 * @param n the number of servers, at least one.
+	 * @return the current instance, just so we can chain calls.
+	 * @throws IllegalArgumentException if there are no servers.
+	 */
+	public synchronized EpochDebouncer urgent(final int n)
+	{
+		check(n);
+		final int current = ph.getServerContext().getLastEpoch();
+		if (current < 0 || n >= current)
+			return propose(n);
+		proposals++;
+		if (pending >= 0 && pending != n)
+			suppressed++;
+		pending = -1;
+		commit(n);
+		return this;
+	}
+
+	/**
+	 * Commit the proposal held back, if it has settled, unless the instance
+	 * has got there some other way in the meantime.
+	 *
+	 * @return true if an epoch was committed.
+	 */
+	public synchronized boolean tick()
+	{
+		if (pending >= 0 && pending == ph.getServerContext().getLastEpoch())
+		{
+			// Committed behind our back, so committing it again would only
+			// deepen the history.
+			pending = -1;
+			cancelled++;
+			return false;
+		}
+		if (pending < 0 || clock.millis() - since < settleMillis)
+			return false;
+		final int n = pending;
+		pending = -1;
+		commit(n);
+		return true;
+	}
+
+	private static void check(final int n)
+	{
+		if (n < 1)
+			throw new IllegalArgumentException("No servers: " + n);
+	}
+
+	private void commit(final int n)
+	{
+		ph.addEpoch(n);
+		commits++;
+	}
+
+	/**
+	 * Get the proposal held back.
+	 *
+	 * @return the number of servers, or -1 if nothing is held back.
+	 */
+	public synchronized int getPending()
+	{
+		return pending;
+	}
+
+	/**
+	 * Get the count of proposals, urgent or not.
+	 *
+	 * @return the number of proposals.
+	 */
+	public synchronized long getProposals()
+	{
+		return proposals;
+	}
+
+	/**
+	 * Get the count of epochs committed.
+	 *
+	 * @return the number of commits.
+	 */
+	public synchronized long getCommits()
+	{
+		return commits;
+	}
+
+	/**
+	 * Get the count of epochs held back and never committed, because
+	 * something else was proposed before they settled.
+	 *
+	 * @return the number of epochs suppressed.
+	 */
+	public synchronized long getSuppressed()
+	{
+		return suppressed;
+	}
+
+	/**
+	 * Get the count of times a blip ended back at the committed count,
+	 * which saved moving clients there and back, or a count held back was
+	 * committed directly instead.
+	 *
+	 * @return the number of round trips cancelled.
+	 */
+	public synchronized long getCancelled()
+	{
+		return cancelled;
+	}
+
+	/**
+	  * Human-friendly string representation.
+	  *
+	  * @return string version of this instance.
+	  */
+	public synchronized String toString()
+	{
+		return "Pending=" + pending + " Commits=" + commits
+			+ " Suppressed=" + suppressed + " Cancelled=" + cancelled;
+	}
+}
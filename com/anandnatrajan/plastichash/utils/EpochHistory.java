@@ -0,0 +1,235 @@
+package com.anandnatrajan.plastichash.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * An immutable snapshot of a configuration history. A server context
+ * replaces its snapshot wholesale on every change, rather than editing it
+ * in place, which means readers can hold on to one snapshot for as long as
+ * they like without locking, and identical histories can be shared between
+ * fleets.
+ *
+ * @author Anand Natrajan
+ */
+public final class EpochHistory
+{
+	// The history with no epochs in it at all.
+	static final EpochHistory EMPTY = new EpochHistory(new int[0]);
+
+	// Store the historical configuration as a plain array of server counts.
+	// Nobody outside this class gets to see the array itself.
+	private final int[] N;
+	private final int hash;
+
+	/**
+	 * Local constructor. The array is owned by the new instance from here
+	 * on, so callers must not hold on to it.
+	 *
+	 * @param N the server counts, oldest first.
+	 */
+	EpochHistory(final int[] N)
+	{
+		this.N = N;
+		this.hash = Arrays.hashCode(N);
+	}
+
+	/**
+	 * Create a snapshot from a list of server counts.
+	 *
+	 * @param list the server counts, oldest first.
+	 * @return the snapshot.
+	 */
+	static EpochHistory of(final List<Integer> list)
+	{
+		final int size = list.size();
+		if (size == 0)
+			return EMPTY;
+		final int[] newN = new int[size];
+		for (int i = 0; i < size; i++)
+			newN[i] = list.get(i);
+		return new EpochHistory(newN);
+	}
+
+	/**
+	 * Create a new snapshot with one more epoch at the end.
+	 *
+	 * @param n the number of servers in the new epoch.
+	 * @return the new snapshot.
+	 */
+	EpochHistory with(final int n)
+	{
+		final int[] newN = Arrays.copyOf(N, N.length + 1);
+		newN[N.length] = n;
+		return new EpochHistory(newN);
+	}
+
+	/**
+	 * Get the count of epochs in the snapshot.
+	 *
+	 * @return the number of epochs.
+	 */
+	public int size()
+	{
+		return N.length;
+	}
+
+	/**
+	 * Get one epoch from the snapshot.
+	 *
+	 * @param i the index of the epoch, zero being the oldest.
+	 * @return the number of servers in that epoch.
+	 */
+	public int get(final int i)
+	{
+		return N[i];
+	}
+
+	/**
+	 * Get the last epoch entry, or -1 if the snapshot is empty.
+	 *
+	 * @return the number of servers in the latest epoch.
+	 */
+	public int getLastEpoch()
+	{
+		return (N.length > 0) ? N[N.length-1] : -1;
+	}
+
+	/**
+	 * Get a copy of the epochs as an array.
+	 *
+	 * @return the epochs, oldest first.
+	 */
+	public int[] toArray()
+	{
+		return N.clone();
+	}
+
+	/**
+	 * Get a copy of the epochs as a list.
+	 *
+	 * @return the epochs, oldest first.
+	 */
+	public List<Integer> toList()
+	{
+		final List<Integer> list = new ArrayList<>(N.length);
+		for (int n : N)
+			list.add(n);
+		return list;
+	}
+
+	/**
+	 * Get the server allocation for one request, using just this snapshot.
+	 * The snapshot is the compiled form of the history, so this is the
+	 * entire lookup path.
+	 *
+	 * @param id the id of the request.
+	 * @return the number of the server, zero-based.
+	 */
+	public int getServer(final long id)
+	{
+		// The array never changes, so we can read it in peace without
+		// worrying about becoming inconsistent. Stale perhaps, if the
+		// server context has moved on to a newer snapshot, but not
+		// inconsistent. Trying to always use the freshest configuration
+		// over-complicates things, because every access would have to be
+		// synchronised. That would slow down this algorithm, for barely
+		// any difference in how the algorithm operates.
+		return getServer(N, 0, N.length, id);
+	}
+
+	/**
+	 * Get the server allocation for one request, using a history laid out
+	 * in a slice of an array, which must not change while we walk it.
+	 *
+	 * @param N the array.
+	 * @param from where the history starts in the array.
+	 * @param to where the history ends in the array, exclusive.
+	 * @param id the id of the request.
+	 * @return the number of the server, zero-based.
+	 */
+	static int getServer(final int[] N, final int from, final int to,
+		final long id)
+	{
+		int No = N[from];
+		int So = (int) (id % No);
+		for (int i = from + 1; i < to; i++)
+		{
+			int Nn = N[i];
+			// If the server config array reaches zeros, it means we're done
+			// with the config changes.
+			if (Nn <= 0)
+				break;
+			int Sn = (int) (id % Nn);
+			if ((Nn > No && Sn >= No) || (Nn < No && So >= Nn))
+			{
+				No = Nn;
+				So = Sn;
+			}
+		}
+		// Because the snapshot is consistent, the selected server is always
+		// within the last fleet size, unless the history was cut short by
+		// zeros above. We direct all such orphans to server 0, which will
+		// always be around.
+		return (So < N[to-1] ? So : 0);
+	}
+
+	/**
+	 * Get the ids in a range that this snapshot maps to one server, in
+	 * order, without looking at the ids that map elsewhere. The servers of
+	 * one period of ids are worked out up front, once, after which each id
+	 * costs one step. If the period is too long to reason about, or the
+	 * range is shorter than the period, so that working out the servers up
+	 * front would cost more than it saves, every id in the range is looked
+	 * up instead. Either way, the stream can be run in parallel.
+	 *
+	 * @param server the number of the server, zero-based.
+	 * @param from the first id of the range, not negative.
+	 * @param to one past the last id of the range.
+	 * @return the ids.
+	 */
+	public LongStream getIds(final int server, final long from,
+		final long to)
+	{
+		if (from < 0)
+			throw new IllegalArgumentException("Negative id " + from);
+		if (N.length == 0 || server < 0 || server >= getLastEpoch()
+			|| from >= to)
+			return LongStream.empty();
+		final int L = Residues.period(this, Residues.MAX_PERIOD);
+		if (L < 0 || to - from <= L)
+			return LongStream.range(from, to).filter
+				(id -> getServer(id) == server);
+		return StreamSupport.longStream(new Residues.Ids
+			(Residues.owned(this, L, server), L, from, to), false);
+	}
+
+	public boolean equals(final Object o)
+	{
+		if (this == o)
+			return true;
+		if (!(o instanceof EpochHistory))
+			return false;
+		final EpochHistory other = (EpochHistory) o;
+		return hash == other.hash && Arrays.equals(N, other.N);
+	}
+
+	public int hashCode()
+	{
+		return hash;
+	}
+
+	/**
+	  * Human-friendly string representation, NOT to be used for any
+	  * manipulation of configuration history.
+	  *
+	  * @return string version of this instance.
+	  */
+	public String toString()
+	{
+		return Arrays.toString(N);
+	}
+}
@@ -0,0 +1,46 @@
+package com.anandnatrajan.plastichash.utils;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A pool of configuration history snapshots, so that server contexts with
+ * identical histories can share one snapshot rather than carrying a copy
+ * each. Snapshots are held weakly, so a history that no server context
+ * uses any more drops out of the pool on its own.
+ *
+ * @author Anand Natrajan
+ */
+class HistoryInterner
+{
+	private final Map<EpochHistory, WeakReference<EpochHistory>> pool =
+		new WeakHashMap<>();
+
+	/**
+	 * Get the pooled snapshot equal to the one given, adding the given one
+	 * to the pool if there isn't one already.
+	 *
+	 * @param history the snapshot to look up.
+	 * @return the pooled snapshot.
+	 */
+	synchronized EpochHistory intern(final EpochHistory history)
+	{
+		final WeakReference<EpochHistory> ref = pool.get(history);
+		final EpochHistory pooled = (ref == null) ? null : ref.get();
+		if (pooled != null)
+			return pooled;
+		pool.put(history, new WeakReference<>(history));
+		return history;
+	}
+
+	/**
+	 * Get the count of distinct snapshots currently in the pool.
+	 *
+	 * @return the number of snapshots.
+	 */
+	synchronized int size()
+	{
+		return pool.size();
+	}
+}
@@ -0,0 +1,302 @@
+package com.anandnatrajan.plastichash.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes every change to the configuration history of a plastic hash
+ * instance, as it is committed, so that caches, connection pools and
+ * session stores downstream can drop just the entries that moved, rather
+ * than poll, or flush everything.
+ *
+ * Events are delivered to each subscriber on an executor, through a
+ * buffer of bounded size. Changing the history never waits for a
+ * subscriber: if a subscriber falls so far behind that its buffer is
+ * full, events are dropped for it. Every event carries the version it
+ * follows on from, so a subscriber that sees a gap in the versions knows
+ * it missed something, and has to start over.
+ *
+ * @author Anand Natrajan
+ */
+public class HistoryPublisher
+	implements Flow.Publisher<HistoryPublisher.Change>, AutoCloseable
+{
+	private final ServerContext sc;
+	private final ServerContext.Listener listener = this::publish;
+	private final SubmissionPublisher<Change> publisher;
+	private final AtomicLong dropped = new AtomicLong();
+	// The last version published, and its history, guarded by the server
+	// context.
+	private long version;
+	private EpochHistory history;
+
+	/**
+	 * @param ph the plastic hash instance whose changes to publish.
+	 * @param executor where to deliver events to subscribers.
+	 * @param maxBuffer the most events to hold for any one subscriber.
+	 */
+	public HistoryPublisher(final PlasticHash ph, final Executor executor,
+		final int maxBuffer)
+	{
+		this(ph.getServerContext(), executor, maxBuffer);
+	}
+
+	/**
+	 * @param ph the plastic hash instance whose changes to publish.
+	 */
+	public HistoryPublisher(final PlasticHash ph)
+	{
+		this(ph, ForkJoinPool.commonPool(), Flow.defaultBufferSize());
+	}
+
+	HistoryPublisher(final ServerContext sc, final Executor executor,
+		final int maxBuffer)
+	{
+		this.sc = sc;
+		this.publisher = new SubmissionPublisher<>(executor, maxBuffer);
+		synchronized (sc)
+		{
+			version = sc.getVersion();
+			history = sc.getHistory();
+			sc.addListener(listener);
+		}
+	}
+
+	public void subscribe(final Flow.Subscriber<? super Change> subscriber)
+	{
+		publisher.subscribe(subscriber);
+	}
+
+	/**
+	 * Get the count of events dropped because a subscriber was too far
+	 * behind, over all the subscribers.
+	 *
+	 * @return the number of events dropped.
+	 */
+	public long getDropped()
+	{
+		return dropped.get();
+	}
+
+	/**
+	 * Stop publishing changes, and tell the subscribers so, once they have
+	 * had the events already buffered for them.
+	 */
+	public void close()
+	{
+		sc.removeListener(listener);
+		publisher.close();
+	}
+
+	// Called with the server context locked, so hand the event over and
+	// get out of the way.
+	private void publish(final long newVersion, final long millis,
+		final EpochHistory newHistory)
+	{
+		final Change change =
+			new Change(version, newVersion, millis, history, newHistory);
+		version = newVersion;
+		history = newHistory;
+		publisher.offer(change, (subscriber, c) -> {
+			dropped.incrementAndGet();
+			return false; // Don't wait for room.
+		});
+	}
+
+	/**
+	 * One committed change to the history. Which ids moved is worked out
+	 * only if asked for, on whichever thread asks first.
+	 */
+	public static class Change
+	{
+		private final long oldVersion;
+		private final long newVersion;
+		private final long millis;
+		private final EpochHistory oldHistory;
+		private final EpochHistory newHistory;
+		// Worked out lazily: the period, the residues that moved, and the
+		// count of residues each server lost and gained.
+		private int period;
+		private int[] moved;
+		private int[] lost;
+		private int[] gained;
+
+		Change(final long oldVersion, final long newVersion,
+			final long millis, final EpochHistory oldHistory,
+			final EpochHistory newHistory)
+		{
+			this.oldVersion = oldVersion;
+			this.newVersion = newVersion;
+			this.millis = millis;
+			this.oldHistory = oldHistory;
+			this.newHistory = newHistory;
+		}
+
+		/**
+		 * Get the version the change follows on from.
+		 *
+		 * @return the old version.
+		 */
+		public long getOldVersion()
+		{
+			return oldVersion;
+		}
+
+		/**
+		 * Get the version the change made.
+		 *
+		 * @return the new version.
+		 */
+		public long getNewVersion()
+		{
+			return newVersion;
+		}
+
+		/**
+		 * Get the time of the change, by the clock of the plastic hash
+		 * instance.
+		 *
+		 * @return the time, in milliseconds.
+		 */
+		public long getMillis()
+		{
+			return millis;
+		}
+
+		/**
+		 * Get the history before the change.
+		 *
+		 * @return the old history.
+		 */
+		public EpochHistory getOldHistory()
+		{
+			return oldHistory;
+		}
+
+		/**
+		 * Get the history after the change.
+		 *
+		 * @return the new history.
+		 */
+		public EpochHistory getNewHistory()
+		{
+			return newHistory;
+		}
+
+		/**
+		 * Tell whether the change moved an id to another server.
+		 *
+		 * @param id the id.
+		 * @return true if the id moved.
+		 */
+		public boolean isMoved(final long id)
+		{
+			if (oldHistory.size() == 0 || newHistory.size() == 0)
+				return oldHistory.size() != newHistory.size();
+			return oldHistory.getServer(id) != newHistory.getServer(id);
+		}
+
+		/**
+		 * Get the period over which the change repeats: a non-negative id
+		 * moved exactly when its residue modulo the period did.
+		 *
+		 * @return the period, or -1 if it is too long to reason about.
+		 */
+		public int getPeriod()
+		{
+			work();
+			return period;
+		}
+
+		/**
+		 * Get the residues modulo the period that moved.
+		 *
+		 * @return the residues, in order, or null if the period is too long
+		 * to reason about.
+		 */
+		public int[] getMovedResidues()
+		{
+			work();
+			return (moved == null) ? null : moved.clone();
+		}
+
+		/**
+		 * Get how many residues each server lost, out of one period, or out
+		 * of as many ids as a period can have if the period is too long to
+		 * reason about, in which case the counts are just a sample.
+		 *
+		 * @return the count for each old server.
+		 */
+		public int[] getLost()
+		{
+			work();
+			return lost.clone();
+		}
+
+		/**
+		 * Get how many residues each server gained, counted as for those
+		 * lost.
+		 *
+		 * @return the count for each new server.
+		 */
+		public int[] getGained()
+		{
+			work();
+			return gained.clone();
+		}
+
+		private synchronized void work()
+		{
+			if (lost != null)
+				return;
+			lost = new int[countServers(oldHistory)];
+			gained = new int[countServers(newHistory)];
+			if (oldHistory.size() == 0 || newHistory.size() == 0)
+			{
+				period = -1;
+				return;
+			}
+			period = Residues.period(oldHistory, newHistory,
+				Residues.MAX_PERIOD);
+			final int L = (period < 0) ? Residues.MAX_PERIOD : period;
+			int[] R = new int[16];
+			int n = 0;
+			for (int r = 0; r < L; r++)
+			{
+				final int before = oldHistory.getServer(r);
+				final int after = newHistory.getServer(r);
+				if (before == after)
+					continue;
+				lost[before]++;
+				gained[after]++;
+				if (n == R.length)
+					R = Arrays.copyOf(R, n * 2);
+				R[n++] = r;
+			}
+			if (period >= 0)
+				moved = Arrays.copyOf(R, n);
+		}
+
+		// A history that ends in zero servers still sends every id to
+		// server 0, so count that one.
+		private static int countServers(final EpochHistory history)
+		{
+			return (history.size() == 0) ? 0
+				: Math.max(1, history.getLastEpoch());
+		}
+
+		/**
+		  * Human-friendly string representation.
+		  *
+		  * @return string version of this instance.
+		  */
+		public String toString()
+		{
+			return oldVersion + "->" + newVersion + " " + newHistory;
+		}
+	}
+}
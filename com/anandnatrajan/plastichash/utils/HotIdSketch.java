@@ -0,0 +1,291 @@
+package com.anandnatrajan.plastichash.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Spots the few client ids that make most of the requests, in bounded
+ * memory and without locks. Request counts go into a Count-Min sketch, a
+ * few rows of counters that can only over-estimate, and the ids with the
+ * highest estimates are kept in a small table of candidates, in the manner
+ * of Space-Saving. Most ids never get near the table: only an id whose
+ * estimate beats the weakest candidate looks at it at all. An id that is
+ * a candidate already finds itself with one pass over the table, without
+ * estimating anything, and the table keeps its own estimate of each
+ * candidate, refreshed as counts grow, to pick the weakest by.
+ *
+ * The counters are shared by every thread, and every request bumps one in
+ * each row. Requests for the same id, from many threads at once, all bump
+ * the same counters, and fight over their cache lines; a sketch on a very
+ * busy instance scales no better than those counters do.
+ *
+ * Attach the sketch to a plastic hash instance to feed it every request,
+ * and then pin the hot ids to servers of their own if need be.
+ *
+ * @author Anand Natrajan
+ */
+public class HotIdSketch
+{
+	// Marks an empty candidate slot. That id can never be hot, sadly.
+	static final long EMPTY = Long.MIN_VALUE;
+
+	private final int depth;
+	private final int mask;
+	private final AtomicLongArray counts;
+	private final AtomicLongArray candidates;
+	// The estimate of each candidate, as of when it last got in, or last
+	// doubled, or last was the weakest; never more than the sketch says.
+	private final AtomicLongArray estimates;
+	// The least of the estimates of the candidates.
+	private volatile long minEstimate;
+
+	/**
+	 * @param depth the number of rows of counters.
+	 * @param width the number of counters per row, rounded up to a power
+	 * of two.
+	 * @param k the number of hot ids to keep track of.
+	 */
+	public HotIdSketch(final int depth, final int width, final int k)
+	{
+		this.depth = depth;
+		final int w = Integer.highestOneBit(Math.max(1, width - 1)) << 1;
+		this.mask = w - 1;
+		this.counts = new AtomicLongArray(depth * w);
+		this.candidates = new AtomicLongArray(k);
+		this.estimates = new AtomicLongArray(k);
+		for (int i = 0; i < k; i++)
+			candidates.set(i, EMPTY);
+	}
+
+	public HotIdSketch()
+	{
+		this(4, 1 << 14, 16);
+	}
+
+	/**
+	 * Count one request for an id.
+	 *
+	 * @param id the id of the request.
+	 */
+	public void record(final long id)
+	{
+		long estimate = Long.MAX_VALUE;
+		for (int row = 0; row < depth; row++)
+		{
+			estimate = Math.min(estimate,
+				counts.incrementAndGet(cell(id, row)));
+		}
+		if (estimate > minEstimate)
+			offer(id, estimate);
+	}
+
+	/**
+	 * Get the estimated count of requests for an id, which may be high,
+	 * but never low.
+	 *
+	 * @param id the id.
+	 * @return the estimated count.
+	 */
+	public long estimate(final long id)
+	{
+		long estimate = Long.MAX_VALUE;
+		for (int row = 0; row < depth; row++)
+			estimate = Math.min(estimate, counts.get(cell(id, row)));
+		return estimate;
+	}
+
+	/**
+	 * Get the hot ids, hottest first.
+	 *
+	 * @return the ids.
+	 */
+	public long[] getHotIds()
+	{
+		final int k = candidates.length();
+		final long[][] pairs = new long[k][];
+		int n = 0;
+		for (int i = 0; i < k; i++)
+		{
+			final long id = candidates.get(i);
+			if (id != EMPTY)
+				pairs[n++] = new long[] { estimate(id), id };
+		}
+		Arrays.sort(pairs, 0, n, (a, b) -> Long.compare(b[0], a[0]));
+		final long[] ids = new long[n];
+		for (int i = 0; i < n; i++)
+			ids[i] = pairs[i][1];
+		return ids;
+	}
+
+	/**
+	 * Get the hot ids on each server of a plastic hash instance, hottest
+	 * first.
+	 *
+	 * @param ph the plastic hash instance.
+	 * @return the ids, per server.
+	 */
+	public long[][] getHotIdsByServer(final PlasticHash ph)
+	{
+		final long[] ids = getHotIds();
+		final int[] servers = new int[ids.length];
+		final int[] sizes =
+			new int[Math.max(0, ph.getServerContext().getLastEpoch())];
+		for (int i = 0; i < ids.length; i++)
+		{
+			servers[i] = ph.lookup(ids[i]);
+			sizes[servers[i]]++;
+		}
+		final long[][] byServer = new long[sizes.length][];
+		for (int s = 0; s < sizes.length; s++)
+			byServer[s] = new long[sizes[s]];
+		Arrays.fill(sizes, 0);
+		for (int i = 0; i < ids.length; i++)
+			byServer[servers[i]][sizes[servers[i]]++] = ids[i];
+		return byServer;
+	}
+
+	/**
+	 * Pin the hot ids of a plastic hash instance to some servers, spreading
+	 * their load as evenly as possible. Each id, hottest first, stays on
+	 * its current server if that server isn't already carrying more than
+	 * its share of hot load, and goes to the least loaded server otherwise.
+	 * Ids that are no longer hot are unpinned. The hot ids become the only
+	 * pins on the instance, so any pins set by hand are replaced too.
+	 *
+	 * @param ph the plastic hash instance.
+	 * @param servers the servers to pin to, or none to use all servers.
+	 */
+	public void pinHotIds(final PlasticHash ph, int... servers)
+	{
+		if (servers.length == 0)
+		{
+			servers = new int[ph.getServerContext().getLastEpoch()];
+			for (int s = 0; s < servers.length; s++)
+				servers[s] = s;
+		}
+		final long[] ids = getHotIds();
+		long total = 0;
+		for (long id : ids)
+			total += estimate(id);
+		final long share = total / Math.max(1, servers.length);
+		final long[] load = new long[servers.length];
+		final long[] pinned = new long[ids.length];
+		final int[] pinnedTo = new int[ids.length];
+		for (int i = 0; i < ids.length; i++)
+		{
+			final long estimate = estimate(ids[i]);
+			final int current = ph.lookup(ids[i]);
+			int best = -1;
+			for (int j = 0; j < servers.length; j++)
+			{
+				if (servers[j] == current && load[j] + estimate <= share)
+				{
+					best = j;
+					break;
+				}
+				if (best < 0 || load[j] < load[best])
+					best = j;
+			}
+			load[best] += estimate;
+			pinned[i] = ids[i];
+			pinnedTo[i] = servers[best];
+		}
+		ph.replacePins(pinned, pinnedTo);
+	}
+
+	/**
+	 * Forget all counts and hot ids.
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < counts.length(); i++)
+			counts.set(i, 0);
+		for (int i = 0; i < candidates.length(); i++)
+		{
+			candidates.set(i, EMPTY);
+			estimates.set(i, 0);
+		}
+		minEstimate = 0;
+	}
+
+	// Try to get an id into the candidates, displacing the weakest one if
+	// it has a lower estimate.
+	private void offer(final long id, final long estimate)
+	{
+		final int k = candidates.length();
+		// Most offers come from the hottest ids, which are candidates
+		// already, so look for the id before anything else.
+		for (int i = 0; i < k; i++)
+		{
+			if (candidates.get(i) != id)
+				continue;
+			// Only write when it matters: when the weakest candidate grows,
+			// which raises the bar, or when an estimate doubles.
+			final long cached = estimates.get(i);
+			if (cached <= minEstimate)
+			{
+				estimates.set(i, estimate);
+				refreshMin();
+			}
+			else if (estimate >= 2 * cached)
+				estimates.set(i, estimate);
+			return;
+		}
+		int weakest = -1;
+		long weakestEstimate = Long.MAX_VALUE;
+		for (int i = 0; i < k; i++)
+		{
+			final long e = (candidates.get(i) == EMPTY) ? 0 : estimates.get(i);
+			if (e < weakestEstimate)
+			{
+				weakest = i;
+				weakestEstimate = e;
+			}
+		}
+		if (weakest < 0 || estimate <= weakestEstimate)
+			return;
+		// If somebody else got there first, let them have it; this id will
+		// get another chance on its next request.
+		final long victim = candidates.get(weakest);
+		if (!candidates.compareAndSet(weakest, victim, id))
+			return;
+		estimates.set(weakest, estimate);
+		for (int i = 0; i < k; i++)
+		{
+			// Somebody else may have slipped the same id in elsewhere.
+			if (i != weakest && candidates.get(i) == id
+				&& candidates.compareAndSet(i, id, EMPTY))
+				estimates.set(i, 0);
+		}
+		refreshMin();
+	}
+
+	// Work out the least estimate of the candidates again.
+	private void refreshMin()
+	{
+		long min = Long.MAX_VALUE;
+		for (int i = 0; i < candidates.length(); i++)
+		{
+			min = Math.min(min,
+				(candidates.get(i) == EMPTY) ? 0 : estimates.get(i));
+		}
+		minEstimate = min;
+	}
+
+	private int cell(final long id, final int row)
+	{
+		// A different scattering of the id for every row.
+		return row * (mask + 1)
+			+ ((int) PlasticHash.mix(id + row * 0x632BE59BD9B4E019L) & mask);
+	}
+
+	/**
+	  * Human-friendly string representation.
+	  *
+	  * @return string version of this instance.
+	  */
+	public String toString()
+	{
+		return "Hot=" + Arrays.toString(getHotIds());
+	}
+}
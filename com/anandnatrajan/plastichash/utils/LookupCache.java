@@ -0,0 +1,190 @@
+package com.anandnatrajan.plastichash.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of id to server lookups, to put in front of the walk
+ * over a deep configuration history for ids that come back again and
+ * again. Every entry is tagged with the version of the history it was
+ * worked out from, so a change to the history makes every entry stale at
+ * once, without touching any of them.
+ *
+ * The cache is set-associative: an id can only live in one of a few
+ * slots, picked by its hash, and a full set evicts by CLOCK, i.e., the
+ * first slot that hasn't been hit since the last sweep. Each slot is a
+ * pair of longs, the id and a word holding the server, the version, a
+ * referenced bit and a write lock. Readers never lock; they read the word,
+ * the id and the word again, and only trust the pair if the word stayed
+ * the same, which a sequence number bumped on every write guarantees.
+ *
+ * @author Anand Natrajan
+ */
+public class LookupCache
+{
+	static final int WAYS = 4;
+	// The layout of the word in each slot.
+	static final long SERVER = (1L << 21) - 1;
+	static final long VALID = 1L << 21;
+	static final long LOCK = 1L << 22;
+	static final long REF = 1L << 23;
+	static final int SEQ_SHIFT = 24;
+	static final int VERSION_SHIFT = 32;
+
+	private final AtomicLongArray slots;
+	private final int setMask;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * @param capacity the number of ids to cache, rounded up to a power of
+	 * two.
+	 */
+	public LookupCache(final int capacity)
+	{
+		final int sets = Integer.highestOneBit
+			(Math.max(1, (capacity + WAYS - 1) / WAYS - 1)) << 1;
+		this.setMask = sets - 1;
+		this.slots = new AtomicLongArray(sets * WAYS * 2);
+	}
+
+	/**
+	 * Get the cached server for an id.
+	 *
+	 * @param id the id.
+	 * @param version the version of the current history.
+	 * @return the server, or -1 if there is none cached for this version.
+	 */
+	int get(final long id, final long version)
+	{
+		final int base = set(id) * WAYS;
+		for (int w = 0; w < WAYS; w++)
+		{
+			final int i = (base + w) * 2;
+			final long m1 = slots.getAcquire(i + 1);
+			if (!isCurrent(m1, version))
+				continue;
+			final long key = slots.getAcquire(i);
+			final long m2 = slots.getAcquire(i + 1);
+			// A hit on somebody else's part may have set the referenced bit
+			// in the meantime, which doesn't matter.
+			if (key != id || ((m1 ^ m2) & ~REF) != 0)
+				continue;
+			if ((m2 & REF) == 0)
+				slots.compareAndSet(i + 1, m2, m2 | REF);
+			hits.increment();
+			return (int) (m2 & SERVER);
+		}
+		misses.increment();
+		return -1;
+	}
+
+	/**
+	 * Cache the server for an id. If another thread is writing to the
+	 * same slot, don't bother; it's only a cache.
+	 *
+	 * @param id the id.
+	 * @param version the version of the history the server came from.
+	 * @param server the server.
+	 */
+	void put(final long id, final long version, final int server)
+	{
+		if (server < 0 || server > SERVER)
+			return; // Doesn't fit.
+		final int base = set(id) * WAYS;
+		int victim = -1;
+		// Take a slot with this id or a stale entry, if there is one.
+		for (int w = 0; w < WAYS && victim < 0; w++)
+		{
+			final int i = (base + w) * 2;
+			if (!isCurrent(slots.get(i + 1), version) || slots.get(i) == id)
+				victim = i;
+		}
+		// Otherwise, sweep the set, clearing referenced bits, until we find
+		// a slot that hasn't been hit lately.
+		final int start = (int) (PlasticHash.mix(id) >>> 62);
+		for (int w = 0; w < 2 * WAYS && victim < 0; w++)
+		{
+			final int i = (base + (start + w) % WAYS) * 2;
+			final long m = slots.get(i + 1);
+			if ((m & REF) == 0)
+				victim = i;
+			else
+				slots.compareAndSet(i + 1, m, m & ~REF);
+		}
+		if (victim < 0)
+			victim = (base + start) * 2;
+		final long m = slots.get(victim + 1);
+		if ((m & LOCK) != 0 || !slots.compareAndSet(victim + 1, m, m | LOCK))
+			return;
+		slots.set(victim, id);
+		final long seq = ((m >>> SEQ_SHIFT) + 1) & 0xFF;
+		slots.set(victim + 1, (version << VERSION_SHIFT)
+			| (seq << SEQ_SHIFT) | VALID | server);
+	}
+
+	/**
+	 * Get the count of lookups answered by the cache.
+	 *
+	 * @return the number of hits.
+	 */
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	/**
+	 * Get the count of lookups not answered by the cache.
+	 *
+	 * @return the number of misses.
+	 */
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	/**
+	 * Get the fraction of lookups answered by the cache.
+	 *
+	 * @return the hit rate, or zero if there were no lookups.
+	 */
+	public double getHitRate()
+	{
+		final long h = hits.sum();
+		final long total = h + misses.sum();
+		return (total == 0) ? 0 : (double) h / total;
+	}
+
+	/**
+	 * Start counting hits and misses afresh.
+	 */
+	public void resetStats()
+	{
+		hits.reset();
+		misses.reset();
+	}
+
+	// Whether a slot holds an entry for the current version, and isn't
+	// being written to. Only the low bits of the version are kept, which
+	// is plenty to tell recent versions apart.
+	private static boolean isCurrent(final long m, final long version)
+	{
+		return (m & (VALID | LOCK)) == VALID
+			&& (int) (m >>> VERSION_SHIFT) == (int) version;
+	}
+
+	private int set(final long id)
+	{
+		return (int) PlasticHash.mix(id) & setMask;
+	}
+
+	/**
+	  * Human-friendly string representation.
+	  *
+	  * @return string version of this instance.
+	  */
+	public String toString()
+	{
+		return "Hits=" + getHits() + " Misses=" + getMisses();
+	}
+}
@@ -0,0 +1,221 @@
+package com.anandnatrajan.plastichash.utils;
+
+import java.nio.LongBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A batch of ids grouped by the server each one is routed to, so that the
+ * work for each server can be sent off together. The ids are packed into
+ * one array, server by server, in the order they came in, with an offset
+ * for where each server starts, as a counting sort would leave them.
+ *
+ * The ids are routed in parallel, in chunks, with fork-join, all against
+ * one snapshot of the history, so that a change halfway through doesn't
+ * split the batch between two histories. Each chunk counts its ids per
+ * server, the counts give every chunk its own place in the packed array,
+ * and then every chunk copies its ids in. Nothing is allocated per id.
+ * Pins and rollouts are not taken into account, just the history.
+ *
+ * @author Anand Natrajan
+ */
+public class Partition
+{
+	// Chunks smaller than this aren't worth a task of their own.
+	static final int MIN_CHUNK = 1 << 13;
+
+	private final EpochHistory history;
+	private final long[] ids;
+	private final int[] offsets;
+
+	private Partition(final EpochHistory history, final long[] ids,
+		final int[] offsets)
+	{
+		this.history = history;
+		this.ids = ids;
+		this.offsets = offsets;
+	}
+
+	/**
+	 * Partition a slice of an array of ids.
+	 *
+	 * @param history the snapshot to route by, ending in some servers.
+	 * @param in the ids, not negative.
+	 * @param from where the ids start in the array.
+	 * @param to where the ids end in the array, exclusive.
+	 * @param pool where to run the chunks.
+	 * @return the partition.
+	 * @throws IllegalStateException if the history ends in no servers.
+	 */
+	static Partition of(final EpochHistory history, final long[] in,
+		final int from, final int to, final ForkJoinPool pool)
+	{
+		// An empty fleet would still send orphans to server 0, which has
+		// no count of its own.
+		if (history.getLastEpoch() <= 0)
+			throw new IllegalStateException("No servers to partition over");
+		final int S = history.getLastEpoch();
+		final int n = to - from;
+		final int chunks = Math.max(1, Math.min(pool.getParallelism() * 4,
+			n / MIN_CHUNK));
+		// Remember every server as it is worked out, so that it needn't be
+		// worked out again when the ids are copied.
+		final int[] servers = new int[n];
+		final int[][] counts = new int[chunks][S];
+		pool.invoke(new Chunks(0, chunks, c -> {
+			final int[] count = counts[c];
+			for (int i = start(c, chunks, n), end = start(c + 1, chunks, n);
+				i < end; i++)
+			{
+				final long id = in[from + i];
+				if (id < 0)
+					throw new IllegalArgumentException("Negative id " + id);
+				final int s = history.getServer(id);
+				servers[i] = s;
+				count[s]++;
+			}
+		}));
+		// Where each server starts, and where each chunk starts within it.
+		final int[] offsets = new int[S + 1];
+		for (int s = 0; s < S; s++)
+		{
+			int at = offsets[s];
+			for (int c = 0; c < chunks; c++)
+			{
+				final int count = counts[c][s];
+				counts[c][s] = at;
+				at += count;
+			}
+			offsets[s + 1] = at;
+		}
+		final long[] ids = new long[n];
+		pool.invoke(new Chunks(0, chunks, c -> {
+			final int[] at = counts[c];
+			for (int i = start(c, chunks, n), end = start(c + 1, chunks, n);
+				i < end; i++)
+				ids[at[servers[i]]++] = in[from + i];
+		}));
+		return new Partition(history, ids, offsets);
+	}
+
+	// Where a chunk starts, spreading the ids as evenly as possible.
+	private static int start(final int c, final int chunks, final int n)
+	{
+		return (int) ((long) n * c / chunks);
+	}
+
+	/**
+	 * Does something with one chunk of ids.
+	 */
+	@FunctionalInterface
+	private interface ChunkAction
+	{
+		void run(int chunk);
+	}
+
+	/**
+	 * Runs an action on a range of chunks, halving the range until there
+	 * is only one chunk left per task.
+	 */
+	private static final class Chunks extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+		private final transient ChunkAction action;
+
+		Chunks(final int from, final int to, final ChunkAction action)
+		{
+			this.from = from;
+			this.to = to;
+			this.action = action;
+		}
+
+		protected void compute()
+		{
+			if (to - from == 1)
+			{
+				action.run(from);
+				return;
+			}
+			final int mid = (from + to) >>> 1;
+			invokeAll(new Chunks(from, mid, action),
+				new Chunks(mid, to, action));
+		}
+	}
+
+	/**
+	 * Get the snapshot the ids were routed by.
+	 *
+	 * @return the history.
+	 */
+	public EpochHistory getHistory()
+	{
+		return history;
+	}
+
+	/**
+	 * Get the count of servers the ids were spread over.
+	 *
+	 * @return the number of servers.
+	 */
+	public int getNumServers()
+	{
+		return offsets.length - 1;
+	}
+
+	/**
+	 * Get the count of ids routed to one server.
+	 *
+	 * @param server the server.
+	 * @return the number of ids.
+	 */
+	public int getCount(final int server)
+	{
+		return offsets[server + 1] - offsets[server];
+	}
+
+	/**
+	 * Get the ids routed to one server, in the order they came in.
+	 *
+	 * @param server the server.
+	 * @return a read-only view of the ids.
+	 */
+	public LongBuffer getIds(final int server)
+	{
+		return LongBuffer.wrap(ids, offsets[server], getCount(server))
+			.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Get all the ids, server by server.
+	 *
+	 * @return a read-only view of the ids.
+	 */
+	public LongBuffer getPackedIds()
+	{
+		return LongBuffer.wrap(ids).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Get where each server starts among the packed ids, plus where the
+	 * last one ends.
+	 *
+	 * @return the offsets, one more than there are servers.
+	 */
+	public int[] getOffsets()
+	{
+		return offsets.clone();
+	}
+
+	/**
+	  * Human-friendly string representation.
+	  *
+	  * @return string version of this instance.
+	  */
+	public String toString()
+	{
+		return "Ids=" + ids.length + " Servers=" + getNumServers();
+	}
+}
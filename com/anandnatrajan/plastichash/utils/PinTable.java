@@ -0,0 +1,149 @@
+package com.anandnatrajan.plastichash.utils;
+
+import java.util.Arrays;
+
+/**
+ * An immutable table of ids pinned to particular servers, overriding
+ * whatever the configuration history says. The table is open-addressed
+ * over plain arrays, so looking an id up allocates nothing, and a change
+ * means a new table, just like a change to the history means a new
+ * snapshot. Pins are expected to be few and to change rarely.
+ *
+ * @author Anand Natrajan
+ */
+final class PinTable
+{
+	static final PinTable EMPTY = new PinTable(new long[0], new int[0], 0);
+
+	private final long[] ids;
+	// The server for each slot, or -1 if the slot is empty.
+	private final int[] servers;
+	private final int size;
+
+	private PinTable(final long[] ids, final int[] servers, final int size)
+	{
+		this.ids = ids;
+		this.servers = servers;
+		this.size = size;
+	}
+
+	/**
+	 * Get the server an id is pinned to.
+	 *
+	 * @param id the id.
+	 * @return the server, or -1 if the id isn't pinned.
+	 */
+	int get(final long id)
+	{
+		if (size == 0)
+			return -1;
+		final int mask = ids.length - 1;
+		for (int i = slot(id, mask); ; i = (i + 1) & mask)
+		{
+			final int server = servers[i];
+			if (server < 0)
+				return -1;
+			if (ids[i] == id)
+				return server;
+		}
+	}
+
+	/**
+	 * Get the count of pinned ids.
+	 *
+	 * @return the number of ids.
+	 */
+	int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Get a new table with one more id pinned, or an id pinned elsewhere.
+	 *
+	 * @param id the id.
+	 * @param server the server to pin it to, not negative.
+	 * @return the new table.
+	 */
+	PinTable with(final long id, final int server)
+	{
+		// A negative server would mark the slot empty, and lose the id.
+		if (server < 0)
+			throw new IllegalArgumentException("Negative server " + server);
+		final long[] newIds = new long[capacity(size + 1)];
+		final int[] newServers = new int[newIds.length];
+		Arrays.fill(newServers, -1);
+		int newSize = copyInto(newIds, newServers, id);
+		newSize += put(newIds, newServers, id, server);
+		return new PinTable(newIds, newServers, newSize);
+	}
+
+	/**
+	 * Get a new table without an id.
+	 *
+	 * @param id the id.
+	 * @return the new table.
+	 */
+	PinTable without(final long id)
+	{
+		if (get(id) < 0)
+			return this;
+		final long[] newIds = new long[capacity(size - 1)];
+		final int[] newServers = new int[newIds.length];
+		Arrays.fill(newServers, -1);
+		return new PinTable(newIds, newServers,
+			copyInto(newIds, newServers, id));
+	}
+
+	/**
+	 * Get all the pinned ids.
+	 *
+	 * @return the ids, in no particular order.
+	 */
+	long[] getIds()
+	{
+		final long[] result = new long[size];
+		for (int i = 0, j = 0; i < ids.length; i++)
+		{
+			if (servers[i] >= 0)
+				result[j++] = ids[i];
+		}
+		return result;
+	}
+
+	// Copy every pin but one into new arrays, and count them.
+	private int copyInto(final long[] newIds, final int[] newServers,
+		final long except)
+	{
+		int count = 0;
+		for (int i = 0; i < ids.length; i++)
+		{
+			if (servers[i] >= 0 && ids[i] != except)
+				count += put(newIds, newServers, ids[i], servers[i]);
+		}
+		return count;
+	}
+
+	private static int put(final long[] ids, final int[] servers,
+		final long id, final int server)
+	{
+		final int mask = ids.length - 1;
+		int i = slot(id, mask);
+		while (servers[i] >= 0)
+			i = (i + 1) & mask;
+		ids[i] = id;
+		servers[i] = server;
+		return 1;
+	}
+
+	// Keep the table at most half full, so probes stay short.
+	private static int capacity(final int size)
+	{
+		return Math.max(4, Integer.highestOneBit(Math.max(1, size) * 2) * 2);
+	}
+
+	private static int slot(final long id, final int mask)
+	{
+		return (int) PlasticHash.mix(id) & mask;
+	}
+}
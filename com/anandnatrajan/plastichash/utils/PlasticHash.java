@@ -1,6 +1,11 @@
 package com.anandnatrajan.plastichash.utils;
 
-import java.util.List;
+import java.nio.LongBuffer;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.LongStream;
 
 /**
  * A plastic hash instance encapsulates one each of a configuration
@@ -10,18 +15,37 @@ import java.util.List;
  *
  * @author Anand Natrajan
  */
-public class PlasticHash
+public class PlasticHash implements Router
 {
 	private ServerContext serverContext;
 	private WhenAlgorithm when;
 	private WhatAlgorithm what;
+	private volatile RequestMeter meter;
+	// How to roll out changes to the history gradually, along with the
+	// rollout in progress, if any. Null if changes take effect at once.
+	private volatile Rollout rollout;
+	private volatile HotIdSketch sketch;
+	private volatile LookupCache cache;
+	// Ids pinned to particular servers, checked before the history.
+	private volatile PinTable pins = PinTable.EMPTY;
 
 	/**
 	 * Local constructor, forcing instances to be created using a factory.
 	 */
 	PlasticHash()
 	{
-		this.serverContext = new ServerContext();
+		this(new ServerContext());
+	}
+
+	/**
+	 * Local constructor, for instances whose server context is set up by
+	 * the caller, e.g., to share history snapshots with other instances.
+	 *
+	 * @param serverContext the server context to use.
+	 */
+	PlasticHash(final ServerContext serverContext)
+	{
+		this.serverContext = serverContext;
 	}
 
 	// And no public getters/setters for private variables, on purpose.
@@ -67,6 +91,8 @@ public class PlasticHash
 	protected PlasticHash setWhat(WhatAlgorithm what)
 	{
 		this.what = what;
+		if (what != null && what.needsEpochTimes())
+			serverContext.timeEpochs();
 		return this;
 	}
 
@@ -80,6 +106,157 @@ public class PlasticHash
 		return serverContext;
 	}
 
+	/**
+	 * Set the meter that counts requests, or null to stop counting.
+	 *
+	 * @param meter the request meter.
+	 * @return the current instance, just so we can chain calls.
+	 */
+	public PlasticHash setRequestMeter(final RequestMeter meter)
+	{
+		this.meter = meter;
+		return this;
+	}
+
+	/**
+	 * Set the sketch that spots hot ids, or null to stop spotting them.
+	 *
+	 * @param sketch the hot id sketch.
+	 * @return the current instance, just so we can chain calls.
+	 */
+	public PlasticHash setHotIdSketch(final HotIdSketch sketch)
+	{
+		this.sketch = sketch;
+		return this;
+	}
+
+	/**
+	 * Set the cache to put in front of lookups, or null to stop caching.
+	 * The cache is bypassed while changes are being rolled out, since
+	 * lookups depend on the time then.
+	 *
+	 * @param cache the lookup cache.
+	 * @return the current instance, just so we can chain calls.
+	 */
+	public PlasticHash setLookupCache(final LookupCache cache)
+	{
+		this.cache = cache;
+		return this;
+	}
+
+	/**
+	 * Pin an id to a server, overriding the configuration history. If the
+	 * server goes away, the pin is ignored until it comes back. Pins are
+	 * not exported to client routers, so don't pin ids on an instance
+	 * whose history is exported. Pins set here are replaced along with all
+	 * the others by {@link HotIdSketch#pinHotIds}.
+	 *
+	 * @param id the id.
+	 * @param server the number of the server, zero-based, not negative.
+	 * @return the current instance, just so we can chain calls.
+	 */
+	public synchronized PlasticHash pin(final long id, final int server)
+	{
+		pins = pins.with(id, server);
+		return this;
+	}
+
+	/**
+	 * Unpin an id, leaving it to the configuration history again.
+	 *
+	 * @param id the id.
+	 * @return the current instance, just so we can chain calls.
+	 */
+	public synchronized PlasticHash unpin(final long id)
+	{
+		pins = pins.without(id);
+		return this;
+	}
+
+	/**
+	 * Get all the pinned ids.
+	 *
+	 * @return the ids, in no particular order.
+	 */
+	public long[] getPinnedIds()
+	{
+		return pins.getIds();
+	}
+
+	/**
+	 * Replace all the pins at once.
+	 *
+	 * @param ids the ids to pin.
+	 * @param servers the server for each id.
+	 */
+	synchronized void replacePins(final long[] ids, final int[] servers)
+	{
+		PinTable newPins = PinTable.EMPTY;
+		for (int i = 0; i < ids.length; i++)
+			newPins = newPins.with(ids[i], servers[i]);
+		pins = newPins;
+	}
+
+	/**
+	 * Roll out changes to the configuration history gradually, rather
+	 * than moving every affected client at once. Over the specified
+	 * duration, a growing fraction of the id space moves over to the new
+	 * history, while the rest stays where it was. Clients of servers that
+	 * no longer exist move right away, of course. If another change comes
+	 * along before a rollout is done, the earlier one is cut short.
+	 * Rollouts are not exported to client routers, which move every client
+	 * at once, so don't roll out changes on an instance whose history is
+	 * exported.
+	 *
+	 * @param duration how long to take over a change, or null or zero to
+	 * make changes take effect at once.
+	 * @param clock the clock to measure the rollout with.
+	 * @return the current instance, just so we can chain calls.
+	 */
+	public synchronized PlasticHash setRollout(final Duration duration,
+		final Clock clock)
+	{
+		this.rollout = (duration == null || duration.isZero()) ? null
+			: new Rollout(duration.toMillis(), clock, null, 0);
+		return this;
+	}
+
+	/**
+	 * Roll out changes to the configuration history gradually, measured by
+	 * the system clock.
+	 *
+	 * @param duration how long to take over a change, or null or zero to
+	 * make changes take effect at once.
+	 * @return the current instance, just so we can chain calls.
+	 */
+	public PlasticHash setRollout(final Duration duration)
+	{
+		return setRollout(duration, Clock.systemUTC());
+	}
+
+	/**
+	 * Tell whether changes to the configuration history are rolled out
+	 * gradually.
+	 *
+	 * @return true if there is a rollout duration.
+	 */
+	boolean hasRollout()
+	{
+		return rollout != null;
+	}
+
+	/**
+	 * Tell whether a change to the configuration history is still being
+	 * rolled out.
+	 *
+	 * @return true if some clients are yet to move.
+	 */
+	public boolean isRollingOut()
+	{
+		final Rollout rollout = this.rollout;
+		return rollout != null && rollout.isRollingOut();
+	}
+
 	/**
 	 * Add another entry to the configuration history, invoking the
 	 * when/what algorithms as needed.
@@ -87,15 +264,121 @@ public class PlasticHash
 	 * @param n the number of servers to keep in the new epoch.
 	 * @return the current instance, just so we can chain calls.
 	 */
-	public PlasticHash addEpoch(final int n)
+	public synchronized PlasticHash addEpoch(final int n)
 	{
+		final EpochHistory before = serverContext.getHistory();
 		serverContext.addEpoch(n);
 		// Run whatever configuration history cleanup we want.
 		if (when.invoke(serverContext))
 			what.invoke(serverContext);
+		startRollout(before);
 		return this;
 	}
 
+	/**
+	 * Prepare to add another entry to the configuration history, doing
+	 * all the work of the when/what algorithms in the background, so that
+	 * committing it later takes next to no time.
+	 *
+	 * @param n the number of servers to keep in the new epoch.
+	 * @param executor where to do the work.
+	 * @return the prepared epoch, to commit or abort later.
+	 */
+	public PreparedEpoch prepareEpoch(final int n, final Executor executor)
+	{
+		return new PreparedEpoch(this, n, serverContext, when, what, executor);
+	}
+
+	/**
+	 * Prepare to add another entry to the configuration history, doing
+	 * the work in the common fork-join pool.
+	 *
+	 * @param n the number of servers to keep in the new epoch.
+	 * @return the prepared epoch, to commit or abort later.
+	 */
+	public PreparedEpoch prepareEpoch(final int n)
+	{
+		return prepareEpoch(n, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Commit a prepared epoch. If the configuration history has changed
+	 * since the epoch was prepared, the preparation is out of date, and
+	 * the epoch is added to the current history instead, with the what
+	 * algorithm run again. A when algorithm with state of its own isn't
+	 * asked again, since it already counted this epoch when it was
+	 * prepared; its decision then stands. A stateless one is asked again,
+	 * about the current history.
+	 *
+	 * The background work is waited for before the instance is locked,
+	 * since a when algorithm with state is asked with the instance locked.
+	 *
+	 * @param epoch the prepared epoch.
+	 * @return true if the prepared history was used as is, false if the
+	 * epoch had to be added from scratch.
+	 */
+	public boolean commit(final PreparedEpoch epoch)
+	{
+		if (epoch.getOwner() != this)
+			throw new IllegalArgumentException("Epoch prepared elsewhere");
+		epoch.close();
+		final EpochHistory next = epoch.getHistory();
+		synchronized (this)
+		{
+			final EpochHistory before = serverContext.getHistory();
+			if (!serverContext.commitHistory(epoch.getBaseVersion(), next))
+			{
+				serverContext.addEpoch(epoch.getNumServers());
+				if (when.isStateless() ? when.invoke(serverContext)
+					: epoch.isWhen())
+					what.invoke(serverContext);
+				startRollout(before);
+				return false;
+			}
+			startRollout(before);
+			return true;
+		}
+	}
+
+	/**
+	 * Abort a prepared epoch, leaving the configuration history as is.
+	 *
+	 * @param epoch the prepared epoch.
+	 */
+	public void abort(final PreparedEpoch epoch)
+	{
+		if (epoch.getOwner() != this)
+			throw new IllegalArgumentException("Epoch prepared elsewhere");
+		epoch.close();
+		epoch.cancel();
+	}
+
+	/**
+	 * Invoke the when/what algorithms again without adding an epoch. This
+	 * is meant for when algorithms that defer their decisions, such as
+	 * waiting for quiet traffic, and need another chance to act on them.
+	 *
+	 * @return the current instance, just so we can chain calls.
+	 */
+	public synchronized PlasticHash reconsider()
+	{
+		final EpochHistory before = serverContext.getHistory();
+		if (when.invoke(serverContext))
+			what.invoke(serverContext);
+		startRollout(before);
+		return this;
+	}
+
+	// Start rolling out a change to the history, if we roll out changes
+	// and there was a change.
+	private void startRollout(final EpochHistory before)
+	{
+		final Rollout rollout = this.rollout;
+		if (rollout != null && before.size() > 0
+			&& before != serverContext.getHistory())
+			this.rollout = rollout.startFrom(before);
+	}
+
 	/**
 	 * Get the server allocation for one request.
 	 *
@@ -104,39 +387,187 @@ public class PlasticHash
 	 */
 	public int getServer(final long id)
 	{
-		final List<Integer> N = serverContext.getAllEpochs();
-		// The list above is a copy, so we can read it in peace without
-		// worrying about becoming inconsistent. Stale perhaps, but not
-		// inconsistent. Trying to always use the freshest configuration
-		// over-complicates things, because every access would have to be
-		// synchronised. That would slow down this algorithm, for barely
-		// any difference in how the algorithm operates.
-		int No = N.get(0);
-		int So = (int) (id % No);
-		final int size = N.size();
-		for (int i = 1; i < size; i++)
+		final RequestMeter meter = this.meter;
+		if (meter != null)
+			meter.record();
+		final HotIdSketch sketch = this.sketch;
+		if (sketch != null)
+			sketch.record(id);
+		return lookup(id);
+	}
+
+	/**
+	 * Get the ids in a range that the current history maps to one server,
+	 * e.g., to rebuild that server. Past one period of the history, the
+	 * cost is in proportion to the ids returned rather than the range. Pins
+	 * and rollouts are not taken into account, just the history.
+	 *
+	 * @param server the number of the server, zero-based.
+	 * @param from the first id of the range, not negative.
+	 * @param to one past the last id of the range.
+	 * @return the ids, in order, lazily.
+	 */
+	public LongStream getIds(final int server, final long from,
+		final long to)
+	{
+		return serverContext.getHistory().getIds(server, from, to);
+	}
+
+	/**
+	 * Group a batch of ids by the server each one is routed to, in
+	 * parallel, all by the current history.
+	 *
+	 * @param ids the ids, not negative.
+	 * @return the ids, grouped by server.
+	 */
+	public Partition partition(final long[] ids)
+	{
+		return Partition.of(serverContext.getHistory(), ids, 0, ids.length,
+			ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Group the remaining ids in a buffer by the server each one is
+	 * routed to, in parallel, all by the current history. The ids are
+	 * consumed, as by a bulk get.
+	 *
+	 * @param ids the ids, not negative.
+	 * @return the ids, grouped by server.
+	 */
+	public Partition partition(final LongBuffer ids)
+	{
+		final Partition partition;
+		if (ids.hasArray())
 		{
-			int Nn = N.get(i);
-			// If the server config array reaches zeros, it means we're done
-			// with the config changes.
-			if (Nn <= 0)
-				break;
-			int Sn = (int) (id % Nn);
-			if ((Nn > No && Sn >= No) || (Nn < No && So >= Nn))
-			{
-				No = Nn;
-				So = Sn;
-			}
+			final int from = ids.arrayOffset() + ids.position();
+			partition = Partition.of(serverContext.getHistory(), ids.array(),
+				from, from + ids.remaining(), ForkJoinPool.commonPool());
+			ids.position(ids.limit());
+		}
+		else
+		{
+			final long[] copy = new long[ids.remaining()];
+			ids.get(copy);
+			partition = partition(copy);
+		}
+		return partition;
+	}
+
+	/**
+	 * Group a stream of ids by the server each one is routed to, in
+	 * parallel, all by the current history.
+	 *
+	 * @param ids the ids, not negative.
+	 * @return the ids, grouped by server.
+	 */
+	public Partition partition(final LongStream ids)
+	{
+		return partition(ids.toArray());
+	}
+
+	/**
+	 * Get the server allocation for one id, without counting it as a
+	 * request.
+	 *
+	 * @param id the id.
+	 * @return the number of the server, zero-based.
+	 */
+	int lookup(final long id)
+	{
+		// The snapshot is immutable, so it does all the hard work without
+		// any locking. See the snapshot for the details. Read the version
+		// first, so that nothing gets cached as newer than it is.
+		final long version = serverContext.getVersion();
+		final EpochHistory history = serverContext.getHistory();
+		final int pinned = pins.get(id);
+		if (pinned >= 0 && pinned < history.getLastEpoch())
+			return pinned;
+		final Rollout rollout = this.rollout;
+		final LookupCache cache = this.cache;
+		if (rollout != null && (cache == null || rollout.isRollingOut()))
+			return rollout.getServer(id, history);
+		if (cache == null)
+			return history.getServer(id);
+		int server = cache.get(id, version);
+		if (server < 0)
+		{
+			server = history.getServer(id);
+			cache.put(id, version, server);
+		}
+		return server;
+	}
+
+	/**
+	 * A gradual rollout of a change to the configuration history. Each id
+	 * falls into a bucket, by a hash of the id that has nothing to do with
+	 * its residues, and buckets move over in order as time goes by.
+	 * Instances are immutable; a new rollout means a new instance.
+	 */
+	static final class Rollout
+	{
+		static final int BUCKETS = 1 << 16;
+
+		final long durationMillis;
+		final Clock clock;
+		// The history before the change, and when the change was made.
+		// Null if no change has been made.
+		final EpochHistory from;
+		final long startMillis;
+
+		Rollout(final long durationMillis, final Clock clock,
+			final EpochHistory from, final long startMillis)
+		{
+			this.durationMillis = durationMillis;
+			this.clock = clock;
+			this.from = from;
+			this.startMillis = startMillis;
+		}
+
+		Rollout startFrom(final EpochHistory before)
+		{
+			return new Rollout(durationMillis, clock, before, clock.millis());
+		}
+
+		boolean isRollingOut()
+		{
+			return from != null
+				&& clock.millis() - startMillis < durationMillis;
 		}
-		// There's a small danger here that by the time we get here, the
-		// server context has changed, and the selected server number is
-		// larger than the fleet size. We could, in theory run through the
-		// algorithm again... and again... and again until we get a server
-		// within the fleet. Since changing the fleet size is expected to
-		// be a relatively rare activity, at least as compared to the
-		// influx of requests, here, we have chosen to direct all such
-		// orphans to server 0, which will always be around.
-		return (So < serverContext.getLastEpoch() ? So : 0);
+
+		int getServer(final long id, final EpochHistory to)
+		{
+			final int server = to.getServer(id);
+			if (from == null)
+				return server;
+			final long elapsed = clock.millis() - startMillis;
+			if (elapsed >= durationMillis)
+				return server;
+			final int old = from.getServer(id);
+			if (old == server || old >= to.getLastEpoch())
+				return server;
+			return (bucket(id) < elapsed * BUCKETS / durationMillis)
+				? server : old;
+		}
+
+		static int bucket(final long id)
+		{
+			return (int) (mix(id) >>> 48);
+		}
+	}
+
+	/**
+	 * Scatter ids with the SplitMix64 finaliser, for when we need a hash of
+	 * an id that has nothing to do with its residues.
+	 *
+	 * @param id the id.
+	 * @return the scattered id.
+	 */
+	static long mix(final long id)
+	{
+		long z = id + 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
 	}
 
 	/**
@@ -1,5 +1,7 @@
 package com.anandnatrajan.plastichash.utils;
 
+import java.time.Clock;
+
 /**
  * Returns one instance of a load balancer. This instance is crafted with a
  * when and a what algorithm, and carries its own server context. That way,
@@ -19,6 +21,29 @@ public class PlasticHashFactory
 		return new PlasticHash().setWhen(when).setWhat(what);
 	}
 
+	/**
+	  * Creates a plastic hash instance with specified when and what
+	  * algorithms, whose history snapshots are pooled with those of other
+	  * instances.
+	  */
+	PlasticHash createInstance(final WhenAlgorithm when,
+		final WhatAlgorithm what, final HistoryInterner interner)
+	{
+		return new PlasticHash(new ServerContext(interner))
+			.setWhen(when).setWhat(what);
+	}
+
+	/**
+	  * Creates a plastic hash instance with specified when and what
+	  * algorithms, whose epochs are timed by a clock of our choosing.
+	  */
+	public PlasticHash createInstance(final WhenAlgorithm when,
+		final WhatAlgorithm what, final Clock clock)
+	{
+		return new PlasticHash(new ServerContext(clock))
+			.setWhen(when).setWhat(what);
+	}
+
 	/**
 	  * Creates a plastic hash instance with default when and what
 	  * algorithms, Stasis and Snap respectively.
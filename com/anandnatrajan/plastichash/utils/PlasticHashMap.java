@@ -0,0 +1,491 @@
+package com.anandnatrajan.plastichash.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A concurrent map from long keys to values, split into shards, each with
+ * its own lock. The shard for each key comes from a plastic hash over the
+ * shard count, so adding or removing shards moves only the keys whose
+ * server changes, and so does compacting the history. The keys are moved
+ * in the background, one at a time, while reads and writes go on.
+ *
+ * While keys are being moved, a key lives in either its old shard or its
+ * new one, never both. Every access to a moving key locks both shards,
+ * always in the same order, looks in the new shard first, and writes only
+ * to the new shard. Nulls are not allowed as values, so that a null can
+ * mean no value.
+ *
+ * @author Anand Natrajan
+ */
+public class PlasticHashMap<V>
+{
+	private final PlasticHash ph;
+	private final Executor executor;
+	private volatile Layout layout;
+	// Moves keys into their new shards after the last change, if any.
+	private CompletableFuture<Void> migration =
+		CompletableFuture.completedFuture(null);
+
+	/**
+	 * @param numShards the number of shards to start with.
+	 * @param ph the plastic hash instance for assigning keys to shards. Its
+	 * configuration history is managed by this map from here on, and it is
+	 * compacted by its own when and what algorithms.
+	 * @param executor where to move keys between shards.
+	 */
+	public PlasticHashMap(final int numShards, final PlasticHash ph,
+		final Executor executor)
+	{
+		if (numShards < 1)
+			throw new IllegalArgumentException("Need a shard, at least");
+		this.ph = ph;
+		this.executor = executor;
+		ph.addEpoch(numShards);
+		final Shard[] shards = new Shard[numShards];
+		for (int i = 0; i < numShards; i++)
+			shards[i] = new Shard(0);
+		this.layout = new Layout(0, shards,
+			ph.getServerContext().getHistory(), null);
+	}
+
+	/**
+	 * Compact the history on every change, as long as it moves no more than
+	 * five percent of the keys.
+	 *
+	 * @param numShards the number of shards to start with.
+	 */
+	public PlasticHashMap(final int numShards)
+	{
+		this(numShards, new PlasticHashFactory().createInstance
+			(new WhenAlgorithm.Always(), new WhatAlgorithm.Trim(0.05)),
+			ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Get the value for a key.
+	 *
+	 * @param key the key.
+	 * @return the value, or null if there is none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(final long key)
+	{
+		return (V) apply(GET, key, null);
+	}
+
+	/**
+	 * Set the value for a key.
+	 *
+	 * @param key the key.
+	 * @param value the value, not null.
+	 * @return the previous value, or null if there was none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(final long key, final V value)
+	{
+		if (value == null)
+			throw new NullPointerException("No null values");
+		return (V) apply(PUT, key, value);
+	}
+
+	/**
+	 * Remove the value for a key.
+	 *
+	 * @param key the key.
+	 * @return the previous value, or null if there was none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(final long key)
+	{
+		return (V) apply(REMOVE, key, null);
+	}
+
+	/**
+	 * Check if there is a value for a key.
+	 *
+	 * @param key the key.
+	 * @return true if there is a value.
+	 */
+	public boolean containsKey(final long key)
+	{
+		return get(key) != null;
+	}
+
+	/**
+	 * Get the count of keys, which is only a snapshot if other threads are
+	 * writing to the map at the same time.
+	 *
+	 * @return the number of keys.
+	 */
+	public int size()
+	{
+		int size = 0;
+		for (Shard shard : layout.shards)
+		{
+			synchronized (shard)
+			{
+				size += shard.size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Get the count of shards.
+	 *
+	 * @return the number of shards.
+	 */
+	public int getNumShards()
+	{
+		return ph.getServerContext().getLastEpoch();
+	}
+
+	/**
+	 * Get the count of keys in one shard.
+	 *
+	 * @param shard the number of the shard, zero-based.
+	 * @return the number of keys.
+	 */
+	public int getShardSize(final int shard)
+	{
+		final Shard s = layout.shards[shard];
+		synchronized (s)
+		{
+			return s.size;
+		}
+	}
+
+	/**
+	 * Grow or shrink the map to a number of shards, and start moving keys
+	 * in the background. If keys are still being moved after a previous
+	 * change, they are all moved first.
+	 *
+	 * @param numShards the new number of shards.
+	 * @return the current instance, just so we can chain calls.
+	 */
+	public synchronized PlasticHashMap<V> resize(final int numShards)
+	{
+		if (numShards < 1)
+			throw new IllegalArgumentException("Need a shard, at least");
+		return change(() -> ph.addEpoch(numShards));
+	}
+
+	/**
+	 * Give the when and what algorithms another chance to compact the
+	 * history, and start moving keys in the background if they did.
+	 *
+	 * @return the current instance, just so we can chain calls.
+	 */
+	public synchronized PlasticHashMap<V> compact()
+	{
+		return change(ph::reconsider);
+	}
+
+	/**
+	 * Check if keys are still being moved after the last change.
+	 *
+	 * @return true if keys are being moved.
+	 */
+	public boolean isMigrating()
+	{
+		return layout.previous != null;
+	}
+
+	/**
+	 * Wait until all keys have been moved after the last change.
+	 *
+	 * @return the current instance, just so we can chain calls.
+	 */
+	public PlasticHashMap<V> awaitMigration()
+	{
+		final CompletableFuture<Void> migration;
+		synchronized (this)
+		{
+			migration = this.migration;
+		}
+		migration.join();
+		return this;
+	}
+
+	// Change the history, and move whatever keys it takes.
+	private PlasticHashMap<V> change(final Runnable change)
+	{
+		migration.join();
+		final Layout l = layout;
+		change.run();
+		final EpochHistory history = ph.getServerContext().getHistory();
+		if (history == l.history)
+			return this; // Nothing moves.
+		final int id = l.id + 1;
+		final int numShards = history.getLastEpoch();
+		// Keep the old shards around until their keys have moved out.
+		final Shard[] shards = Arrays.copyOf(l.shards,
+			Math.max(numShards, l.shards.length));
+		for (int i = l.shards.length; i < shards.length; i++)
+			shards[i] = new Shard(id);
+		final Layout next = new Layout(id, shards, history, l.history);
+		// Publish the layout before retiring the old one in each shard, so
+		// that anybody turned away by a shard finds the new layout.
+		layout = next;
+		for (int i = 0; i < l.shards.length; i++)
+		{
+			synchronized (shards[i])
+			{
+				shards[i].layout = id;
+			}
+		}
+		migration = CompletableFuture.runAsync(() -> migrate(next), executor);
+		return this;
+	}
+
+	// Move every key whose shard has changed, one at a time, and then drop
+	// the old history and any shards that are gone.
+	private void migrate(final Layout l)
+	{
+		final int numShards = l.history.getLastEpoch();
+		for (int s = 0; s < l.shards.length; s++)
+		{
+			final long[] keys;
+			synchronized (l.shards[s])
+			{
+				keys = l.shards[s].keys();
+			}
+			for (long key : keys)
+			{
+				final int t = l.history.getServer(route(key));
+				if (t == s)
+					continue;
+				final Shard source = l.shards[s];
+				final Shard target = l.shards[t];
+				synchronized (s < t ? source : target)
+				{
+					synchronized (s < t ? target : source)
+					{
+						// Somebody may have moved or removed it meanwhile.
+						final Object value = source.remove(key);
+						if (value != null)
+							target.put(key, value);
+					}
+				}
+			}
+		}
+		// No other change can happen until this one is done.
+		layout = new Layout(l.id,
+			Arrays.copyOf(l.shards, numShards), l.history, null);
+	}
+
+	private static final int GET = 0;
+	private static final int PUT = 1;
+	private static final int REMOVE = 2;
+
+	// Get, put or remove a key, under the locks for its shards. If the
+	// layout changes in the meantime, start over.
+	private Object apply(final int op, final long key, final Object value)
+	{
+		final long id = route(key);
+		while (true)
+		{
+			final Layout l = layout;
+			final int t = l.history.getServer(id);
+			final int s = (l.previous == null) ? t : l.previous.getServer(id);
+			final Shard target = l.shards[t];
+			if (s == t)
+			{
+				synchronized (target)
+				{
+					if (target.layout != l.id)
+						continue;
+					switch (op)
+					{
+					case GET:
+						return target.get(key);
+					case PUT:
+						return target.put(key, value);
+					default:
+						return target.remove(key);
+					}
+				}
+			}
+			final Shard source = l.shards[s];
+			synchronized (s < t ? source : target)
+			{
+				synchronized (s < t ? target : source)
+				{
+					if (target.layout != l.id || source.layout != l.id)
+						continue;
+					Object previous;
+					switch (op)
+					{
+					case GET:
+						previous = target.get(key);
+						return (previous != null) ? previous : source.get(key);
+					case PUT:
+						previous = target.put(key, value);
+						break;
+					default:
+						previous = target.remove(key);
+						break;
+					}
+					final Object old = source.remove(key);
+					return (previous != null) ? previous : old;
+				}
+			}
+		}
+	}
+
+	// Scatter the keys before routing, since plastic hashing works on
+	// residues, and keys often come in strides.
+	private static long route(final long key)
+	{
+		return PlasticHash.mix(key) >>> 1;
+	}
+
+	/**
+	  * Human-friendly string representation.
+	  *
+	  * @return string version of this instance.
+	  */
+	public String toString()
+	{
+		return "Size=" + size() + " " + ph;
+	}
+
+	/**
+	 * The shards and the key assignment between two changes, along with
+	 * the previous assignment while keys are still being moved.
+	 */
+	static final class Layout
+	{
+		final int id;
+		final Shard[] shards;
+		final EpochHistory history;
+		final EpochHistory previous;
+
+		Layout(final int id, final Shard[] shards,
+			final EpochHistory history, final EpochHistory previous)
+		{
+			this.id = id;
+			this.shards = shards;
+			this.history = history;
+			this.previous = previous;
+		}
+	}
+
+	/**
+	 * One shard, an open-addressed table with linear probing over plain
+	 * arrays. Guarded by its own monitor.
+	 */
+	static final class Shard
+	{
+		private long[] keys = new long[8];
+		// The value for each slot, or null if the slot is empty.
+		private Object[] values = new Object[8];
+		int size;
+		// The layout the shard takes accesses for.
+		int layout;
+
+		Shard(final int layout)
+		{
+			this.layout = layout;
+		}
+
+		Object get(final long key)
+		{
+			final int mask = keys.length - 1;
+			for (int i = slot(key, mask); ; i = (i + 1) & mask)
+			{
+				final Object value = values[i];
+				if (value == null || keys[i] == key)
+					return value;
+			}
+		}
+
+		Object put(final long key, final Object value)
+		{
+			final int mask = keys.length - 1;
+			int i = slot(key, mask);
+			while (values[i] != null)
+			{
+				if (keys[i] == key)
+				{
+					final Object old = values[i];
+					values[i] = value;
+					return old;
+				}
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+			values[i] = value;
+			// Keep the table at most half full, so probes stay short.
+			if (++size * 2 > keys.length)
+				rehash(keys.length * 2);
+			return null;
+		}
+
+		Object remove(final long key)
+		{
+			final int mask = keys.length - 1;
+			int i = slot(key, mask);
+			while (values[i] != null && keys[i] != key)
+				i = (i + 1) & mask;
+			final Object old = values[i];
+			if (old == null)
+				return null;
+			// Shift later entries of the same run back into the hole, so
+			// that no probe ends early.
+			for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask)
+			{
+				final int home = slot(keys[j], mask);
+				if (((j - home) & mask) >= ((j - i) & mask))
+				{
+					keys[i] = keys[j];
+					values[i] = values[j];
+					i = j;
+				}
+			}
+			values[i] = null;
+			size--;
+			if (size * 8 < keys.length && keys.length > 8)
+				rehash(keys.length / 2);
+			return old;
+		}
+
+		long[] keys()
+		{
+			final long[] result = new long[size];
+			for (int i = 0, j = 0; i < keys.length; i++)
+			{
+				if (values[i] != null)
+					result[j++] = keys[i];
+			}
+			return result;
+		}
+
+		private void rehash(final int capacity)
+		{
+			final long[] oldKeys = keys;
+			final Object[] oldValues = values;
+			keys = new long[capacity];
+			values = new Object[capacity];
+			final int mask = capacity - 1;
+			for (int i = 0; i < oldKeys.length; i++)
+			{
+				if (oldValues[i] == null)
+					continue;
+				int j = slot(oldKeys[i], mask);
+				while (values[j] != null)
+					j = (j + 1) & mask;
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+		}
+
+		private static int slot(final long key, final int mask)
+		{
+			return (int) PlasticHash.mix(key ^ 0x5DEECE66DL) & mask;
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package com.anandnatrajan.plastichash.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps track of many fleets, one plastic hash instance per fleet, looked
+ * up by fleet id. Fleets in one registry share as much as they can:
+ * identical configuration histories are pooled so that they share one
+ * snapshot, and stateless when/what algorithms are kept as one instance
+ * each. What's left per fleet is the plastic hash instance, its server
+ * context and a map entry. Everything else, e.g., epoch times, listeners,
+ * pins, meters and caches, is either shared while empty or not there at
+ * all until somebody asks for it.
+ *
+ * @author Anand Natrajan
+ */
+public class PlasticHashRegistry
+{
+	private final PlasticHashFactory factory;
+	private final HistoryInterner interner = new HistoryInterner();
+	private final ConcurrentMap<String, PlasticHash> fleets =
+		new ConcurrentHashMap<>();
+	// Shared instances of stateless algorithms, keyed by class and string
+	// representation.
+	private final ConcurrentMap<String, WhenAlgorithm> whens =
+		new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, WhatAlgorithm> whats =
+		new ConcurrentHashMap<>();
+
+	public PlasticHashRegistry(final PlasticHashFactory factory)
+	{
+		this.factory = factory;
+	}
+
+	public PlasticHashRegistry()
+	{
+		this(new PlasticHashFactory());
+	}
+
+	/**
+	 * Get the plastic hash instance for a fleet.
+	 *
+	 * @param fleetId the id of the fleet.
+	 * @return the instance, or null if there is no such fleet.
+	 */
+	public PlasticHash getFleet(final String fleetId)
+	{
+		return fleets.get(fleetId);
+	}
+
+	/**
+	 * Get the plastic hash instance for a fleet, creating one with the
+	 * specified when and what algorithms if there is no such fleet yet.
+	 * Stateless algorithms are swapped for an equivalent shared instance,
+	 * so callers shouldn't count on getting back the very instances they
+	 * passed in.
+	 *
+	 * @param fleetId the id of the fleet.
+	 * @param when the when algorithm for a new fleet.
+	 * @param what the what algorithm for a new fleet.
+	 * @return the instance for the fleet, old or new.
+	 */
+	public PlasticHash createFleet(final String fleetId,
+		final WhenAlgorithm when, final WhatAlgorithm what)
+	{
+		return fleets.computeIfAbsent(fleetId, id ->
+			factory.createInstance(share(when), share(what), interner));
+	}
+
+	/**
+	 * Get the plastic hash instance for a fleet, creating one with the
+	 * default when and what algorithms, Stasis and Snap respectively, if
+	 * there is no such fleet yet.
+	 *
+	 * @param fleetId the id of the fleet.
+	 * @return the instance for the fleet, old or new.
+	 */
+	public PlasticHash createFleet(final String fleetId)
+	{
+		return createFleet(fleetId,
+			new WhenAlgorithm.Stasis(), new WhatAlgorithm.Snap());
+	}
+
+	/**
+	 * Forget about a fleet.
+	 *
+	 * @param fleetId the id of the fleet.
+	 * @return the instance for the fleet, or null if there was no such
+	 * fleet.
+	 */
+	public PlasticHash removeFleet(final String fleetId)
+	{
+		return fleets.remove(fleetId);
+	}
+
+	/**
+	 * Get the count of fleets in the registry.
+	 *
+	 * @return the number of fleets.
+	 */
+	public int getNumFleets()
+	{
+		return fleets.size();
+	}
+
+	/**
+	 * Get the count of distinct configuration histories in use by the
+	 * fleets, which may be far fewer than the number of fleets.
+	 *
+	 * @return the number of distinct histories.
+	 */
+	public int getNumHistories()
+	{
+		return interner.size();
+	}
+
+	private WhenAlgorithm share(final WhenAlgorithm when)
+	{
+		if (!when.isStateless())
+			return when;
+		return whens.computeIfAbsent
+			(when.getClass().getName() + ":" + when, key -> when);
+	}
+
+	private WhatAlgorithm share(final WhatAlgorithm what)
+	{
+		if (!what.isStateless())
+			return what;
+		return whats.computeIfAbsent
+			(what.getClass().getName() + ":" + what, key -> what);
+	}
+
+	/**
+	  * Human-friendly string representation, NOT to be used for any
+	  * manipulation of configuration history.
+	  *
+	  * @return string version of this instance.
+	  */
+	public String toString()
+	{
+		return "Fleets=" + fleets.size() + " Histories=" + interner.size();
+	}
+}
@@ -1,8 +1,36 @@
 package com.anandnatrajan.plastichash.utils;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.LongBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+import com.anandnatrajan.plastichash.client.ClientRouter;
+import com.anandnatrajan.plastichash.client.Snapshot;
+import com.anandnatrajan.plastichash.proxy.EchoServer;
+import com.anandnatrajan.plastichash.proxy.LoadGenerator;
+import com.anandnatrajan.plastichash.proxy.StickyProxy;
 
 /**
   * Test class to show how to use the plastic hash algorithm and also run a
@@ -12,6 +40,39 @@ import java.util.List;
   */
 public class PlasticHashTest
 {
+	// A clock that only moves when told to.
+	static class TestClock extends Clock
+	{
+		private long millis;
+
+		public long millis()
+		{
+			return millis;
+		}
+
+		public Instant instant()
+		{
+			return Instant.ofEpochMilli(millis);
+		}
+
+		public ZoneId getZone()
+		{
+			return ZoneOffset.UTC;
+		}
+
+		public Clock withZone(ZoneId zone)
+		{
+			// Zones don't matter to a test, but the instant must be shared.
+			return this;
+		}
+
+		TestClock advance(final Duration d)
+		{
+			millis += d.toMillis();
+			return this;
+		}
+	}
+
 	private final PlasticHashFactory phf;
 	private final boolean fastFail;
 
@@ -60,6 +121,22 @@ public class PlasticHashTest
 		return false;
 	}
 
+	protected boolean assertTrue(final String message, final boolean actual)
+	{
+		log("\t" + message + ", expected true, got " + actual);
+		try
+		{
+			assert actual;
+			return true;
+		}
+		catch (AssertionError ae)
+		{
+			if (fastFail)
+				throw ae;
+		}
+		return false;
+	}
+
 	private static long hash(int id)
 	{
 		// A toy hashing function to illustrate how it could work.
@@ -95,7 +172,12 @@ public class PlasticHashTest
 	private boolean checkEpochs(final PlasticHash ph,
 		final int numEpochs, final int lastEpoch)
 	{
-		final ServerContext sc = ph.getServerContext();
+		return checkEpochs(ph.getServerContext(), numEpochs, lastEpoch);
+	}
+
+	private boolean checkEpochs(final ServerContext sc,
+		final int numEpochs, final int lastEpoch)
+	{
 		return assertEquals("num epochs", numEpochs, sc.getNumEpochs())
 			&& assertEquals("last epoch", lastEpoch, sc.getLastEpoch());
 	}
@@ -711,6 +793,1562 @@ public class PlasticHashTest
 		return this;
 	}
 
+	public PlasticHashTest testRegistry()
+	{
+		setUp();
+		final PlasticHashRegistry phr = new PlasticHashRegistry(phf);
+		final PlasticHash ph1 = phr.createFleet("one");
+		final PlasticHash ph2 = phr.createFleet("two");
+		final PlasticHash ph3 = phr.createFleet("three",
+			new WhenAlgorithm.OnDemand(), new WhatAlgorithm.Snap());
+		final PlasticHash ph4 = phr.createFleet("four",
+			new WhenAlgorithm.OnDemand(), new WhatAlgorithm.Snap());
+		boolean result = true
+			&& addEpochs(ph1, 5, 7, 4)
+			&& addEpochs(ph2, 5, 7, 4)
+			&& addEpochs(ph3, 5, 7, 3)
+			&& assertEquals("num fleets", 4, phr.getNumFleets())
+			&& assertTrue("same fleet", ph1 == phr.createFleet("one"))
+			&& assertTrue("shared history", ph1.getServerContext()
+				.getHistory() == ph2.getServerContext().getHistory())
+			&& assertTrue("shared when", ph1.getWhen() == ph2.getWhen())
+			&& assertTrue("shared what", ph3.getWhat() == ph4.getWhat())
+			&& assertTrue("unshared when", ph3.getWhen() != ph4.getWhen())
+			&& assertEquals("same server", ph1.getServer(123456789L),
+				ph2.getServer(123456789L))
+			&& addEpochs(ph2, 4)
+			&& checkEpochs(ph2, 1, 4)
+			&& checkEpochs(ph1, 3, 4)
+			&& assertTrue("removed", phr.removeFleet("two") == ph2)
+			&& assertTrue("gone", phr.getFleet("two") == null);
+		tearDown(result);
+		return this;
+	}
+
+	// Count the ids that a what algorithm moves to another server.
+	private int countMoved(final ServerContext sc, final WhatAlgorithm what,
+		final int numRequests)
+	{
+		final EpochHistory before = sc.getHistory();
+		what.invoke(sc);
+		log("\t" + what + ": " + before + " -> " + sc);
+		int moved = 0;
+		for (int i = 0; i < numRequests; i++)
+		{
+			if (before.getServer(hash(i)) != sc.getHistory().getServer(hash(i)))
+				moved++;
+		}
+		return moved;
+	}
+
+	private ServerContext createServerContext(int... epochs)
+	{
+		final ServerContext sc = new ServerContext();
+		for (int servers : epochs)
+			sc.addEpoch(servers);
+		return sc;
+	}
+
+	public PlasticHashTest testTrim()
+	{
+		setUp();
+		final int[] epochs = { 5, 7, 4, 2, 6, 3, 9, 8, 7, 5 };
+		final int numRequests = 2520 * 2; // Two periods of the history.
+		ServerContext sc = createServerContext(5, 7, 7, 4, 2, 2, 6);
+		boolean result = true
+			&& assertEquals("moved", 0,
+				countMoved(sc, new WhatAlgorithm.Trim(0), numRequests))
+			&& checkEpochs(sc, 5, 6);
+		sc = createServerContext(epochs);
+		final int moved = countMoved(sc, new WhatAlgorithm.Trim(0.25),
+			numRequests);
+		result &= true
+			&& assertTrue("within budget", moved <= numRequests / 4)
+			&& assertTrue("shorter", sc.getNumEpochs() < epochs.length)
+			&& assertEquals("last epoch", 5, sc.getLastEpoch());
+		sc = createServerContext(epochs);
+		countMoved(sc, new WhatAlgorithm.Trim(1), numRequests);
+		result &= checkEpochs(sc, 1, 5);
+		sc = createServerContext(epochs);
+		countMoved(sc, new WhatAlgorithm.Trim(0.25, 100), numRequests);
+		result &= checkEpochs(sc, 10, 5);
+		final PlasticHash ph = phf.createInstance
+			(new WhenAlgorithm.Always(), new WhatAlgorithm.Trim(0.2));
+		result &= true
+			&& addEpochs(ph, 5, 7, 4, 2, 2, 6, 3, 9, 8, 7, 7, 7, 5);
+		// A long history with a long period runs out of work, and keeps
+		// whatever it could drop in time.
+		final int[] deep = new int[64];
+		for (int i = 0; i < deep.length; i++)
+			deep[i] = 1 << (10 + i % 8);
+		sc = createServerContext(deep);
+		final long start = System.nanoTime();
+		new WhatAlgorithm.Trim(0.5).invoke(sc);
+		result &= true
+			&& assertTrue("cut off",
+				System.nanoTime() - start < 10_000_000_000L)
+			&& assertTrue("no longer", sc.getNumEpochs() <= deep.length)
+			&& assertEquals("last epoch kept", deep[deep.length - 1],
+				sc.getLastEpoch());
+		tearDown(result);
+		return this;
+	}
+
+	public PlasticHashTest testLatencyBudget()
+	{
+		setUp();
+		// Anything costs more than nothing, but nothing re-arms it.
+		PlasticHash ph = phf.createInstance(new WhenAlgorithm.LatencyBudget
+			(0, 0, 0), new WhatAlgorithm.Snap());
+		boolean result = true
+			&& addEpochs(ph, 5, 7)
+			&& checkEpochs(ph, 2, 7)
+			&& addEpochs(ph, 4)
+			&& checkEpochs(ph, 3, 4);
+		// Nothing costs more than everything.
+		ph = phf.createInstance(new WhenAlgorithm.LatencyBudget
+			(Long.MAX_VALUE, 0, 10), new WhatAlgorithm.Snap());
+		result &= true
+			&& addEpochs(ph, 5, 7, 4, 2)
+			&& checkEpochs(ph, 4, 2);
+		final WhenAlgorithm.LatencyBudget lb =
+			new WhenAlgorithm.LatencyBudget(0, 0, 0);
+		final ServerContext deep = createServerContext(5);
+		for (int i = 0; i < 1000; i++)
+			deep.addEpoch(6 + i % 2);
+		final ServerContext shallow = createServerContext(5);
+		final long cost = lb.getCost(shallow);
+		result &= assertTrue("deeper costs more",
+			lb.getCost(deep) > cost + 1);
+		// Deep triggers it once; shallow re-arms it.
+		final WhenAlgorithm.LatencyBudget hysteresis =
+			new WhenAlgorithm.LatencyBudget(cost + 1, cost + 1, 0);
+		result &= true
+			&& assertTrue("triggered", hysteresis.invoke(deep))
+			&& assertTrue("held off", !hysteresis.invoke(deep))
+			&& assertTrue("re-armed", !hysteresis.invoke(shallow))
+			&& assertTrue("triggered again", hysteresis.invoke(deep));
+		try
+		{
+			new WhenAlgorithm.LatencyBudget(0, Long.MAX_VALUE, 0);
+			result &= assertTrue("resume above budget", false);
+		}
+		catch (IllegalArgumentException iae)
+		{
+			// That's what we want.
+		}
+		tearDown(result);
+		return this;
+	}
+
+	public PlasticHashTest testLowTraffic()
+	{
+		setUp();
+		final TestClock clock = new TestClock();
+		final RequestMeter meter = new RequestMeter(Duration.ofSeconds(1),
+			clock);
+		final WhenAlgorithm.LowTraffic when = new WhenAlgorithm.LowTraffic
+			(new WhenAlgorithm.Stasis(), meter, 10, Duration.ofMinutes(1),
+			null, null, clock);
+		PlasticHash ph = phf.createInstance(when, new WhatAlgorithm.Snap())
+			.setRequestMeter(meter);
+		boolean result = addEpochs(ph, 5, 7, 4); // 60 requests.
+		// Not low until a whole interval has been seen.
+		result &= assertTrue("unknown", Double.isNaN(meter.getRate()));
+		clock.advance(Duration.ofSeconds(1));
+		result &= true
+			&& addEpochs(ph, 4) // At 60 requests a second.
+			&& assertTrue("deferred", when.isPending())
+			&& checkEpochs(ph, 4, 4);
+		clock.advance(Duration.ofSeconds(1));
+		ph.reconsider(); // At 20 requests a second.
+		result &= checkEpochs(ph, 4, 4);
+		clock.advance(Duration.ofSeconds(1));
+		ph.reconsider(); // No requests in the last second.
+		result &= true
+			&& checkEpochs(ph, 1, 4)
+			&& assertTrue("done", !when.isPending());
+		runRequests(ph, 1000);
+		clock.advance(Duration.ofSeconds(1));
+		result &= true
+			&& addEpochs(ph, 4) // At 1000 requests a second.
+			&& checkEpochs(ph, 2, 4);
+		for (int i = 0; i < 60; i++)
+		{
+			runRequests(ph, 100);
+			clock.advance(Duration.ofSeconds(1));
+			ph.reconsider(); // At 100 requests a second.
+		}
+		// Deferred as long as it could be, but no longer.
+		result &= checkEpochs(ph, 1, 4);
+		ph = phf.createInstance(new WhenAlgorithm.LowTraffic
+			(new WhenAlgorithm.Stasis(), meter, 0, Duration.ofDays(1),
+			LocalTime.of(23, 0), LocalTime.of(1, 0), clock),
+			new WhatAlgorithm.Snap()).setRequestMeter(meter);
+		result &= addEpochs(ph, 5, 7, 4);
+		runRequests(ph, 1000);
+		clock.advance(Duration.ofSeconds(1));
+		result &= true
+			&& addEpochs(ph, 4) // In the trough, just after midnight.
+			&& checkEpochs(ph, 1, 4);
+		tearDown(result);
+		return this;
+	}
+
+	public PlasticHashTest testComposites()
+	{
+		setUp();
+		final TestClock clock = new TestClock();
+		PlasticHash ph = phf.createInstance(new WhenAlgorithm.And
+			(new WhenAlgorithm.Stasis(), new WhenAlgorithm.Not
+			(new WhenAlgorithm.LowServerCount(3))), new WhatAlgorithm.Snap());
+		boolean result = true
+			&& addEpochs(ph, 5, 7, 7)
+			&& checkEpochs(ph, 1, 7)
+			&& addEpochs(ph, 2, 2)
+			&& checkEpochs(ph, 3, 2);
+		ph = phf.createInstance(new WhenAlgorithm.Or
+			(new WhenAlgorithm.Stasis(), new WhenAlgorithm.LowServerCount(3)),
+			new WhatAlgorithm.Snap());
+		result &= true
+			&& addEpochs(ph, 5, 7)
+			&& checkEpochs(ph, 2, 7)
+			&& addEpochs(ph, 2)
+			&& checkEpochs(ph, 1, 2);
+		// Short-circuiting leaves a later demand armed.
+		final WhenAlgorithm.OnDemand demand = new WhenAlgorithm.OnDemand();
+		final WhenAlgorithm either = new WhenAlgorithm.Or
+			(new WhenAlgorithm.Always(), demand);
+		demand.setGo(true);
+		result &= true
+			&& assertTrue("either", either.invoke(createServerContext(5)))
+			&& assertTrue("still armed", demand.isGo());
+		ph = phf.createInstance(new WhenAlgorithm.Cooldown
+			(new WhenAlgorithm.Always(), Duration.ofMinutes(1), clock),
+			new WhatAlgorithm.Snap());
+		result &= true
+			&& addEpochs(ph, 5, 7, 4)
+			&& checkEpochs(ph, 3, 4);
+		clock.advance(Duration.ofMinutes(1));
+		result &= true
+			&& addEpochs(ph, 2)
+			&& checkEpochs(ph, 1, 2);
+		ph = phf.createInstance(new WhenAlgorithm.MinEpochs
+			(new WhenAlgorithm.Always(), 3), new WhatAlgorithm.Snap());
+		result &= true
+			&& addEpochs(ph, 5, 7)
+			&& checkEpochs(ph, 2, 7)
+			&& addEpochs(ph, 4)
+			&& checkEpochs(ph, 1, 4)
+			&& addEpochs(ph, 2, 6)
+			&& checkEpochs(ph, 3, 6);
+		ph = phf.createInstance(new WhenAlgorithm.RateLimit
+			(new WhenAlgorithm.Always(), 2, Duration.ofMinutes(1), clock),
+			new WhatAlgorithm.Snap());
+		result &= true
+			&& addEpochs(ph, 5, 7, 4)
+			&& checkEpochs(ph, 2, 4);
+		clock.advance(Duration.ofMinutes(1));
+		result &= true
+			&& addEpochs(ph, 2, 6, 3)
+			&& checkEpochs(ph, 2, 3);
+		tearDown(result);
+		return this;
+	}
+
+	// Count the ids that two plastic hash instances put on different
+	// servers.
+	private int countDifferent(final PlasticHash ph1, final PlasticHash ph2,
+		final int numRequests)
+	{
+		int different = 0;
+		for (int i = 0; i < numRequests; i++)
+		{
+			if (ph1.getServer(hash(i)) != ph2.getServer(hash(i)))
+				different++;
+		}
+		return different;
+	}
+
+	public PlasticHashTest testRollout()
+	{
+		setUp();
+		final int numRequests = 7000;
+		final TestClock clock = new TestClock();
+		final PlasticHash ph = phf.createInstance
+			(new WhenAlgorithm.Never(), new WhatAlgorithm.Snap())
+			.setRollout(Duration.ofSeconds(100), clock);
+		final PlasticHash at5 = phf.createInstance().addEpoch(5);
+		final PlasticHash at7 = phf.createInstance().addEpoch(5).addEpoch(7);
+		ph.addEpoch(5).addEpoch(7);
+		final int moved = countDifferent(at5, at7, numRequests);
+		boolean result = true
+			&& assertTrue("rolling out", ph.isRollingOut())
+			&& assertEquals("none moved", 0,
+				countDifferent(ph, at5, numRequests));
+		clock.advance(Duration.ofSeconds(50));
+		final int halfMoved = countDifferent(ph, at5, numRequests);
+		result &= true
+			&& assertTrue("half moved", Math.abs(halfMoved - moved / 2)
+				< moved / 10)
+			&& assertEquals("rest unmoved", moved - halfMoved,
+				countDifferent(ph, at7, numRequests));
+		clock.advance(Duration.ofSeconds(50));
+		result &= true
+			&& assertTrue("rolled out", !ph.isRollingOut())
+			&& assertEquals("all moved", 0,
+				countDifferent(ph, at7, numRequests));
+		// Shrinking, clients of the servers that are gone move right away,
+		// and nobody else moves at all.
+		ph.addEpoch(5);
+		clock.advance(Duration.ofSeconds(1));
+		result &= true
+			&& assertTrue("rolling out", ph.isRollingOut())
+			&& assertEquals("gone moved", 0, countDifferent(ph, phf
+				.createInstance(new WhenAlgorithm.Never(),
+				new WhatAlgorithm.Snap()).addEpoch(5).addEpoch(7).addEpoch(5),
+				numRequests));
+		tearDown(result);
+		return this;
+	}
+
+	public PlasticHashTest testRebalancePlanner()
+	{
+		setUp();
+		final ServerContext current = createServerContext(5, 7, 4);
+		final ServerContext target = createServerContext(5, 7, 4, 6);
+		final RebalancePlanner.Plan plan = new RebalancePlanner
+			(current, target).plan(0, 84000, 100, 50);
+		log("\t" + plan);
+		final int numBatches = plan.getNumBatches();
+		final long[] sent = new long[numBatches * 4];
+		final long[] received = new long[numBatches * 6];
+		final long[] count = new long[1];
+		final boolean[] isRight = { true };
+		plan.forEachMove((batch, id, source, dest) ->
+		{
+			isRight[0] &= current.getHistory().getServer(id) == source
+				&& target.getHistory().getServer(id) == dest;
+			sent[batch * 4 + source]++;
+			received[batch * 6 + dest]++;
+			count[0]++;
+		});
+		long maxSent = 0;
+		long maxReceived = 0;
+		for (long n : sent)
+			maxSent = Math.max(maxSent, n);
+		for (long n : received)
+			maxReceived = Math.max(maxReceived, n);
+		int moves = 0;
+		for (int i = 0; i < 84000; i++)
+		{
+			if (current.getHistory().getServer(i)
+				!= target.getHistory().getServer(i))
+				moves++;
+		}
+		final long[] lastBatch = new long[1];
+		plan.forEachMove(numBatches - 1, (batch, id, source, dest) ->
+			lastBatch[0]++);
+		boolean result = true
+			&& assertTrue("right servers", isRight[0])
+			&& assertEquals("moves", moves, (int) count[0])
+			&& assertEquals("planned moves", moves, (int) plan.getNumMoves())
+			&& assertTrue("within send cap", maxSent <= 100)
+			&& assertTrue("within receive cap", maxReceived <= 50)
+			&& assertEquals("makespan", (int) plan.getLowerBound(), numBatches)
+			&& assertTrue("last batch", lastBatch[0] > 0);
+		try
+		{
+			new RebalancePlanner(current, target).plan(-10, 10, 100, 50);
+			result &= assertTrue("negative ids planned", false);
+		}
+		catch (IllegalArgumentException iae)
+		{
+			// That's what we want.
+		}
+		tearDown(result);
+		return this;
+	}
+
+	public PlasticHashTest testPrepareEpoch()
+	{
+		setUp();
+		final PlasticHash ph = phf.createInstance().addEpoch(5);
+		PreparedEpoch epoch = ph.prepareEpoch(7);
+		boolean result = true
+			&& assertTrue("moved", epoch.getMovedFraction() == 2.0 / 7)
+			&& checkEpochs(ph, 1, 5)
+			&& assertTrue("committed", ph.commit(epoch))
+			&& checkEpochs(ph, 2, 7)
+			&& addEpochs(ph, 4);
+		epoch = ph.prepareEpoch(4);
+		result &= true
+			&& assertEquals("prepared epochs", 1, epoch.getHistory().size())
+			&& assertTrue("committed", ph.commit(epoch))
+			&& checkEpochs(ph, 1, 4);
+		try
+		{
+			ph.commit(epoch);
+			result &= assertTrue("committed twice", false);
+		}
+		catch (IllegalStateException ise)
+		{
+			// That's what we want.
+		}
+		epoch = ph.prepareEpoch(6);
+		ph.abort(epoch);
+		result &= checkEpochs(ph, 1, 4);
+		epoch = ph.prepareEpoch(4);
+		ph.addEpoch(2);
+		result &= true
+			&& assertTrue("out of date", !ph.commit(epoch))
+			&& checkEpochs(ph, 3, 4);
+		// A when algorithm with state decides once, when the epoch is
+		// prepared, and its decision stands even if the epoch is stale.
+		final WhenAlgorithm.OnDemand onDemand = new WhenAlgorithm.OnDemand();
+		final PlasticHash demand = phf.createInstance(onDemand,
+			new WhatAlgorithm.Snap()).addEpoch(5).addEpoch(6);
+		onDemand.setGo(true);
+		epoch = demand.prepareEpoch(7);
+		epoch.getHistory();
+		demand.addEpoch(8);
+		result &= true
+			&& checkEpochs(demand, 3, 8)
+			&& assertTrue("stale", !demand.commit(epoch))
+			&& checkEpochs(demand, 1, 7)
+			&& assertTrue("used up", !onDemand.isGo());
+		// Committing before the background work has got to a when
+		// algorithm with state mustn't lock the two out of each other.
+		final PreparedEpoch late = demand.prepareEpoch(9, task -> {
+			final Thread worker = new Thread(() -> {
+				try
+				{
+					Thread.sleep(50);
+				}
+				catch (InterruptedException ie)
+				{
+					// Run it anyway.
+				}
+				task.run();
+			});
+			worker.setDaemon(true);
+			worker.start();
+		});
+		final Thread committer = new Thread(() -> demand.commit(late));
+		committer.setDaemon(true);
+		committer.start();
+		try
+		{
+			committer.join(3000);
+		}
+		catch (InterruptedException ie)
+		{
+			// Check below.
+		}
+		result &= true
+			&& assertTrue("no deadlock", !committer.isAlive())
+			&& checkEpochs(demand, 2, 9);
+		tearDown(result);
+		return this;
+	}
+
+	public PlasticHashTest testZones()
+	{
+		setUp();
+		final int numRequests = 10000;
+		final ZonedPlasticHash zph = new ZonedPlasticHash(phf.createInstance())
+			.addZone(phf.createInstance().addEpoch(5))
+			.addZone(phf.createInstance().addEpoch(7))
+			.addZone(phf.createInstance(new WhenAlgorithm.Never(),
+				new WhatAlgorithm.Snap()).addEpoch(4));
+		final long[] before = new long[numRequests];
+		final HashSet<Long> used = new HashSet<>();
+		for (int i = 0; i < numRequests; i++)
+		{
+			before[i] = zph.getServer(hash(i));
+			used.add(before[i]);
+		}
+		zph.getZone(1).addEpoch(9);
+		int moved = 0;
+		int movedElsewhere = 0;
+		for (int i = 0; i < numRequests; i++)
+		{
+			final long after = zph.getServer(hash(i));
+			if (after != before[i])
+			{
+				moved++;
+				if (ZonedPlasticHash.zoneOf(before[i]) != 1
+					|| ZonedPlasticHash.zoneOf(after) != 1)
+					movedElsewhere++;
+			}
+		}
+		boolean result = true
+			&& assertEquals("all servers used", 16, used.size())
+			&& assertTrue("some moved", moved > 0)
+			&& assertEquals("moved elsewhere", 0, movedElsewhere)
+			&& assertEquals("local zone", 2, ZonedPlasticHash.zoneOf
+				(zph.getServer(hash(1), 2)))
+			&& assertTrue("in zone", ZonedPlasticHash.serverOf
+				(zph.getServer(hash(1), 2)) < 4);
+		zph.removeZone();
+		final HashSet<Integer> zones = new HashSet<>();
+		for (int i = 0; i < numRequests; i++)
+			zones.add(ZonedPlasticHash.zoneOf(zph.getServer(hash(i))));
+		result &= true
+			&& assertEquals("zones", 2, zph.getNumZones())
+			&& assertEquals("zones used", 2, zones.size());
+		final int negative = ZonedPlasticHash.zoneOf(zph.getServer(-12345L));
+		final int masked = ZonedPlasticHash.zoneOf(
+			zph.getServer(-12345L & Long.MAX_VALUE));
+		result &= true
+			&& assertTrue("negative id", negative < 2)
+			&& assertEquals("sign ignored", masked, negative);
+		try
+		{
+			zph.addZone(phf.createInstance());
+			result &= assertTrue("empty zone added", false);
+		}
+		catch (IllegalArgumentException iae)
+		{
+			result &= assertEquals("zones", 2, zph.getNumZones());
+		}
+		zph.removeZone();
+		try
+		{
+			zph.removeZone();
+			result &= assertTrue("last zone removed", false);
+		}
+		catch (IllegalStateException ise)
+		{
+			result &= true
+				&& assertEquals("zones", 1, zph.getNumZones())
+				&& assertEquals("zone", 0, ZonedPlasticHash.zoneOf
+					(zph.getServer(hash(1))));
+		}
+		tearDown(result);
+		return this;
+	}
+
+	public PlasticHashTest testHotIds()
+	{
+		setUp();
+		final HotIdSketch sketch = new HotIdSketch(4, 1024, 8);
+		final PlasticHash ph = phf.createInstance().addEpoch(5)
+			.setHotIdSketch(sketch);
+		final long[] hot = { 7, 13, 42 };
+		for (int i = 0; i < 5000; i++)
+		{
+			ph.getServer(hash(i));
+			ph.getServer(hot[i % hot.length]);
+		}
+		final long[] hotIds = sketch.getHotIds();
+		final HashSet<Long> top = new HashSet<>();
+		for (int i = 0; i < hot.length; i++)
+			top.add(hotIds[i]);
+		final long[][] byServer = sketch.getHotIdsByServer(ph);
+		boolean result = true
+			&& assertTrue("hot ids found", top.contains(7L)
+				&& top.contains(13L) && top.contains(42L))
+			&& assertTrue("estimate", sketch.estimate(42) >= 1667)
+			&& assertEquals("hot on 3", 13, (int) byServer[3][0])
+			&& assertEquals("before pin", 0, ph.getServer(5))
+			&& assertEquals("pinned", 3, ph.pin(5, 3).getServer(5))
+			&& assertEquals("pinned away", 0, ph.pin(5, 9).getServer(5))
+			&& assertEquals("unpinned", 0, ph.unpin(5).getServer(5));
+		try
+		{
+			ph.pin(5, -1);
+			result &= assertTrue("negative pin", false);
+		}
+		catch (IllegalArgumentException iae)
+		{
+			// That's what we want.
+		}
+		result &= assertEquals("no pins", 0, ph.getPinnedIds().length);
+		ph.pin(-5, 3);
+		sketch.pinHotIds(ph, 4);
+		for (long id : ph.getPinnedIds())
+			result &= assertTrue("manual pin replaced", id != -5);
+		for (long id : sketch.getHotIds())
+			result &= assertEquals("dedicated", 4, ph.getServer(id));
+		sketch.pinHotIds(ph);
+		result &= true
+			&& assertEquals("pins", hotIds.length, ph.getPinnedIds().length)
+			&& assertTrue("spread", ph.getServer(7) != ph.getServer(13)
+				&& ph.getServer(7) != ph.getServer(42)
+				&& ph.getServer(13) != ph.getServer(42));
+		tearDown(result);
+		return this;
+	}
+
+	public PlasticHashTest testLookupCache()
+	{
+		setUp();
+		final LookupCache cache = new LookupCache(1024);
+		final PlasticHash ph = phf.createInstance
+			(new WhenAlgorithm.Never(), new WhatAlgorithm.Snap())
+			.setLookupCache(cache);
+		final PlasticHash uncached = phf.createInstance
+			(new WhenAlgorithm.Never(), new WhatAlgorithm.Snap());
+		boolean result = true;
+		for (int servers : new int[] { 5, 7, 4, 2, 6, 3, 9, 8, 7, 5 })
+		{
+			ph.addEpoch(servers);
+			uncached.addEpoch(servers);
+			for (int round = 0; round < 4; round++)
+				result &= countDifferent(ph, uncached, 512) == 0;
+		}
+		result &= true
+			&& assertTrue("same servers", result)
+			&& assertEquals("lookups", 4 * 512 * 10,
+				(int) (cache.getHits() + cache.getMisses()))
+			&& assertTrue("mostly hit", cache.getHitRate() > 0.7);
+		cache.resetStats();
+		for (int i = 0; i < 1 << 14; i++) // Far more ids than fit.
+			ph.getServer(hash(i));
+		result &= true
+			&& assertTrue("mostly missed", cache.getHitRate() < 0.1)
+			&& assertEquals("still same", 0,
+				countDifferent(ph, uncached, 1 << 14));
+		tearDown(result);
+		return this;
+	}
+
+	public PlasticHashTest testStickyExecutor()
+	{
+		setUp();
+		final PlasticHash ph = phf.createInstance
+			(new WhenAlgorithm.Never(), new WhatAlgorithm.Snap());
+		final int keys = 64;
+		final int rounds = 200;
+		final int[] last = new int[keys];
+		final String[] threads = new String[keys];
+		final AtomicInteger outOfOrder = new AtomicInteger();
+		final StickyExecutor executor = new StickyExecutor(4, ph,
+			Executors.defaultThreadFactory());
+		for (int r = 0; r < rounds; r++)
+		{
+			if (r == 50)
+				executor.resize(6);
+			else if (r == 100)
+				executor.resize(3);
+			else if (r == 150)
+				executor.resize(5);
+			for (int k = 0; k < keys; k++)
+			{
+				final int key = k;
+				final int seq = r + 1;
+				executor.execute(key, () -> {
+					if (last[key] != seq - 1)
+						outOfOrder.incrementAndGet();
+					last[key] = seq;
+					threads[key] = Thread.currentThread().getName();
+				});
+			}
+		}
+		final int epochs = ph.getServerContext().getNumEpochs();
+		boolean result = true;
+		try
+		{
+			executor.resize(0);
+			result &= assertTrue("no workers", false);
+		}
+		catch (IllegalArgumentException iae)
+		{
+			result &= assertEquals("history untouched", epochs,
+				ph.getServerContext().getNumEpochs());
+		}
+		executor.close();
+		result &= true
+			&& assertEquals("in order", 0, outOfOrder.get())
+			&& assertEquals("workers", 5, executor.getNumWorkers());
+		int ran = 0;
+		boolean sticky = true;
+		for (int k = 0; k < keys; k++)
+		{
+			ran += (last[k] == rounds) ? 1 : 0;
+			for (int j = 0; j < k; j++)
+			{
+				sticky &= (ph.getServer(j) == ph.getServer(k))
+					== threads[j].equals(threads[k]);
+			}
+		}
+		result &= true
+			&& assertEquals("all ran", keys, ran)
+			&& assertTrue("same worker, same thread", sticky);
+		try
+		{
+			StickyExecutor.newVirtual(2).close();
+		}
+		catch (UnsupportedOperationException uoe)
+		{
+			log("No virtual threads here: " + uoe.getMessage());
+		}
+		tearDown(result);
+		return this;
+	}
+
+	public PlasticHashTest testPlasticHashMap()
+	{
+		setUp();
+		final PlasticHashMap<Long> map = new PlasticHashMap<>(4,
+			phf.createInstance(new WhenAlgorithm.Always(),
+				new WhatAlgorithm.Squeeze()),
+			r -> new Thread(r).start());
+		final int n = 10000;
+		for (int i = 0; i < n; i++)
+			map.put(i, (long) i);
+		final int[] before = new int[4];
+		for (int s = 0; s < 4; s++)
+			before[s] = map.getShardSize(s);
+		// Keep writing from another thread while the keys move.
+		final Thread writer = new Thread(() -> {
+			for (int i = n; i < 2 * n; i++)
+				map.put(i, (long) i);
+		});
+		writer.start();
+		map.resize(5);
+		int wrong = 0;
+		for (int i = 0; i < n; i++)
+			wrong += (map.get(i) == i) ? 0 : 1;
+		try
+		{
+			writer.join();
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+		}
+		map.awaitMigration();
+		boolean onlyOut = true;
+		int moved = 0;
+		for (int s = 0; s < 4; s++)
+		{
+			onlyOut &= map.getShardSize(s) <= 2 * before[s];
+			moved += 2 * before[s] - map.getShardSize(s);
+		}
+		for (int i = 0; i < 2 * n; i++)
+			wrong += (map.get(i) == i) ? 0 : 1;
+		boolean result = true
+			&& assertEquals("readable while moving", 0, wrong)
+			&& assertEquals("size", 2 * n, map.size())
+			&& assertTrue("done", !map.isMigrating())
+			&& assertTrue("only out of old shards", onlyOut)
+			&& assertEquals("moved to new shard", map.getShardSize(4), moved);
+		map.resize(3).awaitMigration();
+		for (int i = 0; i < 2 * n; i += 2)
+			map.remove(i);
+		for (int i = 0; i < 2 * n; i++)
+		{
+			final Long value = map.get(i);
+			wrong += ((i % 2 == 0) ? value == null : value == i) ? 0 : 1;
+		}
+		result &= true
+			&& assertEquals("shrunk", 3, map.getNumShards())
+			&& assertEquals("still right", 0, wrong)
+			&& assertEquals("size after removal", n, map.size())
+			&& assertEquals("shards add up", n, map.getShardSize(0)
+				+ map.getShardSize(1) + map.getShardSize(2));
+		tearDown(result);
+		return this;
+	}
+
+	public PlasticHashTest testProxy()
+	{
+		setUp();
+		boolean result = true;
+		final List<EchoServer> echoes = new ArrayList<>();
+		try (StickyProxy proxy = new StickyProxy(0, phf.createInstance(),
+			StickyProxy.IdSource.HEADER, 4096))
+		{
+			final List<InetSocketAddress> addresses = new ArrayList<>();
+			for (int i = 0; i < 3; i++)
+			{
+				echoes.add(new EchoServer());
+				addresses.add(echoes.get(i).getAddress());
+			}
+			proxy.setBackends(addresses.subList(0, 2)).start();
+			final LoadGenerator generator = new LoadGenerator(
+				new InetSocketAddress(InetAddress.getLoopbackAddress(),
+					proxy.getPort()), 8, 256);
+			final int[] expected = new int[3];
+			for (long id = 0; id < 8; id++)
+				expected[addresses.indexOf(proxy.getBackend(id))]++;
+			final LoadGenerator.Result before =
+				generator.run(Duration.ofMillis(200));
+			proxy.setBackends(addresses);
+			for (long id = 0; id < 8; id++)
+				expected[addresses.indexOf(proxy.getBackend(id))]++;
+			final LoadGenerator.Result after =
+				generator.run(Duration.ofMillis(200));
+			log(before + " / " + after);
+			int wrong = 0;
+			for (int i = 0; i < 3; i++)
+			{
+				wrong += Math.abs
+					(expected[i] - echoes.get(i).getNumConnections());
+			}
+			result &= true
+				&& assertTrue("round trips", before.getNumRoundTrips() > 0
+					&& after.getNumRoundTrips() > 0)
+				&& assertEquals("connections", 16,
+					(int) proxy.getNumConnections())
+				&& assertEquals("sticky backends", 0, wrong)
+				&& assertTrue("new backend used", expected[2] > 0);
+		}
+		catch (IOException ioe)
+		{
+			result = assertTrue("proxy failed: " + ioe, false);
+		}
+		finally
+		{
+			for (EchoServer echo : echoes)
+				echo.close();
+		}
+		// A client with nowhere to go is hung up on, and only that client.
+		try (StickyProxy proxy = new StickyProxy(0, phf.createInstance(),
+			StickyProxy.IdSource.ADDRESS, 4096).start();
+			EchoServer echo = new EchoServer())
+		{
+			final InetSocketAddress address = new InetSocketAddress
+				(InetAddress.getLoopbackAddress(), proxy.getPort());
+			try (Socket socket = new Socket())
+			{
+				socket.connect(address, 1000);
+				socket.setSoTimeout(1000);
+				result &= assertEquals("hung up", -1,
+					socket.getInputStream().read());
+			}
+			proxy.setBackends(List.of(echo.getAddress()));
+			try (Socket socket = new Socket())
+			{
+				socket.connect(address, 1000);
+				socket.setSoTimeout(1000);
+				socket.getOutputStream().write(42);
+				result &= assertEquals("still proxying", 42,
+					socket.getInputStream().read());
+			}
+			// A client that breaks is reported as itself, not as a hole in
+			// the results.
+			try
+			{
+				new LoadGenerator(address, 1, -1).run(Duration.ofMillis(10));
+				result &= assertTrue("bad client", false);
+			}
+			catch (IllegalStateException ise)
+			{
+				result &= assertTrue("cause", ise.getCause()
+					instanceof IllegalArgumentException);
+			}
+		}
+		catch (IOException ioe)
+		{
+			result = assertTrue("proxy failed: " + ioe, false);
+		}
+		tearDown(result);
+		return this;
+	}
+
+	public PlasticHashTest testRouters()
+	{
+		setUp();
+		boolean result = true;
+		final Router[] routers = { phf.createInstance(), new Router.Jump(),
+			new Router.Rendezvous(), new Router.Ring(), new Router.Maglev() };
+		for (Router router : routers)
+		{
+			// On growth, ids may only move to the new server.
+			router.addEpoch(5);
+			final int[] before = new int[1000];
+			for (int i = 0; i < before.length; i++)
+				before[i] = router.getServer(hash(i));
+			router.addEpoch(6);
+			int strays = 0;
+			for (int i = 0; i < before.length; i++)
+			{
+				final int server = router.getServer(hash(i));
+				if (server != before[i] && server != 5)
+					strays++;
+			}
+			// Maglev gives up a little of this for its even table.
+			result &= (router instanceof Router.Maglev)
+				? assertTrue(router + " few strays", strays < 20)
+				: assertEquals(router + " strays", 0, strays);
+		}
+		final RouterComparison comparison =
+			new RouterComparison(new int[] { 5, 6, 4, 8 }, 20000, 1);
+		final RouterComparison.Result jump =
+			comparison.run(Router.Jump::new, 0);
+		final RouterComparison.Result maglev =
+			comparison.run(Router.Maglev::new, 0);
+		log("Jump " + jump + ", Maglev " + maglev);
+		result &= true
+			&& assertTrue("jump moves least", jump.getMovedRatio() < 1.1)
+			&& assertTrue("jump is even", jump.getImbalance() < 1.1)
+			&& assertTrue("maglev is even", maglev.getImbalance() < 1.1)
+			&& assertTrue("throughput", jump.getThroughput() > 0);
+		// A table that isn't prime would trap some servers in part of it.
+		try
+		{
+			new Router.Maglev(65536);
+			result &= assertTrue("not prime", false);
+		}
+		catch (IllegalArgumentException iae)
+		{
+			// That's what we want.
+		}
+		result &= assertTrue("small prime", new Router.Maglev(7).addEpoch(7)
+			.getServer(42) < 7);
+		tearDown(result);
+		return this;
+	}
+
+	public PlasticHashTest testAge()
+	{
+		setUp();
+		final TestClock clock = new TestClock();
+		final PlasticHash ph = phf.createInstance(new WhenAlgorithm.Always(),
+			new WhatAlgorithm.Age(Duration.ofMinutes(10)), clock);
+		final ServerContext sc = ph.getServerContext();
+		final long minute = Duration.ofMinutes(1).toMillis();
+		for (int servers : new int[] { 5, 7, 4 })
+		{
+			ph.addEpoch(servers);
+			clock.advance(Duration.ofMinutes(1));
+		}
+		boolean result = checkEpochs(ph, 3, 4);
+		// Recent clients stay where they are as the first epochs age out.
+		final PlasticHash recent = phf.createInstance
+			(new WhenAlgorithm.Never(), new WhatAlgorithm.Snap());
+		addEpochs(recent, 7, 4, 6);
+		clock.advance(Duration.ofMinutes(8));
+		ph.addEpoch(6);
+		result &= true
+			&& checkEpochs(ph, 3, 6)
+			&& assertEquals("base kept", 7, sc.getHistory().get(0))
+			&& assertEquals("times aligned", (int) minute,
+				(int) sc.getEpochTimes()[0])
+			&& assertEquals("latest time", (int) (11 * minute),
+				(int) sc.getEpochTimes()[2])
+			&& assertEquals("recent intact", 0,
+				countDifferent(ph, recent, 1000));
+		// Left alone long enough, only the last epoch is left.
+		clock.advance(Duration.ofMinutes(30));
+		ph.reconsider();
+		result &= true
+			&& checkEpochs(ph, 1, 6)
+			&& assertEquals("one time", 1, sc.getEpochTimes().length);
+		// Times follow the end of the history through other compactions.
+		final ServerContext squeezed = new ServerContext(clock);
+		for (int servers : new int[] { 5, 5, 7 })
+		{
+			squeezed.addEpoch(servers);
+			clock.advance(Duration.ofMinutes(1));
+		}
+		new WhatAlgorithm.Squeeze().invoke(squeezed);
+		result &= true
+			&& checkEpochs(squeezed, 2, 7)
+			&& assertEquals("younger, never older", (int) (42 * minute),
+				(int) squeezed.getEpochTimes()[0]);
+		// Without a clock or an algorithm that needs them, epochs aren't
+		// timed until somebody asks.
+		final ServerContext untimed = new ServerContext(null, clock);
+		untimed.addEpoch(5);
+		clock.advance(Duration.ofMinutes(1));
+		untimed.addEpoch(6);
+		final long[] times = untimed.getEpochTimes();
+		result &= assertEquals("timed on demand", 0,
+			(int) (times[1] - times[0]));
+		tearDown(result);
+		return this;
+	}
+
+	public PlasticHashTest testRoutingLog()
+	{
+		setUp();
+		final TestClock clock = new TestClock();
+		final PlasticHash ph = phf.createInstance(new WhenAlgorithm.Never(),
+			new WhatAlgorithm.Halve(), clock);
+		final ServerContext sc = ph.getServerContext();
+		final RoutingLog log = new RoutingLog(ph, 100, null);
+		final List<PlasticHash> past = new ArrayList<>();
+		final List<Long> versions = new ArrayList<>();
+		for (int servers : new int[] { 5, 7, 4, 9, 6, 8 })
+		{
+			clock.advance(Duration.ofMinutes(1));
+			ph.addEpoch(servers);
+			final PlasticHash copy = phf.createInstance
+				(new WhenAlgorithm.Never(), new WhatAlgorithm.Snap());
+			copy.getServerContext().replaceHistory(sc.getHistory());
+			past.add(copy);
+			versions.add(sc.getVersion());
+		}
+		// Halving cuts from the front, which costs no tape at all.
+		clock.advance(Duration.ofMinutes(1));
+		new WhatAlgorithm.Halve().invoke(sc);
+		int wrong = 0;
+		for (int v = 0; v < past.size(); v++)
+		{
+			final long minute = Duration.ofMinutes(v + 1).toMillis();
+			for (int i = 0; i < 500; i++)
+			{
+				final long id = hash(i);
+				final int server = past.get(v).getServer(id);
+				wrong += (log.getServerAtVersion(id, versions.get(v))
+					== server) ? 0 : 1;
+				wrong += (log.getServerAtTime(id, minute + 1000)
+					== server) ? 0 : 1;
+			}
+		}
+		boolean result = true
+			&& assertEquals("past servers", 0, wrong)
+			&& assertEquals("before anything", -1,
+				log.getServerAtTime(7, 0))
+			&& assertEquals("current", ph.getServer(7),
+				log.getServerAtVersion(7, Long.MAX_VALUE))
+			&& assertEquals("versions", 8, log.getNumVersions())
+			&& assertEquals("compact tape", 6, log.getTapeSize());
+		// Only the latest versions are kept, and the tape follows.
+		final RoutingLog recent =
+			new RoutingLog(ph, 3, Duration.ofMinutes(5));
+		for (int i = 0; i < 100; i++)
+		{
+			clock.advance(Duration.ofMinutes(1));
+			ph.addEpoch(3 + i % 5);
+			new WhatAlgorithm.Halve().invoke(sc);
+		}
+		result &= true
+			&& assertEquals("retained", 3, recent.getNumVersions())
+			&& assertTrue("bounded tape", recent.getTapeSize() < 20)
+			&& assertEquals("forgotten", -1,
+				recent.getServerAtVersion(7, recent.getOldestVersion() - 1))
+			&& assertEquals("remembered", ph.getServer(7),
+				recent.getServerAtTime(7, clock.millis()));
+		log.close();
+		recent.close();
+		tearDown(result);
+		return this;
+	}
+
+	public PlasticHashTest testStress()
+	{
+		setUp();
+		final List<StressHarness.Result> results = new StressHarness
+			(() -> phf.createInstance(new WhenAlgorithm.Always(),
+				new WhatAlgorithm.Anneal()), Thread::new)
+			.setStep(Duration.ofMillis(200)).setFleet(2, 12).run(1, 2);
+		boolean result = assertEquals("steps", 2, results.size());
+		for (StressHarness.Result r : results)
+		{
+			log(r.toString());
+			result &= true
+				&& assertTrue("violations", r.getViolations() == 0)
+				&& assertTrue("lookups", r.getLookups() > 0);
+		}
+		tearDown(result);
+		return this;
+	}
+
+	public PlasticHashTest testConnected()
+	{
+		setUp();
+		final RequestMeter meter = new RequestMeter();
+		final PlasticHash ph = phf.createInstance
+			(new WhenAlgorithm.Never(), new WhatAlgorithm.Snap())
+			.setRequestMeter(meter);
+		ph.addEpoch(10).addEpoch(12).addEpoch(11);
+		final ServerContext sc = ph.getServerContext();
+		final EpochHistory snapped = new EpochHistory(new int[] { 11 });
+		// Connect only clients that snapping wouldn't move, though it moves
+		// plenty of the id space.
+		final ConnectionRegistry registry = new ConnectionRegistry(ph);
+		int spaceMoved = 0;
+		for (int i = 0; i < 4000; i++)
+		{
+			final long id = hash(i);
+			if (snapped.getServer(id) == ph.getServer(id))
+				registry.register(id);
+			else
+				spaceMoved++;
+		}
+		registry.register(0L);
+		final int connected = registry.size();
+		boolean result = true
+			&& assertTrue("space moves", spaceMoved > 100)
+			&& assertEquals("nobody moves", 0, registry.countMoved(snapped))
+			&& assertEquals("same server", ph.getServer(0),
+				registry.getServer(0L))
+			&& assertTrue("unregistered", registry.unregister(0L))
+			&& assertTrue("twice", !registry.unregister(0L))
+			&& assertEquals("size", connected - 1, registry.size())
+			// Only the lookups above count, not the registry's own.
+			&& assertEquals("not requests", 4001, (int) meter.getCount());
+		new WhatAlgorithm.Trim(0).invoke(sc);
+		result &= assertEquals("trim keeps", 3, sc.getNumEpochs());
+		new WhatAlgorithm.Connected(registry, 0).invoke(sc);
+		result &= assertEquals("connected snaps", 1, sc.getNumEpochs());
+		// Once clients sit where snapping would move them, only a budget
+		// lets the history shrink.
+		ph.addEpoch(8);
+		final ConnectionRegistry all = new ConnectionRegistry(ph);
+		for (int i = 0; i < 4000; i++)
+			all.register(hash(i));
+		new WhatAlgorithm.Connected(all, 0).invoke(sc);
+		result &= assertEquals("kept", 2, sc.getNumEpochs());
+		new WhatAlgorithm.Connected(all, 1).invoke(sc);
+		result &= true
+			&& assertEquals("budget snaps", 1, sc.getNumEpochs())
+			&& assertTrue("moved", all.countMoved(sc.getHistory()) > 0)
+			&& assertEquals("snapshot", all.countMoved(snapped), all.snapshot()
+				.countMoved(snapped, Integer.MAX_VALUE));
+		tearDown(result);
+		return this;
+	}
+
+	public PlasticHashTest testReverseIndex()
+	{
+		setUp();
+		final PlasticHash ph = phf.createInstance
+			(new WhenAlgorithm.Never(), new WhatAlgorithm.Snap());
+		ph.addEpoch(10).addEpoch(12).addEpoch(11).addEpoch(7);
+		boolean result = true;
+		for (int server = 0; server < 7; server++)
+		{
+			final int s = server;
+			final long[] expected = LongStream.range(1000, 50000)
+				.filter(id -> ph.getServer(id) == s).toArray();
+			result &= Arrays.equals(expected,
+				ph.getIds(server, 1000, 50000).toArray());
+			result &= ph.getIds(server, 1000, 50000).parallel().sum()
+				== LongStream.of(expected).sum();
+			result &= ph.getIds(server, 1000, 50000).spliterator()
+				.getExactSizeIfKnown() == expected.length;
+		}
+		final long top = Long.MAX_VALUE - 5000;
+		result = true
+			&& assertTrue("every server", result)
+			&& assertEquals("none elsewhere", 0,
+				(int) ph.getIds(7, 0, 1000).count())
+			&& assertTrue("short range", Arrays.equals(LongStream.range(7, 40)
+				.filter(id -> ph.getServer(id) == 3).toArray(),
+				ph.getIds(3, 7, 40).toArray()))
+			&& assertEquals("empty range", 0,
+				(int) ph.getIds(3, 500, 500).count())
+			&& assertEquals("near the top", (int) LongStream
+				.range(top, Long.MAX_VALUE).filter(id -> ph.getServer(id) == 2)
+				.count(), (int) ph.getIds(2, top, Long.MAX_VALUE).count())
+			&& assertTrue("all ids", ph.getIds(0, 0, 1 << 20).allMatch
+				(id -> ph.getServer(id) == 0));
+		tearDown(result);
+		return this;
+	}
+
+	public PlasticHashTest testPipeline()
+	{
+		setUp();
+		final WhatAlgorithm[] library = { new WhatAlgorithm.Squeeze(),
+			new WhatAlgorithm.Snap(), new WhatAlgorithm.Halve(),
+			new WhatAlgorithm.Spring(), new WhatAlgorithm.Anneal() };
+		// Every fused stage leaves what the algorithm itself would.
+		int wrong = 0;
+		for (int t = 0; t < 500; t++)
+		{
+			final List<Integer> N = new ArrayList<>();
+			for (int i = 0, size = 1 + t % 9; i < size; i++)
+				N.add(1 + (int) ((hash(t * 16 + i) >>> 1) % 5));
+			for (WhatAlgorithm what : library)
+			{
+				final ServerContext expected =
+					new ServerContext().replaceAllEpochs(N);
+				what.invoke(expected);
+				final ServerContext actual =
+					new ServerContext().replaceAllEpochs(N);
+				new WhatAlgorithm.Pipeline(what).invoke(actual);
+				wrong += expected.getAllEpochs()
+					.equals(actual.getAllEpochs()) ? 0 : 1;
+			}
+		}
+		final List<Integer> N = List.of(4, 4, 6, 5, 5, 8, 6, 6, 7, 5, 7);
+		final ServerContext chained = new ServerContext().replaceAllEpochs(N);
+		new WhatAlgorithm.Squeeze().invoke(chained);
+		new WhatAlgorithm.Spring().invoke(chained);
+		new WhatAlgorithm.Trim(0).invoke(chained);
+		final ServerContext fused = new ServerContext().replaceAllEpochs(N);
+		final WhatAlgorithm.Pipeline pipeline = new WhatAlgorithm.Pipeline
+			(new WhatAlgorithm.Squeeze(), new WhatAlgorithm.Spring(),
+				new WhatAlgorithm.Trim(0));
+		final long version = fused.getVersion();
+		pipeline.invoke(fused);
+		boolean result = true
+			&& assertEquals("fused stages", 0, wrong)
+			&& assertTrue("chained",
+				chained.getAllEpochs().equals(fused.getAllEpochs()))
+			&& assertTrue("one change", fused.getVersion() == version + 1)
+			&& assertTrue("stage sizes", Arrays.equals(new int[] { 11, 8, 6,
+				fused.getNumEpochs() }, pipeline.getStageSizes()));
+		// Nothing changes, nothing is published.
+		pipeline.invoke(fused);
+		result &= assertTrue("no change", fused.getVersion() == version + 1);
+		// Large server counts are compared as numbers, not boxes.
+		final ServerContext large = createServerContext(500, 500, 600, 600);
+		new WhatAlgorithm.Squeeze().invoke(large);
+		result &= checkEpochs(large, 2, 600);
+		tearDown(result);
+		return this;
+	}
+
+	public PlasticHashTest testHistoryPublisher()
+	{
+		setUp();
+		final PlasticHash ph = phf.createInstance
+			(new WhenAlgorithm.Never(), new WhatAlgorithm.Snap());
+		ph.addEpoch(10);
+		final HistoryPublisher publisher = new HistoryPublisher(ph);
+		final List<HistoryPublisher.Change> changes =
+			Collections.synchronizedList(new ArrayList<>());
+		final CountDownLatch done = new CountDownLatch(1);
+		publisher.subscribe(new Flow.Subscriber<HistoryPublisher.Change>()
+		{
+			public void onSubscribe(final Flow.Subscription subscription)
+			{
+				subscription.request(Long.MAX_VALUE);
+			}
+
+			public void onNext(final HistoryPublisher.Change change)
+			{
+				changes.add(change);
+			}
+
+			public void onError(final Throwable t)
+			{
+			}
+
+			public void onComplete()
+			{
+				done.countDown();
+			}
+		});
+		ph.addEpoch(12).addEpoch(11);
+		new WhatAlgorithm.Snap().invoke(ph.getServerContext());
+		publisher.close();
+		boolean isCompleted = false;
+		try
+		{
+			isCompleted = done.await(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+		}
+		boolean result = true
+			&& assertTrue("completed", isCompleted)
+			&& assertEquals("changes", 3, changes.size());
+		int wrong = 0;
+		for (int c = 0; c < changes.size(); c++)
+		{
+			final HistoryPublisher.Change change = changes.get(c);
+			wrong += (change.getOldVersion() == c + 1
+				&& change.getNewVersion() == c + 2) ? 0 : 1;
+			final int[] moved = change.getMovedResidues();
+			final int L = change.getPeriod();
+			for (int i = 0; i < 1000; i++)
+			{
+				final long id = hash(i);
+				final boolean isMoved = Arrays.binarySearch
+					(moved, (int) (id % L)) >= 0;
+				wrong += (isMoved == change.isMoved(id)) ? 0 : 1;
+			}
+			wrong += (IntStream.of(change.getLost()).sum() == moved.length
+				&& IntStream.of(change.getGained()).sum() == moved.length)
+				? 0 : 1;
+		}
+		result &= true
+			&& assertEquals("consistent", 0, wrong)
+			&& assertEquals("growth only fills new servers", 0, IntStream
+				.of(changes.get(0).getGained()).limit(10).sum());
+		// A history that ends in zero servers sends everything to server 0.
+		final HistoryPublisher.Change drained = new HistoryPublisher.Change
+			(1, 2, 0, new EpochHistory(new int[] { 4 }),
+			new EpochHistory(new int[] { 4, 0 }));
+		result &= true
+			&& assertEquals("drained period", 4, drained.getPeriod())
+			&& assertEquals("drained lost", 3, IntStream
+				.of(drained.getLost()).sum())
+			&& assertEquals("drained gained", 3, drained.getGained()[0])
+			&& assertEquals("drained servers", 1, drained.getGained().length);
+		// A subscriber that falls behind loses events, but never holds up
+		// changes to the history.
+		final HistoryPublisher slow = new HistoryPublisher(ph,
+			Executors.newSingleThreadExecutor(r -> {
+				final Thread t = new Thread(r);
+				t.setDaemon(true);
+				return t;
+			}), 1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<Long> seen = Collections.synchronizedList(new ArrayList<>());
+		slow.subscribe(new Flow.Subscriber<HistoryPublisher.Change>()
+		{
+			public void onSubscribe(final Flow.Subscription subscription)
+			{
+				subscription.request(Long.MAX_VALUE);
+			}
+
+			public void onNext(final HistoryPublisher.Change change)
+			{
+				seen.add(change.getOldVersion());
+				try
+				{
+					release.await();
+				}
+				catch (InterruptedException ie)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			public void onError(final Throwable t)
+			{
+			}
+
+			public void onComplete()
+			{
+			}
+		});
+		final long start = System.nanoTime();
+		for (int i = 0; i < 100; i++)
+			ph.addEpoch(5 + i % 7);
+		final long elapsed = System.nanoTime() - start;
+		release.countDown();
+		slow.close();
+		result &= true
+			&& assertTrue("dropped", slow.getDropped() > 0)
+			&& assertTrue("not held up", elapsed < 1000000000L);
+		tearDown(result);
+		return this;
+	}
+
+	public PlasticHashTest testPartition()
+	{
+		setUp();
+		final PlasticHash ph = phf.createInstance
+			(new WhenAlgorithm.Never(), new WhatAlgorithm.Snap());
+		ph.addEpoch(10).addEpoch(13).addEpoch(12);
+		final int n = 200000;
+		final long[] ids = new long[n];
+		for (int i = 0; i < n; i++)
+			ids[i] = hash(i) >>> 1;
+		final Partition partition = ph.partition(ids);
+		// Every id lands with its server, in the order it came in.
+		final int[] seen = new int[12];
+		int wrong = 0;
+		for (long id : ids)
+		{
+			final int s = ph.getServer(id);
+			wrong += (partition.getIds(s).get(seen[s]++) == id) ? 0 : 1;
+		}
+		for (int s = 0; s < 12; s++)
+			wrong += (seen[s] == partition.getCount(s)) ? 0 : 1;
+		final LongBuffer buffer = LongBuffer.allocate(n + 2);
+		buffer.put(7).put(ids).flip().get();
+		final Partition fromBuffer = ph.partition(buffer);
+		final Partition fromStream = ph.partition(LongStream.of(ids));
+		boolean result = true
+			&& assertEquals("grouped", 0, wrong)
+			&& assertEquals("servers", 12, partition.getNumServers())
+			&& assertEquals("all", n, partition.getPackedIds().remaining())
+			&& assertTrue("buffer", Arrays.equals(partition.getOffsets(),
+				fromBuffer.getOffsets())
+				&& partition.getPackedIds().equals(fromBuffer.getPackedIds()))
+			&& assertEquals("consumed", 0, buffer.remaining())
+			&& assertTrue("stream",
+				partition.getPackedIds().equals(fromStream.getPackedIds()))
+			&& assertEquals("small", 1, ph.partition(new long[] { 5 })
+				.getCount(ph.getServer(5)));
+		try
+		{
+			phf.createInstance().addEpoch(4).addEpoch(0).partition(ids);
+			result &= assertTrue("partitioned over no servers", false);
+		}
+		catch (IllegalStateException ise)
+		{
+			// That's what we want.
+		}
+		tearDown(result);
+		return this;
+	}
+
+	public PlasticHashTest testClientRouter()
+	{
+		setUp();
+		final PlasticHash ph = phf.createInstance
+			(new WhenAlgorithm.Never(), new WhatAlgorithm.Snap());
+		ph.addEpoch(10).addEpoch(12);
+		boolean result = true;
+		Path dir = null;
+		try (SnapshotExporter exporter = new SnapshotExporter(ph))
+		{
+			dir = Files.createTempDirectory("plastichash");
+			final Path file = dir.resolve("snapshot");
+			exporter.exportTo(file).listen(0);
+			final ClientRouter fromFile =
+				new ClientRouter(ClientRouter.fromFile(file));
+			final ClientRouter fromEndpoint = new ClientRouter
+				(ClientRouter.fromEndpoint(exporter.getAddress()));
+			result &= true
+				&& assertEquals("nothing yet", -1, fromFile.getServer(7))
+				&& assertTrue("file", fromFile.refresh())
+				&& assertTrue("endpoint", fromEndpoint.refresh())
+				&& assertTrue("same version", !fromFile.refresh());
+			ph.addEpoch(11);
+			// The file is written in the background, so give it a moment.
+			for (int i = 0; i < 100 && fromFile.getVersion()
+				!= ph.getServerContext().getVersion(); i++)
+			{
+				Thread.sleep(10);
+				fromFile.refresh();
+			}
+			int wrong = 0;
+			for (int i = 0; i < 1000; i++)
+			{
+				final long id = hash(i) >>> 1;
+				wrong += (fromFile.getServer(id) == ph.getServer(id)) ? 0 : 1;
+			}
+			result &= true
+				&& assertTrue("new version", fromEndpoint.refresh())
+				&& assertEquals("file routes", 0, wrong)
+				&& assertTrue("same snapshot",
+					fromFile.getSnapshot().equals(fromEndpoint.getSnapshot()))
+				&& assertTrue("round trip", Snapshot.parse(fromFile
+					.getSnapshot().format()).equals(fromFile.getSnapshot()));
+			fromFile.close();
+			fromEndpoint.close();
+		}
+		catch (IOException | InterruptedException e)
+		{
+			result = assertTrue(e.toString(), false);
+		}
+		finally
+		{
+			if (dir != null)
+			{
+				dir.resolve("snapshot").toFile().delete();
+				dir.toFile().delete();
+			}
+		}
+		// Clients can't follow pins, so pinned instances aren't exported.
+		try
+		{
+			new SnapshotExporter(phf.createInstance().addEpoch(4).pin(7, 1))
+				.close();
+			result &= assertTrue("pins exported", false);
+		}
+		catch (IllegalArgumentException iae)
+		{
+			// That's what we want.
+		}
+		// A source that fails leaves the router where it was.
+		final ClientRouter broken = new ClientRouter(() -> {
+			throw new IOException("Nobody home");
+		});
+		result &= true
+			&& assertTrue("no switch", !broken.refresh())
+			&& assertTrue("failure counted", broken.getFailures() == 1);
+		// Versions only go forward, until the owner restarts.
+		final Snapshot[] served = { Snapshot.parse("plastichash 1 5 10 12") };
+		final ClientRouter router = new ClientRouter(() -> served[0]);
+		result &= assertTrue("first", router.refresh());
+		served[0] = Snapshot.parse("plastichash 1 4 10");
+		result &= true
+			&& assertTrue("no step back", !router.refresh())
+			&& assertEquals("kept", 12, router.getSnapshot().getLastEpoch());
+		served[0] = Snapshot.parse("plastichash 2 0 10");
+		result &= true
+			&& assertTrue("restarted", router.refresh())
+			&& assertEquals("switched", 10,
+				router.getSnapshot().getLastEpoch());
+		tearDown(result);
+		return this;
+	}
+
+	public PlasticHashTest testDebouncer()
+	{
+		setUp();
+		final TestClock clock = new TestClock();
+		final PlasticHash ph = phf.createInstance(new WhenAlgorithm.Never(),
+			new WhatAlgorithm.Snap(), clock);
+		ph.addEpoch(20);
+		final EpochDebouncer debouncer =
+			new EpochDebouncer(ph, Duration.ofSeconds(30));
+		// A flap there and back commits nothing.
+		debouncer.propose(19);
+		clock.advance(Duration.ofSeconds(5));
+		debouncer.propose(20);
+		clock.advance(Duration.ofMinutes(1));
+		boolean result = true
+			&& assertTrue("no tick", !debouncer.tick())
+			&& assertEquals("flap", 1, ph.getServerContext().getNumEpochs())
+			&& assertEquals("cancelled", 1, (int) debouncer.getCancelled());
+		// A count that holds still through the window gets committed, and
+		// only the last of several quick changes.
+		debouncer.propose(22);
+		clock.advance(Duration.ofSeconds(10));
+		debouncer.propose(24);
+		clock.advance(Duration.ofSeconds(20));
+		result &= true
+			&& assertTrue("not settled", !debouncer.tick())
+			&& assertEquals("held", 24, debouncer.getPending());
+		clock.advance(Duration.ofSeconds(10));
+		result &= true
+			&& assertTrue("settled", debouncer.tick())
+			&& assertEquals("committed", 24,
+				ph.getServerContext().getLastEpoch())
+			&& assertEquals("epochs", 2, ph.getServerContext().getNumEpochs());
+		// A server that's really gone doesn't wait.
+		debouncer.propose(26);
+		debouncer.urgent(23);
+		result &= true
+			&& assertEquals("urgent", 23,
+				ph.getServerContext().getLastEpoch())
+			&& assertEquals("nothing held", -1, debouncer.getPending())
+			&& assertEquals("suppressed", 3, (int) debouncer.getSuppressed())
+			&& assertEquals("commits", 2, (int) debouncer.getCommits())
+			&& assertEquals("proposals", 6, (int) debouncer.getProposals());
+		// An epoch added straight to the instance overtakes the same count
+		// held back.
+		debouncer.propose(25);
+		ph.addEpoch(25);
+		clock.advance(Duration.ofMinutes(1));
+		result &= true
+			&& assertTrue("overtaken", !debouncer.tick())
+			&& assertEquals("not again", 4,
+				ph.getServerContext().getNumEpochs())
+			&& assertEquals("dropped", -1, debouncer.getPending())
+			&& assertEquals("cancelled again", 2,
+				(int) debouncer.getCancelled());
+		try
+		{
+			debouncer.propose(0);
+			result &= assertTrue("no servers proposed", false);
+		}
+		catch (IllegalArgumentException iae)
+		{
+			result &= assertEquals("still proposals", 7,
+				(int) debouncer.getProposals());
+		}
+		try
+		{
+			debouncer.urgent(-1);
+			result &= assertTrue("no servers urgent", false);
+		}
+		catch (IllegalArgumentException iae)
+		{
+			result &= assertEquals("still there", 25,
+				ph.getServerContext().getLastEpoch());
+		}
+		tearDown(result);
+		return this;
+	}
+
 	public PlasticHashTest testWhatWhenCombinations()
 	{
 		return this
@@ -755,6 +2393,31 @@ public class PlasticHashTest
 	{
 		new PlasticHashTest() // fast-fail is true by default.
 			.testBasicFunctionality()
-			.testWhatWhenCombinations();
+			.testWhatWhenCombinations()
+			.testRegistry()
+			.testTrim()
+			.testLatencyBudget()
+			.testLowTraffic()
+			.testComposites()
+			.testRollout()
+			.testRebalancePlanner()
+			.testPrepareEpoch()
+			.testZones()
+			.testHotIds()
+			.testLookupCache()
+			.testStickyExecutor()
+			.testPlasticHashMap()
+			.testProxy()
+			.testRouters()
+			.testAge()
+			.testRoutingLog()
+			.testStress()
+			.testConnected()
+			.testReverseIndex()
+			.testPipeline()
+			.testHistoryPublisher()
+			.testPartition()
+			.testClientRouter()
+			.testDebouncer();
 	}
 }
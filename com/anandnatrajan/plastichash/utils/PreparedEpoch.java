@@ -0,0 +1,172 @@
+package com.anandnatrajan.plastichash.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * An epoch that has been prepared, but not yet committed, on a plastic
+ * hash instance. Preparing runs the when/what algorithms on a copy of the
+ * server context in the background, working out the configuration history
+ * the epoch will lead to, and how many clients it will move. Committing
+ * then only has to swap the new history in. Note that the when algorithm
+ * makes its decision at prepare time, so whatever state it keeps is
+ * updated then, even if the epoch is later aborted. A when algorithm with
+ * state of its own is asked with the plastic hash instance locked, so
+ * that it never races with epochs being added meanwhile; the what
+ * algorithm runs unlocked, on the copy.
+ *
+ * @author Anand Natrajan
+ */
+public class PreparedEpoch
+{
+	private final PlasticHash owner;
+	private final int n;
+	private final ServerContext scratch;
+	private final long baseVersion;
+	private final CompletableFuture<Void> future;
+	// Worked out in the background; safe to read once the future is done.
+	private EpochHistory next;
+	private boolean isWhen;
+	private double movedFraction;
+	// Whether this epoch has been committed or aborted.
+	private volatile boolean isClosed;
+
+	PreparedEpoch(final PlasticHash owner, final int n,
+		final ServerContext sc, final WhenAlgorithm when,
+		final WhatAlgorithm what, final Executor executor)
+	{
+		this.owner = owner;
+		this.n = n;
+		this.scratch = sc.copy();
+		this.baseVersion = scratch.getVersion();
+		this.future = CompletableFuture.runAsync(() ->
+		{
+			final EpochHistory before = scratch.getHistory();
+			scratch.addEpoch(n);
+			if (when.isStateless())
+				isWhen = when.invoke(scratch);
+			else
+			{
+				synchronized (owner)
+				{
+					isWhen = when.invoke(scratch);
+				}
+			}
+			if (isWhen)
+				what.invoke(scratch);
+			next = scratch.getHistory();
+			final int L = Residues.period(before, next, Residues.MAX_PERIOD);
+			movedFraction = (before.size() == 0) ? 0 : (L < 0) ? -1
+				: (double) Residues.countMoved(Residues.servers(before, L),
+				next, L) / L;
+		}, executor);
+	}
+
+	/**
+	 * Get the plastic hash instance the epoch was prepared on.
+	 *
+	 * @return the instance.
+	 */
+	PlasticHash getOwner()
+	{
+		return owner;
+	}
+
+	/**
+	 * Get the number of servers in the prepared epoch.
+	 *
+	 * @return the number of servers.
+	 */
+	public int getNumServers()
+	{
+		return n;
+	}
+
+	/**
+	 * Get the version of the configuration history the epoch was prepared
+	 * against.
+	 *
+	 * @return the base version.
+	 */
+	long getBaseVersion()
+	{
+		return baseVersion;
+	}
+
+	/**
+	 * Get what the when algorithm decided, waiting for the background work
+	 * if need be.
+	 *
+	 * @return true if the what algorithm was to run.
+	 */
+	boolean isWhen()
+	{
+		future.join();
+		return isWhen;
+	}
+
+	/**
+	 * Tell whether the background work is done.
+	 *
+	 * @return true if the epoch is ready to commit without waiting.
+	 */
+	public boolean isReady()
+	{
+		return future.isDone();
+	}
+
+	/**
+	 * Get the configuration history the epoch leads to, waiting for the
+	 * background work if need be.
+	 *
+	 * @return the new history.
+	 */
+	public EpochHistory getHistory()
+	{
+		future.join();
+		return next;
+	}
+
+	/**
+	 * Get the fraction of all ids that the epoch moves to another server,
+	 * waiting for the background work if need be.
+	 *
+	 * @return the fraction, or -1 if the histories repeat over too long a
+	 * period to work it out exactly.
+	 */
+	public double getMovedFraction()
+	{
+		future.join();
+		return movedFraction;
+	}
+
+	/**
+	 * Mark the epoch as committed or aborted, making sure it is done only
+	 * once.
+	 */
+	synchronized void close()
+	{
+		if (isClosed)
+			throw new IllegalStateException("Epoch already committed/aborted");
+		isClosed = true;
+	}
+
+	/**
+	 * Abandon the background work, if it isn't done yet.
+	 */
+	void cancel()
+	{
+		future.cancel(false);
+	}
+
+	/**
+	  * Human-friendly string representation.
+	  *
+	  * @return string version of this instance.
+	  */
+	public String toString()
+	{
+		return "Epoch=" + n + " Base=" + baseVersion
+			+ (isReady() ? " Next=" + next : " Preparing");
+	}
+}
@@ -0,0 +1,336 @@
+package com.anandnatrajan.plastichash.utils;
+
+import java.util.Arrays;
+
+/**
+ * Plans the moves needed to get from one configuration history to another
+ * for a range of client ids, when moving a client means copying its data
+ * and every server can only copy so much at a time. The moves are grouped
+ * into batches, each of which keeps within the number of clients every
+ * server can send and receive at once, and the batches are run one after
+ * the other.
+ *
+ * The planner never stores the ids themselves. It counts the moves
+ * between every pair of servers in one pass over the range, schedules the
+ * counts into batches, and then streams the moves in another pass,
+ * working out which batch each id falls into as it goes.
+ *
+ * @author Anand Natrajan
+ */
+public class RebalancePlanner
+{
+	/**
+	 * Receives one planned move at a time, without boxing anything.
+	 */
+	@FunctionalInterface
+	public interface MoveConsumer
+	{
+		void accept(int batch, long id, int source, int dest);
+	}
+
+	private final EpochHistory current;
+	private final EpochHistory target;
+
+	public RebalancePlanner(final EpochHistory current,
+		final EpochHistory target)
+	{
+		if (current.size() == 0 || target.size() == 0)
+			throw new IllegalArgumentException("Empty history");
+		this.current = current;
+		this.target = target;
+	}
+
+	public RebalancePlanner(final ServerContext current,
+		final ServerContext target)
+	{
+		this(current.getHistory(), target.getHistory());
+	}
+
+	/**
+	 * Plan the moves for a range of ids, with the same caps for every
+	 * server.
+	 *
+	 * @param fromId the first id in the range, not negative.
+	 * @param toId one past the last id in the range.
+	 * @param sourceCap the most clients one server can send per batch.
+	 * @param destCap the most clients one server can receive per batch.
+	 * @return the plan.
+	 */
+	public Plan plan(final long fromId, final long toId,
+		final int sourceCap, final int destCap)
+	{
+		final int[] sourceCaps = new int[current.getLastEpoch()];
+		final int[] destCaps = new int[target.getLastEpoch()];
+		Arrays.fill(sourceCaps, sourceCap);
+		Arrays.fill(destCaps, destCap);
+		return plan(fromId, toId, sourceCaps, destCaps);
+	}
+
+	/**
+	 * Plan the moves for a range of ids, with caps for each server.
+	 *
+	 * @param fromId the first id in the range, not negative.
+	 * @param toId one past the last id in the range.
+	 * @param sourceCaps the most clients each current server can send per
+	 * batch.
+	 * @param destCaps the most clients each target server can receive per
+	 * batch.
+	 * @return the plan.
+	 */
+	public Plan plan(final long fromId, final long toId,
+		final int[] sourceCaps, final int[] destCaps)
+	{
+		if (fromId < 0)
+			throw new IllegalArgumentException("Negative id " + fromId);
+		final int S = current.getLastEpoch();
+		final int D = target.getLastEpoch();
+		if (sourceCaps.length < S || destCaps.length < D)
+			throw new IllegalArgumentException("Missing caps for servers");
+		for (int s = 0; s < S; s++)
+		{
+			if (sourceCaps[s] <= 0)
+				throw new IllegalArgumentException("Cap must be positive");
+		}
+		for (int d = 0; d < D; d++)
+		{
+			if (destCaps[d] <= 0)
+				throw new IllegalArgumentException("Cap must be positive");
+		}
+		// Count the moves between every pair of servers.
+		final long[] counts = new long[S * D];
+		for (long id = fromId; id < toId; id++)
+		{
+			final int s = current.getServer(id);
+			final int d = target.getServer(id);
+			if (s != d)
+				counts[s * D + d]++;
+		}
+		return new Plan(this, fromId, toId, S, D, counts,
+			sourceCaps.clone(), destCaps.clone());
+	}
+
+	/**
+	 * A plan of moves, in batches.
+	 */
+	public static class Plan
+	{
+		private final RebalancePlanner planner;
+		private final long fromId;
+		private final long toId;
+		private final int D;
+		// The pairs of servers with moves between them, as source * D +
+		// dest, and the number of moves for each.
+		private final int[] pairs;
+		private final long[] moves;
+		// For each pair, the batches with moves between them, and the
+		// running total of moves up to and including each of those.
+		private final int[][] batches;
+		private final long[][] totals;
+		private final int numBatches;
+		private final long lowerBound;
+
+		Plan(final RebalancePlanner planner, final long fromId,
+			final long toId, final int S, final int D, final long[] counts,
+			final int[] sourceCaps, final int[] destCaps)
+		{
+			this.planner = planner;
+			this.fromId = fromId;
+			this.toId = toId;
+			this.D = D;
+			int P = 0;
+			for (long count : counts)
+			{
+				if (count > 0)
+					P++;
+			}
+			pairs = new int[P];
+			moves = new long[P];
+			final long[] out = new long[S];
+			final long[] in = new long[D];
+			for (int i = 0, p = 0; i < counts.length; i++)
+			{
+				if (counts[i] > 0)
+				{
+					pairs[p] = i;
+					moves[p++] = counts[i];
+					out[i / D] += counts[i];
+					in[i % D] += counts[i];
+				}
+			}
+			// No plan can do better than the busiest server allows.
+			long bound = 0;
+			for (int s = 0; s < S; s++)
+				bound = Math.max(bound, ceilDiv(out[s], sourceCaps[s]));
+			for (int d = 0; d < D; d++)
+				bound = Math.max(bound, ceilDiv(in[d], destCaps[d]));
+			lowerBound = bound;
+			batches = new int[P][];
+			totals = new long[P][];
+			numBatches = schedule(S, sourceCaps, destCaps, out, in);
+		}
+
+		// Fill one batch at a time, serving the pairs whose servers have the
+		// most batches' worth of work left first, so that no server is left
+		// with a long tail at the end. The work left changes every batch,
+		// so the pairs are sorted again every batch, as primitive keys: the
+		// urgency, as float bits, which sort like the floats themselves
+		// when not negative, over the pair, lowest first among equals.
+		private int schedule(final int S, final int[] sourceCaps,
+			final int[] destCaps, final long[] out, final long[] in)
+		{
+			final int P = pairs.length;
+			final long[] left = moves.clone();
+			final int[] sizes = new int[P];
+			for (int p = 0; p < P; p++)
+			{
+				batches[p] = new int[4];
+				totals[p] = new long[4];
+			}
+			final long[] sendable = new long[S];
+			final long[] receivable = new long[D];
+			final long[] order = new long[P];
+			long remaining = 0;
+			for (long m : moves)
+				remaining += m;
+			int batch = 0;
+			while (remaining > 0)
+			{
+				int k = 0;
+				for (int p = 0; p < P; p++)
+				{
+					if (left[p] > 0)
+					{
+						final int s = pairs[p] / D;
+						final int d = pairs[p] % D;
+						final float urgency = (float) Math.max
+							((double) out[s] / sourceCaps[s],
+							(double) in[d] / destCaps[d]);
+						order[k++] = (long) Float.floatToIntBits(urgency)
+							<< 32 | (Integer.MAX_VALUE - p);
+					}
+				}
+				Arrays.sort(order, 0, k);
+				for (int s = 0; s < S; s++)
+					sendable[s] = sourceCaps[s];
+				for (int d = 0; d < D; d++)
+					receivable[d] = destCaps[d];
+				for (int i = k - 1; i >= 0; i--)
+				{
+					final int p = Integer.MAX_VALUE - (int) order[i];
+					final int s = pairs[p] / D;
+					final int d = pairs[p] % D;
+					final long amount = Math.min(left[p],
+						Math.min(sendable[s], receivable[d]));
+					if (amount <= 0)
+						continue;
+					left[p] -= amount;
+					sendable[s] -= amount;
+					receivable[d] -= amount;
+					out[s] -= amount;
+					in[d] -= amount;
+					remaining -= amount;
+					if (sizes[p] == batches[p].length)
+					{
+						batches[p] = Arrays.copyOf(batches[p], sizes[p] * 2);
+						totals[p] = Arrays.copyOf(totals[p], sizes[p] * 2);
+					}
+					batches[p][sizes[p]] = batch;
+					totals[p][sizes[p]] = moves[p] - left[p];
+					sizes[p]++;
+				}
+				batch++;
+			}
+			return batch;
+		}
+
+		/**
+		 * Get the count of batches in the plan, i.e., its makespan.
+		 *
+		 * @return the number of batches.
+		 */
+		public int getNumBatches()
+		{
+			return numBatches;
+		}
+
+		/**
+		 * Get the fewest batches any plan could need, given the caps.
+		 *
+		 * @return the lower bound on the number of batches.
+		 */
+		public long getLowerBound()
+		{
+			return lowerBound;
+		}
+
+		/**
+		 * Get the count of clients that move.
+		 *
+		 * @return the number of moves.
+		 */
+		public long getNumMoves()
+		{
+			long total = 0;
+			for (long m : moves)
+				total += m;
+			return total;
+		}
+
+		/**
+		 * Stream every move in the plan, in id order, tagged with its batch.
+		 *
+		 * @param consumer the receiver of the moves.
+		 */
+		public void forEachMove(final MoveConsumer consumer)
+		{
+			forEachMove(-1, consumer);
+		}
+
+		/**
+		 * Stream the moves in one batch of the plan, in id order.
+		 *
+		 * @param batch the batch, or -1 for all batches.
+		 * @param consumer the receiver of the moves.
+		 */
+		public void forEachMove(final int batch, final MoveConsumer consumer)
+		{
+			final int P = pairs.length;
+			// Find the pair for a source and dest by binary search, and keep
+			// track of how far into each pair we are.
+			final long[] seen = new long[P];
+			final int[] segment = new int[P];
+			final EpochHistory current = planner.current;
+			final EpochHistory target = planner.target;
+			for (long id = fromId; id < toId; id++)
+			{
+				final int s = current.getServer(id);
+				final int d = target.getServer(id);
+				if (s == d)
+					continue;
+				final int p = Arrays.binarySearch(pairs, s * D + d);
+				final long n = ++seen[p];
+				while (totals[p][segment[p]] < n)
+					segment[p]++;
+				final int b = batches[p][segment[p]];
+				if (batch < 0 || b == batch)
+					consumer.accept(b, id, s, d);
+			}
+		}
+
+		private static long ceilDiv(final long a, final long b)
+		{
+			return (a + b - 1) / b;
+		}
+
+		/**
+		  * Human-friendly string representation.
+		  *
+		  * @return string version of this instance.
+		  */
+		public String toString()
+		{
+			return "Moves=" + getNumMoves() + " Batches=" + numBatches
+				+ " LowerBound=" + lowerBound;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package com.anandnatrajan.plastichash.utils;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts requests routed through a plastic hash instance, and turns the
+ * count into a rate. Time is cut into fixed intervals from when the meter
+ * is made, and the rate is the count in the last interval to complete, so
+ * every caller sees the same figure however often it asks. Recording a
+ * request is cheap and never blocks, save for the one request per interval
+ * that closes the interval before it; a request recorded just as an
+ * interval ends may be counted in the next one.
+ *
+ * @author Anand Natrajan
+ */
+public class RequestMeter
+{
+	private final LongAdder count = new LongAdder();
+	// Requests in the interval under way.
+	private final LongAdder current = new LongAdder();
+	private final Clock clock;
+	private final long intervalMillis;
+	private final long startMillis;
+	// The interval under way, counted from the start.
+	private volatile long interval;
+	// The last interval closed, and its count.
+	private long lastInterval = -1;
+	private long lastCount;
+
+	/**
+	 * @param interval the interval over which to work out a rate.
+	 * @param clock the clock to measure the interval with.
+	 * @throws IllegalArgumentException if the interval isn't positive.
+	 */
+	public RequestMeter(final Duration interval, final Clock clock)
+	{
+		if (interval.toMillis() <= 0)
+			throw new IllegalArgumentException("Interval not positive: "
+				+ interval);
+		this.clock = clock;
+		this.intervalMillis = interval.toMillis();
+		this.startMillis = clock.millis();
+	}
+
+	public RequestMeter(final Duration interval)
+	{
+		this(interval, Clock.systemUTC());
+	}
+
+	public RequestMeter()
+	{
+		this(Duration.ofSeconds(1));
+	}
+
+	/**
+	 * Count one request.
+	 */
+	public void record()
+	{
+		roll(clock.millis());
+		current.increment();
+		count.increment();
+	}
+
+	/**
+	 * Get the total count of requests so far.
+	 *
+	 * @return the number of requests.
+	 */
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	/**
+	 * Get the rate of requests over the last completed interval. Until the
+	 * first interval completes, the rate is unknown.
+	 *
+	 * @return the number of requests per second, or NaN if unknown.
+	 */
+	public synchronized double getRate()
+	{
+		roll(clock.millis());
+		if (lastInterval < 0)
+			return Double.NaN;
+		// No request closed the interval just gone, so it saw none.
+		if (lastInterval != interval - 1)
+			return 0;
+		return lastCount * 1000.0 / intervalMillis;
+	}
+
+	// Close the interval under way, if the time is past it.
+	private void roll(final long now)
+	{
+		final long i = (now - startMillis) / intervalMillis;
+		if (i > interval)
+			close(i);
+	}
+
+	private synchronized void close(final long i)
+	{
+		if (i <= interval)
+			return; // Closed already, by somebody else.
+		lastInterval = interval;
+		lastCount = current.sumThenReset();
+		interval = i;
+	}
+
+	/**
+	  * Human-friendly string representation.
+	  *
+	  * @return string version of this instance.
+	  */
+	public String toString()
+	{
+		return "Count=" + getCount() + " Rate=" + getRate();
+	}
+}
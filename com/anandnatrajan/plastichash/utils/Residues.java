@@ -0,0 +1,262 @@
+package com.anandnatrajan.plastichash.utils;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Spliterator;
+import java.util.function.LongConsumer;
+
+/**
+ * Exact reasoning about configuration histories using residue classes.
+ * Every step of the lookup depends on the id only through the id modulo
+ * some server count, so every non-negative id with the same residue
+ * modulo the least common multiple of the server counts, the period, maps
+ * to the same server. Looking at one period of ids therefore tells us
+ * exactly what happens to all of them.
+ *
+ * @author Anand Natrajan
+ */
+final class Residues
+{
+	// The largest period we're willing to look at by default. Each residue
+	// costs an int, so this is a few megabytes at most.
+	static final int MAX_PERIOD = 1 << 20;
+
+	private Residues()
+	{
+		// No instances, just static helpers.
+	}
+
+	/**
+	 * Get the period of a history, i.e., the least common multiple of the
+	 * server counts that the lookup actually reads.
+	 *
+	 * @param h the history.
+	 * @param cap the largest period of interest.
+	 * @return the period, or -1 if it is larger than the cap or the history
+	 * is empty.
+	 */
+	static int period(final EpochHistory h, final int cap)
+	{
+		final int size = h.size();
+		if (size == 0 || h.get(0) <= 0)
+			return -1;
+		long L = 1;
+		for (int i = 0; i < size; i++)
+		{
+			final int n = h.get(i);
+			// The lookup stops reading at the first non-positive count.
+			if (n <= 0)
+				break;
+			L = L / gcd(L, n) * n;
+			if (L > cap)
+				return -1;
+		}
+		return (int) L;
+	}
+
+	/**
+	 * Get the period of two histories together, i.e., the period over
+	 * which both repeat.
+	 *
+	 * @param a one history.
+	 * @param b another history.
+	 * @param cap the largest period of interest.
+	 * @return the period, or -1 if it is larger than the cap or either
+	 * history is empty.
+	 */
+	static int period(final EpochHistory a, final EpochHistory b,
+		final int cap)
+	{
+		final int La = period(a, cap);
+		final int Lb = period(b, cap);
+		if (La < 0 || Lb < 0)
+			return -1;
+		final long L = (long) La / gcd(La, Lb) * Lb;
+		return (L > cap) ? -1 : (int) L;
+	}
+
+	/**
+	 * Get the server for every residue in a period.
+	 *
+	 * @param h the history.
+	 * @param L the period, a multiple of the period of the history.
+	 * @return the server for each residue.
+	 */
+	static int[] servers(final EpochHistory h, final int L)
+	{
+		final int[] S = new int[L];
+		for (int r = 0; r < L; r++)
+			S[r] = h.getServer(r);
+		return S;
+	}
+
+	/**
+	 * Count the residues in a period that a history maps to a different
+	 * server than before, giving up early once the count goes past a
+	 * limit.
+	 *
+	 * @param before the server for each residue, before.
+	 * @param after the history, after.
+	 * @param limit the count beyond which we don't care how many more.
+	 * @return the number of residues that move, or limit + 1 if more.
+	 */
+	static int countMoved(final int[] before, final EpochHistory after,
+		final int limit)
+	{
+		int moved = 0;
+		for (int r = 0; r < before.length; r++)
+		{
+			if (after.getServer(r) != before[r] && ++moved > limit)
+				break;
+		}
+		return moved;
+	}
+
+	/**
+	 * Get the residues in a period that a history maps to one server.
+	 *
+	 * @param h the history.
+	 * @param L the period, a multiple of the period of the history.
+	 * @param server the server.
+	 * @return the residues, in order.
+	 */
+	static int[] owned(final EpochHistory h, final int L, final int server)
+	{
+		int[] R = new int[16];
+		int n = 0;
+		for (int r = 0; r < L; r++)
+		{
+			if (h.getServer(r) != server)
+				continue;
+			if (n == R.length)
+				R = Arrays.copyOf(R, n * 2);
+			R[n++] = r;
+		}
+		return Arrays.copyOf(R, n);
+	}
+
+	/**
+	 * The ids in a range whose residues are among some residues of a
+	 * period, in order. Each id costs one step, however far apart they are,
+	 * and the range splits in half for parallel streams, sharing the
+	 * residues.
+	 */
+	static final class Ids implements Spliterator.OfLong
+	{
+		private final int[] R;
+		private final int L;
+		private long from;
+		private final long to;
+
+		/**
+		 * @param R the residues, in order.
+		 * @param L the period.
+		 * @param from the first id of the range, not negative.
+		 * @param to one past the last id of the range.
+		 */
+		Ids(final int[] R, final int L, final long from, final long to)
+		{
+			this.R = R;
+			this.L = L;
+			this.from = from;
+			this.to = Math.max(from, to);
+		}
+
+		public boolean tryAdvance(final LongConsumer action)
+		{
+			final long id = next(from);
+			if (id < 0 || id >= to) // Negative if past the largest id.
+			{
+				from = to;
+				return false;
+			}
+			from = id + 1;
+			action.accept(id);
+			return true;
+		}
+
+		public void forEachRemaining(final LongConsumer action)
+		{
+			if (R.length == 0 || from >= to)
+			{
+				from = to;
+				return;
+			}
+			long base = from - from % L;
+			int k = index((int) (from % L));
+			for (;;)
+			{
+				if (k == R.length)
+				{
+					base += L;
+					k = 0;
+				}
+				final long id = base + R[k++];
+				if (id < 0 || id >= to)
+					break;
+				action.accept(id);
+			}
+			from = to;
+		}
+
+		public Spliterator.OfLong trySplit()
+		{
+			final long mid = from + (to - from) / 2;
+			if (R.length == 0 || mid - from < L)
+				return null; // Not worth splitting less than a period.
+			final Ids prefix = new Ids(R, L, from, mid);
+			from = mid;
+			return prefix;
+		}
+
+		public long estimateSize()
+		{
+			return countBelow(to) - countBelow(from);
+		}
+
+		public int characteristics()
+		{
+			return ORDERED | SORTED | DISTINCT | NONNULL | IMMUTABLE
+				| SIZED | SUBSIZED;
+		}
+
+		public Comparator<? super Long> getComparator()
+		{
+			return null; // Natural order.
+		}
+
+		// The first id at or after another with one of the residues.
+		private long next(final long id)
+		{
+			if (R.length == 0)
+				return Long.MAX_VALUE;
+			final long base = id - id % L;
+			final int k = index((int) (id % L));
+			return (k < R.length) ? base + R[k] : base + L + R[0];
+		}
+
+		// How many ids below another have one of the residues.
+		private long countBelow(final long id)
+		{
+			return id / L * R.length + index((int) (id % L));
+		}
+
+		// Where a residue is, or would be, among the residues.
+		private int index(final int r)
+		{
+			final int k = Arrays.binarySearch(R, r);
+			return (k < 0) ? -k - 1 : k;
+		}
+	}
+
+	static long gcd(long a, long b)
+	{
+		while (b != 0)
+		{
+			final long t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+}
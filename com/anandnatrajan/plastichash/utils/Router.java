@@ -0,0 +1,279 @@
+package com.anandnatrajan.plastichash.utils;
+
+import java.util.Arrays;
+
+/**
+ * Anything that assigns ids to a fleet of servers, numbered from zero,
+ * whose size changes in epochs. Servers come and go at the end of the
+ * fleet. Plastic hash is one such router; a few well-known alternatives
+ * are provided here too, so that they can be compared on the same terms.
+ *
+ * @author Anand Natrajan
+ */
+public interface Router
+{
+	/**
+	 * Get the server allocation for one request.
+	 *
+	 * @param id the id of the request, not negative.
+	 * @return the number of the server, zero-based.
+	 */
+	int getServer(long id);
+
+	/**
+	 * Add a new epoch, i.e., a new server count.
+	 *
+	 * @param n the new number of servers.
+	 * @return the current instance, just so we can chain calls.
+	 */
+	Router addEpoch(int n);
+
+	// Provide a library of alternative routers, for comparison.
+
+	/**
+	 * Jump consistent hash, after Lamping and Veach: no state beyond the
+	 * server count, and a logarithmic number of steps per lookup. Moves
+	 * the fewest ids when servers are added or removed at the end.
+	 */
+	class Jump implements Router
+	{
+		private volatile int n;
+
+		public int getServer(final long id)
+		{
+			final int n = this.n;
+			long key = PlasticHash.mix(id);
+			long b = -1;
+			long j = 0;
+			while (j < n)
+			{
+				b = j;
+				key = key * 2862933555777941757L + 1;
+				j = (long) ((b + 1) * ((double) (1L << 31)
+					/ (double) ((key >>> 33) + 1)));
+			}
+			return (int) Math.max(b, 0);
+		}
+
+		public synchronized Jump addEpoch(final int n)
+		{
+			this.n = n;
+			return this;
+		}
+
+		public String toString()
+		{
+			return getClass().getSimpleName() + "(" + n + ")";
+		}
+	}
+
+	/**
+	 * Rendezvous, or highest random weight, hashing: every server gets a
+	 * weight for an id, and the heaviest server wins. No state beyond the
+	 * server count, but a linear number of steps per lookup. Moves the
+	 * fewest ids.
+	 */
+	class Rendezvous implements Router
+	{
+		private volatile long[] seeds = new long[0];
+
+		public int getServer(final long id)
+		{
+			final long[] seeds = this.seeds;
+			final long key = PlasticHash.mix(id);
+			int best = 0;
+			long bestWeight = Long.MIN_VALUE;
+			for (int s = 0; s < seeds.length; s++)
+			{
+				final long weight = PlasticHash.mix(key ^ seeds[s]);
+				if (weight > bestWeight)
+				{
+					best = s;
+					bestWeight = weight;
+				}
+			}
+			return best;
+		}
+
+		public synchronized Rendezvous addEpoch(final int n)
+		{
+			final long[] newSeeds = Arrays.copyOf(seeds, n);
+			for (int s = seeds.length; s < n; s++)
+				newSeeds[s] = PlasticHash.mix(~s);
+			seeds = newSeeds;
+			return this;
+		}
+
+		public String toString()
+		{
+			return getClass().getSimpleName() + "(" + seeds.length + ")";
+		}
+	}
+
+	/**
+	 * Consistent hashing on a ring, with a number of virtual nodes per
+	 * server to even out the load. Lookups binary-search the ring, and
+	 * memory grows with the virtual nodes.
+	 */
+	class Ring implements Router
+	{
+		final private int vnodes;
+		// The ring, replaced wholesale on every change.
+		private volatile Points ring = new Points(new long[0], new int[0]);
+
+		public Ring(final int vnodes)
+		{
+			this.vnodes = vnodes;
+		}
+
+		public Ring()
+		{
+			this(100);
+		}
+
+		public int getServer(final long id)
+		{
+			final Points ring = this.ring;
+			if (ring.points.length == 0)
+				return 0;
+			int i = Arrays.binarySearch(ring.points, PlasticHash.mix(id));
+			if (i < 0)
+				i = -i - 1;
+			return ring.owners[(i == ring.points.length) ? 0 : i];
+		}
+
+		public synchronized Ring addEpoch(final int n)
+		{
+			final long[][] pairs = new long[n * vnodes][];
+			for (int s = 0; s < n; s++)
+			{
+				for (int v = 0; v < vnodes; v++)
+				{
+					pairs[s * vnodes + v] = new long[]
+						{ PlasticHash.mix(((long) s << 32) | v), s };
+				}
+			}
+			Arrays.sort(pairs, (a, b) -> Long.compare(a[0], b[0]));
+			final long[] points = new long[pairs.length];
+			final int[] owners = new int[pairs.length];
+			for (int i = 0; i < pairs.length; i++)
+			{
+				points[i] = pairs[i][0];
+				owners[i] = (int) pairs[i][1];
+			}
+			ring = new Points(points, owners);
+			return this;
+		}
+
+		// Points on the ring in order, and the server owning each point.
+		private static final class Points
+		{
+			final long[] points;
+			final int[] owners;
+
+			Points(final long[] points, final int[] owners)
+			{
+				this.points = points;
+				this.owners = owners;
+			}
+		}
+
+		public String toString()
+		{
+			return getClass().getSimpleName() + "(" + vnodes + ")";
+		}
+	}
+
+	/**
+	 * Maglev hashing: every server fills slots of a prime-sized lookup
+	 * table in its own order, taking turns, so that each gets an almost
+	 * equal share. Lookups are a single table access. Moves a few more ids
+	 * than the minimum when the fleet changes.
+	 */
+	class Maglev implements Router
+	{
+		final private int size;
+		private volatile int[] table = new int[0];
+
+		/**
+		 * @param size the size of the lookup table, a prime much larger
+		 * than the number of servers. Any other size would leave some
+		 * servers probing only part of the table.
+		 * @throws IllegalArgumentException if the size isn't prime.
+		 */
+		public Maglev(final int size)
+		{
+			if (!isPrime(size))
+				throw new IllegalArgumentException("Size not prime: " + size);
+			this.size = size;
+		}
+
+		public Maglev()
+		{
+			this(65537);
+		}
+
+		public int getServer(final long id)
+		{
+			final int[] table = this.table;
+			if (table.length == 0)
+				return 0;
+			return table[(int) Long.remainderUnsigned
+				(PlasticHash.mix(id), table.length)];
+		}
+
+		public synchronized Maglev addEpoch(final int n)
+		{
+			final int[] newTable = new int[size];
+			Arrays.fill(newTable, -1);
+			final long[] offsets = new long[n];
+			final long[] skips = new long[n];
+			final long[] next = new long[n];
+			for (int s = 0; s < n; s++)
+			{
+				offsets[s] = Long.remainderUnsigned(PlasticHash.mix(s), size);
+				skips[s] = Long.remainderUnsigned
+					(PlasticHash.mix(~(long) s), size - 1) + 1;
+			}
+			for (int filled = 0; n > 0 && filled < size;)
+			{
+				for (int s = 0; s < n && filled < size; s++)
+				{
+					// With a prime size, every server probes every slot
+					// within size turns, so this is only a safety net.
+					int slot;
+					do
+					{
+						if (next[s] >= size)
+							throw new IllegalStateException
+								("Server " + s + " found no free slot");
+						slot = (int) ((offsets[s] + next[s]++ * skips[s])
+							% size);
+					}
+					while (newTable[slot] >= 0);
+					newTable[slot] = s;
+					filled++;
+				}
+			}
+			table = (n > 0) ? newTable : new int[0];
+			return this;
+		}
+
+		private static boolean isPrime(final int n)
+		{
+			if (n < 2)
+				return false;
+			for (int d = 2; (long) d * d <= n; d++)
+			{
+				if (n % d == 0)
+					return false;
+			}
+			return true;
+		}
+
+		public String toString()
+		{
+			return getClass().getSimpleName() + "(" + size + ")";
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package com.anandnatrajan.plastichash.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Puts routers through the same trace, a sequence of fleet sizes and a
+ * set of ids, and measures how they compare: how many ids move on each
+ * change, relative to the fewest that have to; how uneven the load is;
+ * how fast lookups are; and how much memory each instance takes.
+ *
+ * Run it on its own to compare plastic hash with the library of routers.
+ *
+ * @author Anand Natrajan
+ */
+public class RouterComparison
+{
+	// Somewhere to put lookup results so they don't get optimised away.
+	static volatile long sink;
+
+	private final int[] fleet;
+	private final long[] ids;
+
+	/**
+	 * @param fleet the server count in each epoch.
+	 * @param ids the ids to route in each epoch, not negative.
+	 */
+	public RouterComparison(final int[] fleet, final long[] ids)
+	{
+		this.fleet = fleet.clone();
+		this.ids = ids.clone();
+	}
+
+	/**
+	 * @param fleet the server count in each epoch.
+	 * @param numIds the number of random ids to route in each epoch.
+	 * @param seed the seed for the ids, so that traces can be repeated.
+	 */
+	public RouterComparison(final int[] fleet, final int numIds,
+		final long seed)
+	{
+		this.fleet = fleet.clone();
+		this.ids = new long[numIds];
+		final Random random = new Random(seed);
+		for (int i = 0; i < numIds; i++)
+			ids[i] = random.nextLong() & Long.MAX_VALUE;
+	}
+
+	/**
+	 * Put one kind of router through the trace.
+	 *
+	 * @param routers where to get fresh instances of the router.
+	 * @param numInstances how many instances to build to measure memory,
+	 * or 0 not to measure it.
+	 * @return what was measured.
+	 */
+	public Result run(final Supplier<? extends Router> routers,
+		final int numInstances)
+	{
+		final Router router = routers.get();
+		int[] servers = null;
+		long moved = 0;
+		double ideal = 0;
+		double imbalance = 0;
+		for (int e = 0; e < fleet.length; e++)
+		{
+			router.addEpoch(fleet[e]);
+			final int[] newServers = new int[ids.length];
+			final long[] load = new long[fleet[e]];
+			for (int i = 0; i < ids.length; i++)
+			{
+				newServers[i] = router.getServer(ids[i]);
+				load[newServers[i]]++;
+				if (servers != null && servers[i] != newServers[i])
+					moved++;
+			}
+			if (servers != null)
+			{
+				// At the very least, the ids on servers that went away have
+				// to move, or enough ids to fill the new servers.
+				ideal += (double) Math.abs(fleet[e] - fleet[e - 1])
+					/ Math.max(fleet[e], fleet[e - 1]) * ids.length;
+			}
+			long max = 0;
+			for (long l : load)
+				max = Math.max(max, l);
+			imbalance = Math.max(imbalance,
+				max * (double) fleet[e] / ids.length);
+			servers = newServers;
+		}
+		return new Result(moved, ideal, imbalance,
+			measureThroughput(router), measureMemory(routers, numInstances));
+	}
+
+	// Best of a few timed passes over the ids, after the last epoch.
+	private double measureThroughput(final Router router)
+	{
+		long best = Long.MAX_VALUE;
+		long result = 0;
+		for (int pass = 0; pass < 5; pass++)
+		{
+			final long start = System.nanoTime();
+			for (long id : ids)
+				result += router.getServer(id);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		sink = result;
+		return ids.length * 1e9 / Math.max(1, best);
+	}
+
+	// Heap growth per instance, with every instance put through all the
+	// epochs. Only a rough guide, as the collector has a say in it.
+	private long measureMemory(final Supplier<? extends Router> routers,
+		final int numInstances)
+	{
+		if (numInstances <= 0)
+			return 0;
+		final Router[] instances = new Router[numInstances];
+		final long before = usedMemory();
+		for (int r = 0; r < numInstances; r++)
+		{
+			instances[r] = routers.get();
+			for (int n : fleet)
+				instances[r].addEpoch(n);
+		}
+		final long after = usedMemory();
+		return (instances[0] == null) ? 0
+			: Math.max(0, (after - before) / numInstances);
+	}
+
+	private static long usedMemory()
+	{
+		final Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * What was measured for one router.
+	 */
+	public static class Result
+	{
+		private final long moved;
+		private final double ideal;
+		private final double imbalance;
+		private final double throughput;
+		private final long bytes;
+
+		Result(final long moved, final double ideal, final double imbalance,
+			final double throughput, final long bytes)
+		{
+			this.moved = moved;
+			this.ideal = ideal;
+			this.imbalance = imbalance;
+			this.throughput = throughput;
+			this.bytes = bytes;
+		}
+
+		/**
+		 * Get the count of ids that moved, over all the changes.
+		 *
+		 * @return the number of moves.
+		 */
+		public long getMoved()
+		{
+			return moved;
+		}
+
+		/**
+		 * Get the moves relative to the fewest possible.
+		 *
+		 * @return the ratio, 1 at best, or 0 if nothing had to move.
+		 */
+		public double getMovedRatio()
+		{
+			return (ideal == 0) ? 0 : moved / ideal;
+		}
+
+		/**
+		 * Get the worst load on any server, relative to the mean, over all
+		 * the epochs.
+		 *
+		 * @return the ratio, 1 at best.
+		 */
+		public double getImbalance()
+		{
+			return imbalance;
+		}
+
+		/**
+		 * Get the lookups per second, on one thread.
+		 *
+		 * @return the throughput.
+		 */
+		public double getThroughput()
+		{
+			return throughput;
+		}
+
+		/**
+		 * Get the rough memory per instance.
+		 *
+		 * @return the bytes, or 0 if not measured.
+		 */
+		public long getBytes()
+		{
+			return bytes;
+		}
+
+		/**
+		  * Human-friendly string representation.
+		  *
+		  * @return string version of this instance.
+		  */
+		public String toString()
+		{
+			return String.format("moved=%d (%.2fx) imbalance=%.3f"
+				+ " lookups=%.1fM/s memory=%dB", moved, getMovedRatio(),
+				imbalance, throughput / 1e6, bytes);
+		}
+	}
+
+	/**
+	 * Compare plastic hash with the library of routers.
+	 *
+	 * @param args the number of ids, followed by the fleet sizes, all
+	 * optional.
+	 */
+	public static void main(String... args)
+	{
+		final int numIds = (args.length > 0) ? Integer.parseInt(args[0])
+			: 1 << 20;
+		int[] fleet = { 10, 11, 12, 11, 13, 16, 15, 14, 17, 20 };
+		if (args.length > 1)
+		{
+			fleet = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++)
+				fleet[i - 1] = Integer.parseInt(args[i]);
+		}
+		final PlasticHashFactory phf = new PlasticHashFactory();
+		final Map<String, Supplier<? extends Router>> routers =
+			new LinkedHashMap<>();
+		routers.put("PlasticHash", () -> phf.createInstance());
+		routers.put("PlasticHash(Trim)", () -> phf.createInstance
+			(new WhenAlgorithm.Always(), new WhatAlgorithm.Trim(0.05)));
+		routers.put("Jump", Router.Jump::new);
+		routers.put("Rendezvous", Router.Rendezvous::new);
+		routers.put("Ring", Router.Ring::new);
+		routers.put("Maglev", Router.Maglev::new);
+		final RouterComparison comparison =
+			new RouterComparison(fleet, numIds, 42);
+		for (Map.Entry<String, Supplier<? extends Router>> e
+			: routers.entrySet())
+		{
+			final Result result = comparison.run(e.getValue(), 50);
+			System.out.println(String.format("%-18s", e.getKey()) + result);
+		}
+	}
+}
@@ -0,0 +1,273 @@
+package com.anandnatrajan.plastichash.utils;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Remembers every version of the configuration history of a plastic hash
+ * instance, so that we can tell which server an id was routed to at some
+ * moment in the past, e.g., to investigate an incident or to recover
+ * session state. Pins and rollouts are not remembered, just the history.
+ *
+ * The versions are stored compactly: all the epochs live on one tape of
+ * ints, and each version is just a window on the tape. Adding an epoch
+ * usually just adds one int to the tape, and compacting from the front
+ * usually narrows the window without adding anything. Looking up a past
+ * version walks its window, just like a lookup walks the current history,
+ * after a binary search for the version.
+ *
+ * Versions beyond a count or an age are forgotten, oldest first, and the
+ * tape is cut back now and then to match.
+ *
+ * @author Anand Natrajan
+ */
+public class RoutingLog implements AutoCloseable
+{
+	private final ServerContext sc;
+	private final ServerContext.Listener listener = this::record;
+	private final int maxVersions;
+	private final long maxAgeMillis;
+	// The tape, and how much of it is used.
+	private int[] tape = new int[16];
+	private int tapeEnd;
+	// One entry per version, in order, of which the first few may have
+	// been forgotten already.
+	private long[] versions = new long[16];
+	private long[] times = new long[16];
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private int first;
+	private int last;
+
+	/**
+	 * @param ph the plastic hash instance whose history to remember.
+	 * @param maxVersions the most versions to remember.
+	 * @param maxAge the longest to remember a version, counted from when it
+	 * was replaced, or null to remember for ever.
+	 */
+	public RoutingLog(final PlasticHash ph, final int maxVersions,
+		final Duration maxAge)
+	{
+		this(ph.getServerContext(), maxVersions, maxAge);
+	}
+
+	RoutingLog(final ServerContext sc, final int maxVersions,
+		final Duration maxAge)
+	{
+		this.sc = sc;
+		this.maxVersions = Math.max(1, maxVersions);
+		this.maxAgeMillis = (maxAge == null) ? Long.MAX_VALUE
+			: maxAge.toMillis();
+		// Start from the history as it is, and hear about every change
+		// from here on, without missing any in between.
+		synchronized (sc)
+		{
+			record(sc.getVersion(), sc.getClock().millis(), sc.getHistory());
+			sc.addListener(listener);
+		}
+	}
+
+	/**
+	 * Get the server an id was routed to as of a version of the history.
+	 *
+	 * @param id the id of the request.
+	 * @param version the version.
+	 * @return the number of the server, zero-based, or -1 if the version
+	 * is no longer remembered, or the history was empty.
+	 */
+	public synchronized int getServerAtVersion(final long id,
+		final long version)
+	{
+		return getServer(id, floor(versions, version));
+	}
+
+	/**
+	 * Get the server an id was routed to at a moment in time.
+	 *
+	 * @param id the id of the request.
+	 * @param millis the moment, in milliseconds, by the clock of the plastic
+	 * hash instance.
+	 * @return the number of the server, zero-based, or -1 if the moment is
+	 * no longer remembered, or the history was empty.
+	 */
+	public synchronized int getServerAtTime(final long id, final long millis)
+	{
+		return getServer(id, floor(times, millis));
+	}
+
+	/**
+	 * Get the count of versions remembered.
+	 *
+	 * @return the number of versions.
+	 */
+	public synchronized int getNumVersions()
+	{
+		return last - first;
+	}
+
+	/**
+	 * Get the oldest version remembered.
+	 *
+	 * @return the version.
+	 */
+	public synchronized long getOldestVersion()
+	{
+		return versions[first];
+	}
+
+	/**
+	 * Get the count of epochs on the tape, which is all the memory the
+	 * versions take, besides four numbers each.
+	 *
+	 * @return the number of epochs.
+	 */
+	public synchronized int getTapeSize()
+	{
+		return tapeEnd;
+	}
+
+	/**
+	 * Stop remembering changes. What is remembered can still be queried.
+	 */
+	public void close()
+	{
+		sc.removeListener(listener);
+	}
+
+	private int getServer(final long id, final int entry)
+	{
+		if (entry < 0 || starts[entry] == ends[entry])
+			return -1;
+		return EpochHistory.getServer(tape, starts[entry], ends[entry], id);
+	}
+
+	// Find the last remembered entry at or before a key, or -1.
+	private int floor(final long[] keys, final long key)
+	{
+		int i = Arrays.binarySearch(keys, first, last, key);
+		if (i < 0)
+			i = -i - 2;
+		else
+		{
+			// Several versions may share a time; take the latest.
+			while (i + 1 < last && keys[i + 1] == key)
+				i++;
+		}
+		return (i < first) ? -1 : i;
+	}
+
+	// Remember one version, called with the server context locked.
+	private synchronized void record(final long version, final long millis,
+		final EpochHistory history)
+	{
+		final int size = history.size();
+		int start = -1;
+		int end = -1;
+		if (last > first && size > 0)
+		{
+			final int prevStart = starts[last - 1];
+			final int prevEnd = ends[last - 1];
+			final int prevSize = prevEnd - prevStart;
+			if (size <= prevSize
+				&& matches(prevEnd - size, history, 0, size))
+			{
+				// Cut from the front: just narrow the window.
+				start = prevEnd - size;
+				end = prevEnd;
+			}
+			else if (size == prevSize + 1 && prevEnd == tapeEnd
+				&& matches(prevStart, history, 0, prevSize))
+			{
+				// One more epoch: just add it to the tape.
+				start = prevStart;
+				end = append(history, prevSize, 1);
+			}
+		}
+		if (start < 0)
+		{
+			// Anything else goes on the tape in full.
+			start = tapeEnd;
+			end = append(history, 0, size);
+		}
+		if (last == versions.length)
+			grow();
+		versions[last] = version;
+		times[last] = millis;
+		starts[last] = start;
+		ends[last] = end;
+		last++;
+		forget(millis);
+	}
+
+	private boolean matches(final int at, final EpochHistory history,
+		final int from, final int size)
+	{
+		for (int i = 0; i < size; i++)
+		{
+			if (tape[at + i] != history.get(from + i))
+				return false;
+		}
+		return true;
+	}
+
+	// Put some of a history at the end of the tape, and return the end.
+	private int append(final EpochHistory history, final int from,
+		final int size)
+	{
+		if (tapeEnd + size > tape.length)
+			tape = Arrays.copyOf(tape, Math.max(tape.length * 2,
+				tapeEnd + size));
+		for (int i = 0; i < size; i++)
+			tape[tapeEnd++] = history.get(from + i);
+		return tapeEnd;
+	}
+
+	// Forget versions beyond the count, or replaced too long ago, but never
+	// the latest one, and cut back the tape once most of it is forgotten.
+	private void forget(final long now)
+	{
+		while (last - first > maxVersions
+			|| (last - first > 1 && now - times[first + 1] > maxAgeMillis))
+			first++;
+		final int used = starts[first];
+		if (used > tapeEnd / 2)
+		{
+			System.arraycopy(tape, used, tape, 0, tapeEnd - used);
+			tapeEnd -= used;
+			for (int i = first; i < last; i++)
+			{
+				starts[i] -= used;
+				ends[i] -= used;
+			}
+		}
+		if (first > versions.length / 2)
+		{
+			final int n = last - first;
+			System.arraycopy(versions, first, versions, 0, n);
+			System.arraycopy(times, first, times, 0, n);
+			System.arraycopy(starts, first, starts, 0, n);
+			System.arraycopy(ends, first, ends, 0, n);
+			first = 0;
+			last = n;
+		}
+	}
+
+	private void grow()
+	{
+		final int capacity = versions.length * 2;
+		versions = Arrays.copyOf(versions, capacity);
+		times = Arrays.copyOf(times, capacity);
+		starts = Arrays.copyOf(starts, capacity);
+		ends = Arrays.copyOf(ends, capacity);
+	}
+
+	/**
+	  * Human-friendly string representation.
+	  *
+	  * @return string version of this instance.
+	  */
+	public synchronized String toString()
+	{
+		return "Versions=" + getNumVersions() + " Tape=" + tapeEnd;
+	}
+}
@@ -1,6 +1,7 @@
 package com.anandnatrajan.plastichash.utils;
 
-import java.util.ArrayList;
+import java.time.Clock;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -12,8 +13,90 @@ import java.util.List;
  */
 public class ServerContext
 {
-	// Store the historical configuration as a list of server counts.
-	final private List<Integer> N = new ArrayList<>();
+	// Store the historical configuration as an immutable snapshot, which
+	// is replaced wholesale on every change.
+	private volatile EpochHistory history = EpochHistory.EMPTY;
+	// Bumped on every change, always after the snapshot is replaced.
+	private volatile long version;
+	// Counts every epoch ever added, however much history is kept.
+	private volatile long epochsAdded;
+	// When each epoch was added, in milliseconds, aligned with the end of
+	// the history. When a what algorithm drops epochs, we can't tell which
+	// ones went, so the oldest times are dropped; each epoch left then has
+	// a time no older than its own, which errs on the side of youth. Null
+	// until somebody wants epochs timed, since the times can't be pooled
+	// with the snapshots, and would cost more than the snapshots do.
+	private volatile long[] times;
+	// Where to pool snapshots, if they are to be shared with other server
+	// contexts. May be null.
+	private final HistoryInterner interner;
+	private final Clock clock;
+	// No listeners, shared by every server context that has none.
+	private static final Listener[] NO_LISTENERS = new Listener[0];
+	// Told about every change, in order, while the change is still locked
+	// in. Replaced wholesale when listeners come and go.
+	private volatile Listener[] listeners = NO_LISTENERS;
+
+	/**
+	 * Something that wants to hear about every change to the history, as
+	 * it happens. Listeners are called with the server context locked, so
+	 * they must be quick, and must not change the history themselves.
+	 */
+	interface Listener
+	{
+		/**
+		 * Hear about a change to the history.
+		 *
+		 * @param version the version of the new history.
+		 * @param millis the time of the change, by the clock of the server
+		 * context.
+		 * @param history the new history.
+		 */
+		void historyChanged(long version, long millis, EpochHistory history);
+	}
+
+	/**
+	 * Create a server context with an empty history of its own.
+	 */
+	public ServerContext()
+	{
+		this(null, Clock.systemUTC());
+	}
+
+	/**
+	 * Create a server context with an empty history of its own, whose
+	 * epochs are timed by a clock of our choosing, from the first one on.
+	 *
+	 * @param clock the clock for timing epochs.
+	 */
+	public ServerContext(final Clock clock)
+	{
+		this(null, clock);
+		timeEpochs();
+	}
+
+	/**
+	 * Local constructor, for server contexts that share their snapshots.
+	 *
+	 * @param interner the pool of shared snapshots, or null.
+	 */
+	ServerContext(final HistoryInterner interner)
+	{
+		this(interner, Clock.systemUTC());
+	}
+
+	/**
+	 * Local constructor, for server contexts that share their snapshots
+	 * and time their epochs with a clock of our choosing.
+	 *
+	 * @param interner the pool of shared snapshots, or null.
+	 * @param clock the clock for timing epochs.
+	 */
+	ServerContext(final HistoryInterner interner, final Clock clock)
+	{
+		this.interner = interner;
+		this.clock = clock;
+	}
 
 	/**
 	 * Get the last epoch entry, or -1 if no epoch history exists.
@@ -22,11 +105,7 @@ public class ServerContext
 	 */
 	public int getLastEpoch()
 	{
-		synchronized (N)
-		{
-			final int size = N.size();
-			return (size > 0) ? N.get(size-1) : -1;
-		}
+		return history.getLastEpoch();
 	}
 
 	/**
@@ -36,7 +115,7 @@ public class ServerContext
 	 */
 	public int getNumEpochs()
 	{
-		return N.size();
+		return history.size();
 	}
 
 	/**
@@ -47,10 +126,77 @@ public class ServerContext
 	 */
 	public List<Integer> getAllEpochs()
 	{
-		synchronized (N)
-		{
-			return new ArrayList<>(N);
-		}
+		return history.toList();
+	}
+
+	/**
+	 * Get the current snapshot of the configuration history. The snapshot
+	 * never changes, so there's no need to copy it.
+	 *
+	 * @return the current snapshot.
+	 */
+	public EpochHistory getHistory()
+	{
+		return history;
+	}
+
+	/**
+	 * Get the version of the configuration history, which goes up by one
+	 * on every change. Reading the version before the snapshot guarantees
+	 * the snapshot is at least as new as the version.
+	 *
+	 * @return the current version.
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * Get the count of epochs ever added to the configuration history,
+	 * including those since compacted away.
+	 *
+	 * @return the number of epochs added.
+	 */
+	public long getEpochsAdded()
+	{
+		return epochsAdded;
+	}
+
+	/**
+	 * Get the time each epoch in the configuration history was added, in
+	 * milliseconds since the epoch of the clock, as of the same change as
+	 * the current snapshot. Epochs left behind by a what algorithm may
+	 * appear younger than they are, but never older. Epochs are only timed
+	 * once somebody wants them to be, so if they weren't yet, they are from
+	 * here on, and the epochs so far all count as added just now.
+	 *
+	 * @return the times, one per epoch, oldest first.
+	 */
+	public synchronized long[] getEpochTimes()
+	{
+		timeEpochs();
+		return times.clone();
+	}
+
+	/**
+	 * Start timing epochs, if they aren't timed already. The epochs so far
+	 * all count as added just now.
+	 */
+	synchronized void timeEpochs()
+	{
+		if (times == null)
+			times = align(new long[0], -1, history.size());
+	}
+
+	/**
+	 * Get the clock that times the epochs.
+	 *
+	 * @return the clock.
+	 */
+	Clock getClock()
+	{
+		return clock;
 	}
 
 	/**
@@ -62,9 +208,14 @@ public class ServerContext
 	 */
 	public ServerContext addEpoch(final int n)
 	{
-		synchronized (N)
+		synchronized (this)
 		{
-			N.add(n);
+			history = intern(history.with(n));
+			if (times != null)
+				times = align(times, clock.millis(), history.size());
+			version++;
+			epochsAdded++;
+			notifyListeners();
 		}
 		return this;
 	}
@@ -80,14 +231,137 @@ public class ServerContext
 	 */
 	public ServerContext replaceAllEpochs(final List<Integer> newN)
 	{
-		synchronized (N)
+		return replaceHistory(EpochHistory.of(newN));
+	}
+
+	/**
+	 * Replace the entire configuration history with a new snapshot.
+	 *
+	 * @param newHistory the new configuration history.
+	 * @return the current instance, just so we can chain calls.
+	 */
+	ServerContext replaceHistory(final EpochHistory newHistory)
+	{
+		synchronized (this)
 		{
-			N.clear();
-			N.addAll(newN);
+			history = intern(newHistory);
+			if (times != null)
+				times = align(times, -1, history.size());
+			version++;
+			notifyListeners();
 		}
 		return this;
 	}
 
+	/**
+	 * Replace the entire configuration history with a new snapshot that
+	 * was worked out ahead of time from this one, plus one epoch.
+	 *
+	 * @param base the version the new snapshot was worked out from.
+	 * @param newHistory the new configuration history.
+	 * @return true if the history was replaced, false if it had changed
+	 * since the base version, in which case nothing was done.
+	 */
+	boolean commitHistory(final long base, final EpochHistory newHistory)
+	{
+		synchronized (this)
+		{
+			if (version != base)
+				return false;
+			history = intern(newHistory);
+			if (times != null)
+				times = align(times, clock.millis(), history.size());
+			version++;
+			epochsAdded++;
+			notifyListeners();
+		}
+		return true;
+	}
+
+	/**
+	 * Make an unshared copy of this server context, for working things out
+	 * on the side. The copy starts from the same snapshot and counters.
+	 *
+	 * @return the copy.
+	 */
+	ServerContext copy()
+	{
+		final ServerContext sc = new ServerContext(null, clock);
+		synchronized (this)
+		{
+			sc.history = history;
+			sc.times = times;
+			sc.version = version;
+			sc.epochsAdded = epochsAdded;
+		}
+		return sc;
+	}
+
+	/**
+	 * Start telling a listener about every change to the history.
+	 *
+	 * @param listener the listener.
+	 */
+	synchronized void addListener(final Listener listener)
+	{
+		final Listener[] newListeners =
+			Arrays.copyOf(listeners, listeners.length + 1);
+		newListeners[listeners.length] = listener;
+		listeners = newListeners;
+	}
+
+	/**
+	 * Stop telling a listener about changes to the history.
+	 *
+	 * @param listener the listener.
+	 */
+	synchronized void removeListener(final Listener listener)
+	{
+		final Listener[] newListeners = new Listener[listeners.length];
+		int n = 0;
+		for (Listener l : listeners)
+		{
+			if (l != listener)
+				newListeners[n++] = l;
+		}
+		listeners = (n == 0) ? NO_LISTENERS : Arrays.copyOf(newListeners, n);
+	}
+
+	private void notifyListeners()
+	{
+		final Listener[] listeners = this.listeners;
+		if (listeners.length == 0)
+			return;
+		final long millis = clock.millis();
+		for (Listener listener : listeners)
+			listener.historyChanged(version, millis, history);
+	}
+
+	// Append a time, if any, and keep as many of the latest times as there
+	// are epochs. If there are more epochs than times, the extra epochs at
+	// the front are older than any we know of, so give them the oldest.
+	private long[] align(final long[] times, final long now, final int size)
+	{
+		final int n = times.length + ((now < 0) ? 0 : 1);
+		final long[] all = (now < 0) ? times : Arrays.copyOf(times, n);
+		if (now >= 0)
+			all[n - 1] = now;
+		if (n == size)
+			return all;
+		final long[] aligned = new long[size];
+		final int kept = Math.min(n, size);
+		System.arraycopy(all, n - kept, aligned, size - kept, kept);
+		Arrays.fill(aligned, 0, size - kept,
+			(kept > 0) ? aligned[size - kept] : clock.millis());
+		return aligned;
+	}
+
+	// Swap the snapshot for its pooled equivalent, if we're pooling.
+	private EpochHistory intern(final EpochHistory newHistory)
+	{
+		return (interner == null) ? newHistory : interner.intern(newHistory);
+	}
+
 	/**
 	  * Human-friendly string representation, NOT to be used for any
 	  * manipulation of configuration history.
@@ -96,6 +370,6 @@ public class ServerContext
 	  */
 	public String toString()
 	{
-		return N.toString();
+		return history.toString();
 	}
 }
@@ -0,0 +1,250 @@
+package com.anandnatrajan.plastichash.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+
+import com.anandnatrajan.plastichash.client.Snapshot;
+
+/**
+ * Exports every version of the configuration history of a plastic hash
+ * instance for client routers to pull: to a file, replaced atomically so
+ * that readers never see half of one, and on a loopback port, which sends
+ * the latest snapshot to whoever connects, and hangs up.
+ *
+ * Changes are only noted as they happen; the file is written on a thread
+ * of its own, so adding an epoch never waits for the disk. Several quick
+ * changes may come out as one write, of the latest version. Every exporter
+ * is a new incarnation, picked at random, so that client routers can tell
+ * a restart from a step back.
+ *
+ * Only the history is exported. Client routers know nothing of pins or
+ * gradual rollouts, so they would send pinned ids, and ids still rolling
+ * out, somewhere other than the instance does. Instances with either are
+ * refused, and neither must be set up once exporting has started.
+ *
+ * @author Anand Natrajan
+ */
+public class SnapshotExporter implements AutoCloseable
+{
+	private final ServerContext sc;
+	private final long incarnation = new SecureRandom().nextLong()
+		& Long.MAX_VALUE;
+	private final ServerContext.Listener listener = this::changed;
+	// Signals the writer, apart from the instance monitor, so that noting
+	// a change never waits for a write in progress.
+	private final Object signal = new Object();
+	private volatile Snapshot latest;
+	private volatile boolean isClosed;
+	private Path file;
+	private Thread writer;
+	private ServerSocket endpoint;
+	private Thread server;
+
+	/**
+	 * @param ph the plastic hash instance whose history to export.
+	 * @throws IllegalArgumentException if the instance has pins or rolls
+	 * out changes gradually.
+	 */
+	public SnapshotExporter(final PlasticHash ph)
+	{
+		if (ph.getPinnedIds().length > 0 || ph.hasRollout())
+			throw new IllegalArgumentException
+				("Pins and rollouts can't be exported");
+		this.sc = ph.getServerContext();
+		synchronized (sc)
+		{
+			changed(sc.getVersion(), 0, sc.getHistory());
+			sc.addListener(listener);
+		}
+	}
+
+	/**
+	 * Write every version to a file, starting with the current one.
+	 *
+	 * @param file the file.
+	 * @return the current instance, just so we can chain calls.
+	 * @throws IOException if the file can't be written.
+	 */
+	public synchronized SnapshotExporter exportTo(final Path file)
+		throws IOException
+	{
+		if (this.file != null)
+			throw new IllegalStateException("Already exporting to a file");
+		this.file = file;
+		write();
+		writer = new Thread(this::runWriter, "SnapshotExporter-" + file);
+		writer.setDaemon(true);
+		writer.start();
+		return this;
+	}
+
+	/**
+	 * Serve the latest version on a loopback port.
+	 *
+	 * @param port the port, or 0 for any free port.
+	 * @return the current instance, just so we can chain calls.
+	 * @throws IOException if the port can't be listened on.
+	 */
+	public synchronized SnapshotExporter listen(final int port)
+		throws IOException
+	{
+		if (endpoint != null)
+			throw new IllegalStateException("Already listening");
+		endpoint = new ServerSocket(port, 50,
+			InetAddress.getLoopbackAddress());
+		server = new Thread(this::runServer,
+			"SnapshotExporter-" + endpoint.getLocalPort());
+		server.setDaemon(true);
+		server.start();
+		return this;
+	}
+
+	/**
+	 * Get the address of the loopback port.
+	 *
+	 * @return the address, or null if not listening.
+	 */
+	public synchronized InetSocketAddress getAddress()
+	{
+		return (endpoint == null) ? null : new InetSocketAddress
+			(InetAddress.getLoopbackAddress(), endpoint.getLocalPort());
+	}
+
+	/**
+	 * Get the latest version noted.
+	 *
+	 * @return the snapshot, or null if the history is empty.
+	 */
+	public Snapshot getLatest()
+	{
+		return latest;
+	}
+
+	/**
+	 * Stop exporting. The file stays where it is, with the last version.
+	 */
+	public void close()
+	{
+		sc.removeListener(listener);
+		synchronized (signal)
+		{
+			isClosed = true;
+			signal.notifyAll();
+		}
+		synchronized (this)
+		{
+			if (endpoint != null)
+			{
+				try
+				{
+					endpoint.close();
+				}
+				catch (IOException ioe)
+				{
+					// Closing anyway.
+				}
+			}
+		}
+	}
+
+	// Called with the server context locked, so just note the change.
+	private void changed(final long version, final long millis,
+		final EpochHistory history)
+	{
+		if (history.size() == 0 || history.get(0) <= 0)
+			return; // Nowhere to route to.
+		latest = new Snapshot(incarnation, version, history.toArray());
+		synchronized (signal)
+		{
+			signal.notifyAll();
+		}
+	}
+
+	// Write whenever there is a version newer than the one in the file.
+	private void runWriter()
+	{
+		Snapshot written = latest;
+		while (true)
+		{
+			synchronized (signal)
+			{
+				while (!isClosed && latest == written)
+				{
+					try
+					{
+						signal.wait();
+					}
+					catch (InterruptedException ie)
+					{
+						return;
+					}
+				}
+				if (isClosed)
+					return;
+			}
+			written = latest;
+			try
+			{
+				write();
+			}
+			catch (IOException ioe)
+			{
+				// Try again with the next version.
+			}
+		}
+	}
+
+	private void write() throws IOException
+	{
+		final Snapshot snapshot = latest;
+		if (snapshot == null)
+			return;
+		final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.write(temp, (snapshot.format() + "\n")
+			.getBytes(StandardCharsets.US_ASCII));
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void runServer()
+	{
+		while (!isClosed)
+		{
+			try (Socket socket = endpoint.accept())
+			{
+				final Snapshot snapshot = latest;
+				if (snapshot == null)
+					continue; // Nothing to send yet, so just hang up.
+				final OutputStream out = socket.getOutputStream();
+				out.write((snapshot.format() + "\n")
+					.getBytes(StandardCharsets.US_ASCII));
+				out.flush();
+			}
+			catch (IOException ioe)
+			{
+				// Either closed, or one client went wrong; carry on if not
+				// closed.
+			}
+		}
+	}
+
+	/**
+	  * Human-friendly string representation.
+	  *
+	  * @return string version of this instance.
+	  */
+	public String toString()
+	{
+		final Snapshot snapshot = latest;
+		return (snapshot == null) ? "No snapshot" : snapshot.toString();
+	}
+}
@@ -0,0 +1,377 @@
+package com.anandnatrajan.plastichash.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs keyed tasks on a pool of workers, always running the tasks for one
+ * key on the same worker, one after the other, so that they can make the
+ * most of whatever the worker has cached for that key. Keys are assigned
+ * to workers with a plastic hash, so when the pool grows or shrinks, only
+ * the fewest keys move to another worker.
+ *
+ * When a key moves, its tasks still run in the order they were submitted:
+ * every old worker gets a fence in its queue on a resize, and the first
+ * tasks of a moved key wait on its new worker until its old worker has
+ * reached the fence, i.e., finished everything it had for that key. That
+ * wait holds up the new worker, so resizes are best done when queues are
+ * short.
+ *
+ * @author Anand Natrajan
+ */
+public class StickyExecutor implements AutoCloseable
+{
+	private final PlasticHash ph;
+	private final ThreadFactory threadFactory;
+	private volatile Generation generation;
+	// Workers let go by a shrink, which may still be finishing their tasks.
+	private final List<Worker> retired = new ArrayList<>();
+	private boolean isShutdown;
+
+	/**
+	 * @param numWorkers the number of workers to start with, at least one.
+	 * @param ph the plastic hash instance for assigning keys to workers.
+	 * Its configuration history is managed by this executor from here on.
+	 * @param threadFactory where to get threads for the workers.
+	 */
+	public StickyExecutor(final int numWorkers, final PlasticHash ph,
+		final ThreadFactory threadFactory)
+	{
+		if (numWorkers < 1)
+			throw new IllegalArgumentException("Need a worker, at least");
+		this.ph = ph;
+		this.threadFactory = threadFactory;
+		ph.addEpoch(numWorkers);
+		final Worker[] workers = new Worker[numWorkers];
+		for (int i = 0; i < numWorkers; i++)
+			workers[i] = new Worker(0);
+		this.generation = new Generation(0, workers,
+			ph.getServerContext().getHistory(), null, null);
+		for (Worker worker : workers)
+			worker.start(threadFactory);
+	}
+
+	public StickyExecutor(final int numWorkers,
+		final ThreadFactory threadFactory)
+	{
+		this(numWorkers, new PlasticHashFactory().createInstance(),
+			threadFactory);
+	}
+
+	public StickyExecutor(final int numWorkers)
+	{
+		this(numWorkers, Executors.defaultThreadFactory());
+	}
+
+	/**
+	 * Create an executor whose workers are virtual threads. Virtual threads
+	 * came with Java 21, so on older runtimes this throws an exception.
+	 *
+	 * @param numWorkers the number of workers to start with.
+	 * @return the executor.
+	 * @throws UnsupportedOperationException if there are no virtual threads.
+	 */
+	public static StickyExecutor newVirtual(final int numWorkers)
+	{
+		return new StickyExecutor(numWorkers, virtualThreadFactory());
+	}
+
+	/**
+	 * Get a factory for virtual threads, looked up reflectively so that the
+	 * code still compiles and runs on older runtimes.
+	 *
+	 * @return the thread factory.
+	 * @throws UnsupportedOperationException if there are no virtual threads.
+	 */
+	static ThreadFactory virtualThreadFactory()
+	{
+		try
+		{
+			final Object builder =
+				Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+				.getMethod("factory").invoke(builder);
+		}
+		catch (ReflectiveOperationException roe)
+		{
+			throw new UnsupportedOperationException
+				("Virtual threads need Java 21 or later", roe);
+		}
+	}
+
+	/**
+	 * Run a task on the worker for its key, after every task submitted
+	 * earlier for the same key.
+	 *
+	 * @param key the key of the task.
+	 * @param task the task.
+	 */
+	public void execute(final long key, final Runnable task)
+	{
+		while (true)
+		{
+			final Generation g = generation;
+			final int current = g.history.getServer(key);
+			CountDownLatch fence = null;
+			if (g.previous != null)
+			{
+				// Workers keep their numbers across resizes, so a key has
+				// moved if and only if its number has changed.
+				final int previous = g.previous.getServer(key);
+				if (previous != current && g.fences[previous].getCount() > 0)
+					fence = g.fences[previous];
+			}
+			// If a resize got to the worker first, try again, or else the
+			// task could end up after the fence in an old worker.
+			if (g.workers[current].offer(g.id, task, fence))
+				return;
+			synchronized (this)
+			{
+				if (isShutdown)
+					throw new RejectedExecutionException("Shut down");
+			}
+		}
+	}
+
+	/**
+	 * Grow or shrink the pool of workers.
+	 *
+	 * @param numWorkers the new number of workers, at least one.
+	 */
+	public synchronized void resize(final int numWorkers)
+	{
+		if (numWorkers < 1)
+			throw new IllegalArgumentException("Need a worker, at least");
+		if (isShutdown)
+			throw new RejectedExecutionException("Shut down");
+		final Generation g = generation;
+		final int id = g.id + 1;
+		ph.addEpoch(numWorkers);
+		final Worker[] workers = Arrays.copyOf(g.workers, numWorkers);
+		for (int i = g.workers.length; i < numWorkers; i++)
+			workers[i] = new Worker(id);
+		final CountDownLatch[] fences = new CountDownLatch[g.workers.length];
+		for (int i = 0; i < fences.length; i++)
+			fences[i] = new CountDownLatch(1);
+		generation = new Generation(id, workers,
+			ph.getServerContext().getHistory(), g, fences);
+		for (int i = g.workers.length; i < numWorkers; i++)
+			workers[i].start(threadFactory);
+		for (int i = 0; i < g.workers.length; i++)
+			g.workers[i].fence(id, fences[i], i >= numWorkers);
+		retired.removeIf(w -> w.done.getCount() == 0);
+		for (int i = numWorkers; i < g.workers.length; i++)
+			retired.add(g.workers[i]);
+	}
+
+	/**
+	 * Get the count of workers.
+	 *
+	 * @return the number of workers.
+	 */
+	public int getNumWorkers()
+	{
+		return generation.workers.length;
+	}
+
+	/**
+	 * Stop taking tasks, and let the workers finish what they have.
+	 */
+	public synchronized void shutdown()
+	{
+		if (isShutdown)
+			return;
+		isShutdown = true;
+		final Generation g = generation;
+		for (Worker worker : g.workers)
+			worker.fence(g.id + 1, new CountDownLatch(1), true);
+	}
+
+	/**
+	 * Wait for the workers to finish after a shutdown.
+	 *
+	 * @param timeout how long to wait.
+	 * @param unit the unit of the timeout.
+	 * @return true if all the workers finished in time.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public boolean awaitTermination(final long timeout, final TimeUnit unit)
+		throws InterruptedException
+	{
+		final long start = System.nanoTime();
+		final long total = unit.toNanos(timeout);
+		final List<Worker> workers;
+		synchronized (this)
+		{
+			workers = new ArrayList<>(retired);
+			workers.addAll(Arrays.asList(generation.workers));
+		}
+		for (Worker worker : workers)
+		{
+			final long left = total - (System.nanoTime() - start);
+			if (left <= 0 || !worker.done.await(left, TimeUnit.NANOSECONDS))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Shut down and wait for the workers to finish.
+	 */
+	public void close()
+	{
+		shutdown();
+		try
+		{
+			awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	  * Human-friendly string representation.
+	  *
+	  * @return string version of this instance.
+	  */
+	public String toString()
+	{
+		return "Workers=" + generation.workers.length + " " + ph;
+	}
+
+	/**
+	 * The workers and the key assignment between two resizes, along with
+	 * what it takes to hand keys over from the previous generation.
+	 */
+	static final class Generation
+	{
+		final int id;
+		final Worker[] workers;
+		final EpochHistory history;
+		// The previous assignment, and a fence for each previous worker,
+		// released once it has finished its tasks from before the resize.
+		final EpochHistory previous;
+		final CountDownLatch[] fences;
+
+		Generation(final int id, final Worker[] workers,
+			final EpochHistory history, final Generation previous,
+			final CountDownLatch[] fences)
+		{
+			this.id = id;
+			this.workers = workers;
+			this.history = history;
+			this.previous = (previous == null) ? null : previous.history;
+			this.fences = fences;
+		}
+	}
+
+	/**
+	 * One worker thread and its queue of tasks. Each task in the queue may
+	 * come with a fence to wait for before running it.
+	 */
+	static final class Worker implements Runnable
+	{
+		private final ArrayDeque<Object> queue = new ArrayDeque<>();
+		// Released when the worker has run its last task.
+		final CountDownLatch done = new CountDownLatch(1);
+		// The generation the worker takes tasks for.
+		private int generation;
+		private boolean isRetiring;
+
+		Worker(final int generation)
+		{
+			this.generation = generation;
+		}
+
+		void start(final ThreadFactory threadFactory)
+		{
+			threadFactory.newThread(this).start();
+		}
+
+		synchronized boolean offer(final int g, final Runnable task,
+			final CountDownLatch fence)
+		{
+			if (g != generation || isRetiring)
+				return false;
+			queue.add(fence == null ? task : new Object[] { fence, task });
+			notifyAll();
+			return true;
+		}
+
+		// Put a fence in the queue, after everything from the current
+		// generation, and take tasks for the next one from here on.
+		synchronized void fence(final int g, final CountDownLatch fence,
+			final boolean isLast)
+		{
+			generation = g;
+			isRetiring = isLast;
+			queue.add(fence);
+			notifyAll();
+		}
+
+		public void run()
+		{
+			try
+			{
+				while (true)
+				{
+					final Object item;
+					final boolean isLast;
+					synchronized (this)
+					{
+						while (queue.isEmpty())
+							wait();
+						item = queue.poll();
+						isLast = isRetiring && queue.isEmpty();
+					}
+					if (item instanceof CountDownLatch)
+					{
+						((CountDownLatch) item).countDown();
+						if (isLast)
+							return;
+					}
+					else if (item instanceof Object[])
+					{
+						final Object[] pair = (Object[]) item;
+						((CountDownLatch) pair[0]).await();
+						runTask((Runnable) pair[1]);
+					}
+					else
+					{
+						runTask((Runnable) item);
+					}
+				}
+			}
+			catch (InterruptedException ie)
+			{
+				Thread.currentThread().interrupt();
+			}
+			finally
+			{
+				done.countDown();
+			}
+		}
+
+		private static void runTask(final Runnable task)
+		{
+			try
+			{
+				task.run();
+			}
+			catch (RuntimeException | Error e)
+			{
+				final Thread t = Thread.currentThread();
+				t.getUncaughtExceptionHandler().uncaughtException(t, e);
+			}
+		}
+	}
+}
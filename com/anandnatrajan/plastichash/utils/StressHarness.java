@@ -0,0 +1,559 @@
+package com.anandnatrajan.plastichash.utils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Routes from many threads at once while another thread keeps changing the
+ * fleet size and compacting the history, to see how lookups scale with the
+ * number of threads, and whether they stay correct under contention.
+ *
+ * Every lookup is checked: the server must be within the fleet size of
+ * some snapshot that was current while the lookup ran, and every now and
+ * then the snapshot itself is checked for being whole. Throughput is
+ * reported per thread count, along with how well it scales from one
+ * thread. With profiling on, a flight recording is taken of each step,
+ * and the monitors threads had to wait for, the parks and the hottest
+ * methods are reported. The recorder can't see cache misses, so false
+ * sharing shows up only indirectly: as poor scaling of a configuration
+ * that writes shared memory on every lookup, e.g., with a request meter, a
+ * hot id sketch or a lookup cache, compared with one that doesn't, and as
+ * the methods doing the writing being hot.
+ *
+ * Run it on its own to put the usual configurations through their paces.
+ *
+ * @author Anand Natrajan
+ */
+public class StressHarness
+{
+	// How many versions of the history to keep fleet sizes for.
+	private static final int LOG_SIZE = 1 << 16;
+	// How many lookups between checks of the snapshot itself.
+	private static final int CHECK_EVERY = 256;
+
+	private final Supplier<PlasticHash> instances;
+	private final ThreadFactory threads;
+	private Duration step = Duration.ofSeconds(1);
+	private Duration churn = Duration.ofMillis(1);
+	private int minFleet = 8;
+	private int maxFleet = 64;
+	private boolean isProfiling;
+
+	/**
+	 * @param instances where to get a fresh plastic hash instance for each
+	 * step.
+	 * @param threads where to get the routing threads.
+	 */
+	public StressHarness(final Supplier<PlasticHash> instances,
+		final ThreadFactory threads)
+	{
+		this.instances = instances;
+		this.threads = threads;
+	}
+
+	/**
+	 * Get a factory for virtual threads, if the runtime has them.
+	 *
+	 * @return the thread factory.
+	 * @throws UnsupportedOperationException if there are no virtual threads.
+	 */
+	public static ThreadFactory virtualThreads()
+	{
+		return StickyExecutor.virtualThreadFactory();
+	}
+
+	/**
+	 * Set how long to route at each thread count.
+	 *
+	 * @param step the duration of each step.
+	 * @return the current instance, just so we can chain calls.
+	 */
+	public StressHarness setStep(final Duration step)
+	{
+		this.step = step;
+		return this;
+	}
+
+	/**
+	 * Set how long the changing thread waits between changes.
+	 *
+	 * @param churn the pause, or zero to change as fast as possible.
+	 * @return the current instance, just so we can chain calls.
+	 */
+	public StressHarness setChurn(final Duration churn)
+	{
+		this.churn = churn;
+		return this;
+	}
+
+	/**
+	 * Set the range of fleet sizes to change between.
+	 *
+	 * @param minFleet the smallest fleet.
+	 * @param maxFleet the largest fleet.
+	 * @return the current instance, just so we can chain calls.
+	 */
+	public StressHarness setFleet(final int minFleet, final int maxFleet)
+	{
+		this.minFleet = minFleet;
+		this.maxFleet = maxFleet;
+		return this;
+	}
+
+	/**
+	 * Set whether to take a flight recording of each step.
+	 *
+	 * @param isProfiling true to profile.
+	 * @return the current instance, just so we can chain calls.
+	 */
+	public StressHarness setProfiling(final boolean isProfiling)
+	{
+		this.isProfiling = isProfiling;
+		return this;
+	}
+
+	/**
+	 * Route at each thread count in turn.
+	 *
+	 * @param threadCounts the thread counts.
+	 * @return what was measured at each thread count.
+	 */
+	public List<Result> run(final int... threadCounts)
+	{
+		final List<Result> results = new ArrayList<>();
+		for (int n : threadCounts)
+		{
+			final Result result = runStep(n);
+			result.scaling = results.isEmpty() ? 1
+				: result.getThroughput() * results.get(0).threads
+					/ results.get(0).getThroughput() / n;
+			results.add(result);
+		}
+		return results;
+	}
+
+	private Result runStep(final int numThreads)
+	{
+		final PlasticHash ph = instances.get();
+		final ServerContext sc = ph.getServerContext();
+		final Log log = new Log();
+		sc.addListener(log);
+		ph.addEpoch(maxFleet);
+		final Result result = new Result(numThreads);
+		final Recording recording = isProfiling ? startRecording() : null;
+		final AtomicLong lookups = new AtomicLong();
+		final AtomicLong violations = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(numThreads);
+		final long deadline = System.nanoTime() + step.toNanos();
+		final Thread changer = new Thread(() -> change(ph, deadline),
+			"StressHarness-changer");
+		changer.start();
+		for (int t = 0; t < numThreads; t++)
+		{
+			final long seed = PlasticHash.mix(t);
+			threads.newThread(() -> {
+				final long[] counts = route(ph, log, seed, deadline);
+				lookups.addAndGet(counts[0]);
+				violations.addAndGet(counts[1]);
+				done.countDown();
+			}).start();
+		}
+		try
+		{
+			done.await();
+			changer.join();
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+		}
+		sc.removeListener(log);
+		result.lookups = lookups.get();
+		result.violations = violations.get();
+		result.changes = sc.getVersion();
+		result.nanos = step.toNanos();
+		if (recording != null)
+			readRecording(recording, result);
+		return result;
+	}
+
+	// Keep changing the fleet size, and now and then compact, until the
+	// deadline.
+	private void change(final PlasticHash ph, final long deadline)
+	{
+		long random = PlasticHash.mix(System.nanoTime());
+		for (int i = 0; System.nanoTime() < deadline; i++)
+		{
+			random = PlasticHash.mix(random);
+			ph.addEpoch(minFleet
+				+ (int) ((random >>> 1) % (maxFleet - minFleet + 1)));
+			if (i % 8 == 7)
+				ph.reconsider();
+			if (churn.isZero())
+				Thread.onSpinWait();
+			else
+			{
+				try
+				{
+					Thread.sleep(churn.toMillis(), churn.toNanosPart()
+						% 1000000);
+				}
+				catch (InterruptedException ie)
+				{
+					return;
+				}
+			}
+		}
+	}
+
+	// Route random ids until the deadline, checking every result, and
+	// count the lookups and the violations.
+	private static long[] route(final PlasticHash ph, final Log log,
+		long random, final long deadline)
+	{
+		final ServerContext sc = ph.getServerContext();
+		long lookups = 0;
+		long violations = 0;
+		while ((lookups & 1023) != 0 || System.nanoTime() < deadline)
+		{
+			random = PlasticHash.mix(random);
+			final long id = random >>> 1;
+			final long v1 = sc.getVersion();
+			final int server = ph.getServer(id);
+			final long v2 = sc.getVersion();
+			// A snapshot may be in place before its version is, so allow
+			// for whatever is in place now, too.
+			final int allowed = Math.max(log.maxFleet(v1, v2),
+				sc.getHistory().getLastEpoch());
+			if (server < 0 || server >= allowed)
+				violations++;
+			if (++lookups % CHECK_EVERY == 0 && !isWhole(sc.getHistory(), id))
+				violations++;
+		}
+		return new long[] { lookups, violations };
+	}
+
+	// Check that a snapshot is all there: every count is positive, the
+	// cached hash matches the counts, and a lookup stays within the fleet.
+	private static boolean isWhole(final EpochHistory h, final long id)
+	{
+		final int[] N = h.toArray();
+		if (N.length == 0 || h.hashCode() != Arrays.hashCode(N))
+			return false;
+		for (int n : N)
+		{
+			if (n <= 0)
+				return false;
+		}
+		final int server = h.getServer(id);
+		return server >= 0 && server < N[N.length - 1];
+	}
+
+	/**
+	 * The fleet size of each version of the history, as it was installed.
+	 */
+	static final class Log implements ServerContext.Listener
+	{
+		private final int[] fleets = new int[LOG_SIZE];
+		private volatile long logged = -1;
+
+		public void historyChanged(final long version, final long millis,
+			final EpochHistory history)
+		{
+			fleets[(int) (version % LOG_SIZE)] = history.getLastEpoch();
+			logged = version;
+			synchronized (this)
+			{
+				notifyAll();
+			}
+		}
+
+		// The largest fleet over a range of versions, or a bound no tighter
+		// than any fleet if the range has been overwritten already.
+		int maxFleet(final long from, final long to)
+		{
+			if (logged < to && !await(to))
+				return Integer.MAX_VALUE;
+			if (logged - from >= LOG_SIZE)
+				return Integer.MAX_VALUE;
+			int max = 0;
+			for (long v = Math.max(from, 1); v <= to; v++)
+				max = Math.max(max, fleets[(int) (v % LOG_SIZE)]);
+			return max;
+		}
+
+		// Wait for the listener, which is on its way, to log a version.
+		// Only lookups that overtake a change ever get here, so the rest
+		// never touch the monitor.
+		private synchronized boolean await(final long version)
+		{
+			while (logged < version)
+			{
+				try
+				{
+					wait();
+				}
+				catch (InterruptedException ie)
+				{
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static Recording startRecording()
+	{
+		final Recording recording = new Recording();
+		recording.enable("jdk.JavaMonitorEnter")
+			.withThreshold(Duration.ofMillis(1)).withStackTrace();
+		recording.enable("jdk.ThreadPark")
+			.withThreshold(Duration.ofMillis(1));
+		recording.enable("jdk.ExecutionSample")
+			.withPeriod(Duration.ofMillis(10));
+		recording.start();
+		return recording;
+	}
+
+	private static void readRecording(final Recording recording,
+		final Result result)
+	{
+		recording.stop();
+		Path file = null;
+		try
+		{
+			file = Files.createTempFile("stress", ".jfr");
+			recording.dump(file);
+			final Map<String, Integer> hot = new HashMap<>();
+			for (RecordedEvent e : RecordingFile.readAllEvents(file))
+			{
+				switch (e.getEventType().getName())
+				{
+				case "jdk.JavaMonitorEnter":
+					result.monitorWaits++;
+					result.monitorWaitNanos += e.getDuration().toNanos();
+					result.monitors.merge
+						(e.getClass("monitorClass").getName(), 1, Integer::sum);
+					break;
+				case "jdk.ThreadPark":
+					result.parks++;
+					break;
+				case "jdk.ExecutionSample":
+					if (e.getStackTrace() == null
+						|| e.getStackTrace().getFrames().isEmpty())
+						break;
+					final RecordedFrame top =
+						e.getStackTrace().getFrames().get(0);
+					hot.merge(top.getMethod().getType().getName() + "."
+						+ top.getMethod().getName(), 1, Integer::sum);
+					break;
+				default:
+					break;
+				}
+			}
+			hot.entrySet().stream()
+				.sorted((a, b) -> b.getValue() - a.getValue()).limit(5)
+				.forEach(e -> result.hotMethods.put(e.getKey(), e.getValue()));
+		}
+		catch (IOException ioe)
+		{
+			result.hotMethods.put("(no recording: " + ioe + ")", 0);
+		}
+		finally
+		{
+			recording.close();
+			if (file != null)
+				file.toFile().delete();
+		}
+	}
+
+	/**
+	 * What was measured at one thread count.
+	 */
+	public static class Result
+	{
+		final int threads;
+		long lookups;
+		long violations;
+		long changes;
+		long nanos;
+		double scaling;
+		long monitorWaits;
+		long monitorWaitNanos;
+		long parks;
+		final Map<String, Integer> monitors = new HashMap<>();
+		final Map<String, Integer> hotMethods = new LinkedHashMap<>();
+
+		Result(final int threads)
+		{
+			this.threads = threads;
+		}
+
+		/**
+		 * Get the count of routing threads.
+		 *
+		 * @return the number of threads.
+		 */
+		public int getThreads()
+		{
+			return threads;
+		}
+
+		/**
+		 * Get the count of lookups, over all the threads.
+		 *
+		 * @return the number of lookups.
+		 */
+		public long getLookups()
+		{
+			return lookups;
+		}
+
+		/**
+		 * Get the lookups per second, over all the threads.
+		 *
+		 * @return the throughput.
+		 */
+		public double getThroughput()
+		{
+			return lookups * 1e9 / Math.max(1, nanos);
+		}
+
+		/**
+		 * Get the throughput per thread, relative to that of the first step.
+		 *
+		 * @return the scaling, 1 when perfectly linear.
+		 */
+		public double getScaling()
+		{
+			return scaling;
+		}
+
+		/**
+		 * Get the count of lookups that broke an invariant.
+		 *
+		 * @return the number of violations, which had better be zero.
+		 */
+		public long getViolations()
+		{
+			return violations;
+		}
+
+		/**
+		 * Get the count of times a thread waited at least a millisecond to
+		 * enter a monitor, if profiled.
+		 *
+		 * @return the number of waits.
+		 */
+		public long getMonitorWaits()
+		{
+			return monitorWaits;
+		}
+
+		/**
+		 * Get the hottest methods, and how often each was sampled, if
+		 * profiled.
+		 *
+		 * @return the methods, hottest first.
+		 */
+		public Map<String, Integer> getHotMethods()
+		{
+			return hotMethods;
+		}
+
+		/**
+		  * Human-friendly string representation.
+		  *
+		  * @return string version of this instance.
+		  */
+		public String toString()
+		{
+			String s = String.format("threads=%d lookups=%.1fM/s scaling=%.2f"
+				+ " changes=%d violations=%d", threads, getThroughput() / 1e6,
+				scaling, changes, violations);
+			if (monitorWaits > 0 || parks > 0 || !hotMethods.isEmpty())
+			{
+				s += String.format(" monitorWaits=%d (%dms) %s parks=%d"
+					+ " hot=%s", monitorWaits, monitorWaitNanos / 1000000,
+					monitors, parks, hotMethods);
+			}
+			return s;
+		}
+	}
+
+	/**
+	 * Put the usual configurations through their paces, with platform
+	 * threads and, if the runtime has them, virtual threads.
+	 *
+	 * @param args the most threads, the seconds per step, and "profile" to
+	 * take a flight recording of each step, all optional.
+	 */
+	public static void main(String... args)
+	{
+		final int maxThreads = (args.length > 0) ? Integer.parseInt(args[0])
+			: Runtime.getRuntime().availableProcessors();
+		final Duration step = Duration.ofSeconds((args.length > 1)
+			? Integer.parseInt(args[1]) : 2);
+		final boolean isProfiling = (args.length > 2)
+			&& "profile".equals(args[2]);
+		final List<Integer> counts = new ArrayList<>();
+		for (int n = 1; n < maxThreads; n *= 2)
+			counts.add(n);
+		counts.add(maxThreads);
+		final int[] threadCounts =
+			counts.stream().mapToInt(Integer::intValue).toArray();
+		final PlasticHashFactory phf = new PlasticHashFactory();
+		final Map<String, Supplier<PlasticHash>> configs =
+			new LinkedHashMap<>();
+		configs.put("plain", () -> phf.createInstance
+			(new WhenAlgorithm.Always(), new WhatAlgorithm.Anneal()));
+		configs.put("meter", () -> configs.get("plain").get()
+			.setRequestMeter(new RequestMeter()));
+		configs.put("sketch", () -> configs.get("plain").get()
+			.setHotIdSketch(new HotIdSketch()));
+		configs.put("cache", () -> configs.get("plain").get()
+			.setLookupCache(new LookupCache(1 << 16)));
+		final Map<String, ThreadFactory> kinds = new LinkedHashMap<>();
+		kinds.put("platform", Thread::new);
+		try
+		{
+			kinds.put("virtual", virtualThreads());
+		}
+		catch (UnsupportedOperationException uoe)
+		{
+			System.out.println("Skipping virtual threads: "
+				+ uoe.getMessage());
+		}
+		for (Map.Entry<String, ThreadFactory> kind : kinds.entrySet())
+		{
+			for (Map.Entry<String, Supplier<PlasticHash>> config
+				: configs.entrySet())
+			{
+				System.out.println(kind.getKey() + " " + config.getKey());
+				final List<Result> results = new StressHarness
+					(config.getValue(), kind.getValue())
+					.setStep(step).setProfiling(isProfiling).run(threadCounts);
+				for (Result result : results)
+					System.out.println("  " + result);
+			}
+		}
+	}
+}
@@ -1,8 +1,12 @@
 package com.anandnatrajan.plastichash.utils;
 
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
   * A class to define algorithms that indicate WHAT to change in the
@@ -29,6 +33,63 @@ public abstract class WhatAlgorithm
 	  */
 	// abstract public String getId();
 
+	/**
+	  * Indicate whether an instance carries no state of its own, so that
+	  * one instance can be shared by any number of plastic hash instances.
+	  * Stateless algorithms that take parameters must reflect all of them
+	  * in their string representation, since that is how shared instances
+	  * are told apart.
+	  *
+	  * @return true if the instance can be shared, false by default.
+	  */
+	public boolean isStateless()
+	{
+		return false;
+	}
+
+	/**
+	  * Compact a history held in a working buffer, in place, if the
+	  * algorithm knows how, so that a pipeline can run it without a server
+	  * context. The library algorithms that can are invoked through it, by
+	  * way of invokeCompact, so there is only the one way to compact.
+	  *
+	  * @param N the buffer, whose first few entries are the history.
+	  * @param size the number of epochs in the history, at least one.
+	  * @return the number of epochs left at the front of the buffer, or -1
+	  * if the algorithm needs a server context, as it does by default.
+	  */
+	int compact(final int[] N, final int size)
+	{
+		return -1;
+	}
+
+	/**
+	  * Compact a copy of the history of a server context, and replace the
+	  * history with whatever is left.
+	  *
+	  * @param sc the server context to modify.
+	  */
+	final void invokeCompact(final ServerContext sc)
+	{
+		final int[] N = sc.getHistory().toArray();
+		if (N.length < 1)
+			return; // Nothing to change.
+		sc.replaceHistory(new EpochHistory(Arrays.copyOf(N,
+			compact(N, N.length))));
+	}
+
+	/**
+	  * Indicate whether the algorithm needs to know when each epoch was
+	  * added. Epochs are only timed for those that do, since the times
+	  * take more memory than the history itself.
+	  *
+	  * @return true if epochs are to be timed, false by default.
+	  */
+	boolean needsEpochTimes()
+	{
+		return false;
+	}
+
 	public String toString()
 	{
 		return this.getClass().getSimpleName();
@@ -38,122 +99,552 @@ public abstract class WhatAlgorithm
 
 	static public class Squeeze extends WhatAlgorithm
 	{
+		public boolean isStateless()
+		{
+			return true;
+		}
+
 		public void invoke(ServerContext sc)
 		{
-			final List<Integer> N = sc.getAllEpochs();
-			for (int i = 0; i < N.size() - 1; i++) // Using size on purpose.
+			invokeCompact(sc);
+		}
+
+		int compact(final int[] N, final int size)
+		{
+			// Squeeze out adjacent entries that are equal.
+			int len = 0;
+			for (int i = 0; i < size; i++)
 			{
-				if (N.get(i) == N.get(i+1))
-				{
-					// Squeeze out adjacent entries that are equal.
-					N.remove(i+1);
-					// Also, don't advance the loop counter yet.
-					i--;
-				}
+				if (len == 0 || N[len-1] != N[i])
+					N[len++] = N[i];
 			}
-			sc.replaceAllEpochs(N);
+			return len;
 		}
 	}
 
 	static public class Snap extends WhatAlgorithm
 	{
+		public boolean isStateless()
+		{
+			return true;
+		}
+
 		public void invoke(ServerContext sc)
 		{
-			final List<Integer> N = sc.getAllEpochs();
-			final int size = N.size();
-			if (size < 1)
-				return; // Nothing to change.
-			final int lastElem = N.get(size-1);
-			N.clear();
-			N.add(lastElem); // Push the last config in.
-			sc.replaceAllEpochs(N);
+			invokeCompact(sc);
+		}
+
+		int compact(final int[] N, final int size)
+		{
+			N[0] = N[size-1]; // Keep only the last config.
+			return 1;
 		}
 	}
 
 	static public class Halve extends WhatAlgorithm
 	{
+		public boolean isStateless()
+		{
+			return true;
+		}
+
 		public void invoke(ServerContext sc)
 		{
-			final List<Integer> N = sc.getAllEpochs();
-			final int size = N.size();
-			if (size < 1)
-				return; // Nothing to change.
+			invokeCompact(sc);
+		}
+
+		int compact(final int[] N, final int size)
+		{
 			final int halfSize = (int) Math.round((double) size / 2);
-			for (int i = 0; halfSize < N.size();) // Don't increment.
-				N.remove(i);
-			sc.replaceAllEpochs(N);
+			System.arraycopy(N, size - halfSize, N, 0, halfSize);
+			return halfSize;
 		}
 	}
 
 	static public class Spring extends WhatAlgorithm
 	{
+		public boolean isStateless()
+		{
+			return true;
+		}
+
 		public void invoke(ServerContext sc)
 		{
-			final List<Integer> N = sc.getAllEpochs();
-			final int size = N.size();
-			if (size < 1)
-				return; // Nothing to change.
+			invokeCompact(sc);
+		}
+
+		int compact(final int[] N, final int size)
+		{
 			// Find the first time the last entry occurred, and keep only
 			// that much history.
-			final int lastElem = N.get(size-1);
-			int lastOccur = size - 1;
-			for (int i = 0; i < lastOccur; i++)
+			int lastOccur = 0;
+			while (N[lastOccur] != N[size-1])
+				lastOccur++;
+			return lastOccur + 1;
+		}
+	}
+
+	static public class Anneal extends WhatAlgorithm
+	{
+		public boolean isStateless()
+		{
+			return true;
+		}
+
+		public void invoke(ServerContext sc)
+		{
+			invokeCompact(sc);
+		}
+
+		int compact(final int[] N, final int size)
+		{
+			// Squeeze conservatively, permitting only one change at a time,
+			// i.e., one growth or shrink adapted to the config after it.
+			// Fill the buffer from the back, which never overtakes the
+			// epoch being read, and keep the original of the one after.
+			int w = size - 1;
+			int next = N[size-1];
+			boolean isChanged = false;
+			for (int i = size - 2; i >= 0; i--)
 			{
-				if (N.get(i) == lastElem)
+				final int n = N[i];
+				if (n == next)
 				{
-					lastOccur = i;
-					break;
+					next = n;
+					continue; // True squeeze.
+				}
+				if (!isChanged)
+				{
+					N[--w] = (n < next) ? n + 1 : n - 1;
+					isChanged = true;
 				}
+				else
+					N[--w] = n;
+				next = n;
 			}
-			for (int i = lastOccur + 1; i < N.size();) // Using size on purpose.
-				N.remove(i);
-			sc.replaceAllEpochs(N);
+			System.arraycopy(N, w, N, 0, size - w);
+			return size - w;
 		}
 	}
 
-	static public class Anneal extends WhatAlgorithm
+	/**
+	  * Trim the history to the shortest one that moves no more than a
+	  * budgeted fraction of clients away from their current servers. The
+	  * fraction is computed exactly, over one period of residues. Short
+	  * histories are searched exhaustively, every subsequence that keeps
+	  * the last epoch; longer ones are trimmed greedily, one epoch at a
+	  * time, as well as from the front. If the period is too long to reason
+	  * about, only adjacent repeats are squeezed out, which moves nobody.
+	  *
+	  * Since the search runs with the server context locked, it is cut
+	  * off after a fixed amount of work, MAX_WORK steps of the lookup loop,
+	  * whatever the history: a period of a million residues, for instance,
+	  * affords about 64 candidate histories of length one. A greedy search
+	  * cut off early keeps whatever it has dropped so far, which is always
+	  * within budget, so the worst case is a longer history than need be,
+	  * never a stall or too many clients moved.
+	  */
+	static public class Trim extends WhatAlgorithm
 	{
+		// How many steps of the lookup loop we're willing to spend on one
+		// trim. An exhaustive search is only tried if it fits, and a greedy
+		// one stops when this runs out.
+		static final long MAX_WORK = 1L << 26;
+
+		final private double budget;
+		final private int maxPeriod;
+
+		public Trim(final double budget, final int maxPeriod)
+		{
+			this.budget = budget;
+			this.maxPeriod = maxPeriod;
+		}
+
+		public Trim(final double budget)
+		{
+			this(budget, Residues.MAX_PERIOD);
+		}
+
+		public boolean isStateless()
+		{
+			return true;
+		}
+
 		public void invoke(ServerContext sc)
 		{
-			final List<Integer> N = sc.getAllEpochs();
-			// Squeeze the config history, in each epoch.
-			final int size = N.size();
-			if (size < 1)
+			final EpochHistory h = sc.getHistory();
+			final int size = h.size();
+			if (size < 2)
 				return; // Nothing to change.
-			// This array will become the annealed history, in reverse.
-			List<Integer> newN = new ArrayList<>();
-			// Squeeze conservatively, permitting only one change at a time.
-			newN.add(N.get(size-1)); // Push the last config in.
-			boolean isChanged = false; // false = not changed, true = changed.
-			int i = size - 1;
-			while (i-- > 0)
-			{
-				// Many cases to consider here. Let's do each carefully.
-				if (N.get(i) == N.get(i + 1))
+			final int L = Residues.period(h, maxPeriod);
+			if (L < 0)
+			{
+				final int[] N = squeeze(h.toArray());
+				if (N.length < size)
+					sc.replaceHistory(new EpochHistory(N));
+				return;
+			}
+			final int[] before = Residues.servers(h, L);
+			final int limit = (int) Math.min(L, Math.floor(budget * L));
+			final Search search = new Search(before, limit);
+			final int[] N = (size < 63
+				&& (1L << (size - 1)) <= MAX_WORK / ((long) L * size))
+				? searchAll(h.toArray(), search)
+				: searchGreedy(h.toArray(), search);
+			if (N.length < size)
+				sc.replaceHistory(new EpochHistory(N));
+		}
+
+		/**
+		  * Counts the clients candidate histories move, for as long as
+		  * there is work left.
+		  */
+		private static final class Search
+		{
+			final int[] before;
+			final int limit;
+			private long work = MAX_WORK;
+
+			Search(final int[] before, final int limit)
+			{
+				this.before = before;
+				this.limit = limit;
+			}
+
+			// Count the residues a candidate moves, up to a cap, or return
+			// -1 if the work has run out.
+			int countMoved(final int[] N, final int cap)
+			{
+				if (work <= 0)
+					return -1;
+				work -= (long) before.length * N.length;
+				return Residues.countMoved(before, new EpochHistory(N), cap);
+			}
+		}
+
+		// Try every subsequence that keeps the last epoch, and pick the
+		// shortest within budget, moving the fewest clients. Only called
+		// when every subsequence fits in the work.
+		private static int[] searchAll(final int[] N, final Search search)
+		{
+			final int limit = search.limit;
+			final int size = N.length;
+			int[] best = N;
+			int bestMoved = 0;
+			for (long mask = 0; mask < (1L << (size - 1)); mask++)
+			{
+				final int len = Long.bitCount(mask) + 1;
+				if (len > best.length)
+					continue;
+				final int[] newN = new int[len];
+				for (int i = 0, j = 0; i < size - 1; i++)
 				{
-					// Do nothing. Don't push into new N. True squeeze. Also,
-					// not considered a change, since no allocations change.
+					if ((mask & (1L << i)) != 0)
+						newN[j++] = N[i];
 				}
-				else if (!isChanged && N.get(i) < N.get(i + 1))
+				newN[len-1] = N[size-1];
+				final int moved = search.countMoved(newN, limit);
+				if (moved >= 0 && moved <= limit
+					&& (len < best.length || moved < bestMoved))
 				{
-					// Growth phase. Adapt to the new config.
-					newN.add(N.get(i) + 1);
-					isChanged = true;
+					best = newN;
+					bestMoved = moved;
 				}
-				else if (!isChanged && N.get(i) > N.get(i + 1))
+			}
+			return best;
+		}
+
+		// Drop one epoch at a time, always the one that moves the fewest
+		// clients, until nothing more fits in the budget. Also try just
+		// cutting off the front of the history, and pick the shorter. If
+		// the work runs out, settle for the best drop found so far.
+		private static int[] searchGreedy(final int[] N, final Search search)
+		{
+			final int limit = search.limit;
+			int[] best = squeeze(N.clone());
+			boolean isCutOff = false;
+			while (best.length > 1 && !isCutOff)
+			{
+				int[] next = null;
+				int nextMoved = limit + 1;
+				for (int i = 0; i < best.length - 1; i++)
 				{
-					// Shrink phase. Adapt to the new config.
-					newN.add(N.get(i) - 1);
-					isChanged = true;
+					final int[] newN = new int[best.length - 1];
+					System.arraycopy(best, 0, newN, 0, i);
+					System.arraycopy(best, i + 1, newN, i, newN.length - i);
+					final int moved = search.countMoved(newN, nextMoved - 1);
+					if (moved < 0)
+					{
+						isCutOff = true;
+						break;
+					}
+					if (moved < nextMoved)
+					{
+						next = newN;
+						nextMoved = moved;
+					}
 				}
-				else
+				if (next == null)
+					break;
+				best = next;
+			}
+			for (int len = 1; len < best.length; len++)
+			{
+				final int[] newN = new int[len];
+				System.arraycopy(N, N.length - len, newN, 0, len);
+				final int moved = search.countMoved(newN, limit);
+				if (moved < 0)
+					break;
+				if (moved <= limit)
+					return newN;
+			}
+			return best;
+		}
+
+		// Squeeze out adjacent entries that are equal, which never moves
+		// any client.
+		private static int[] squeeze(final int[] N)
+		{
+			int len = 0;
+			for (int i = 0; i < N.length; i++)
+			{
+				if (len == 0 || N[len-1] != N[i])
+					N[len++] = N[i];
+			}
+			return Arrays.copyOf(N, len);
+		}
+
+		public String toString()
+		{
+			return super.toString() + "(" + budget + "," + maxPeriod + ")";
+		}
+	}
+
+	/**
+	  * Collapse the epochs older than a time-to-live into one, the last of
+	  * them, leaving the recent history as it is. Clients placed that long
+	  * ago have mostly reconnected anyway, so the lookup depth stays bounded
+	  * by the epochs added within the time-to-live. Compaction of an idle
+	  * fleet needs a when algorithm that is reconsidered now and then, e.g.,
+	  * by a compaction scheduler.
+	  */
+	static public class Age extends WhatAlgorithm
+	{
+		final private Duration ttl;
+
+		public Age(final Duration ttl)
+		{
+			this.ttl = ttl;
+		}
+
+		public boolean isStateless()
+		{
+			return true;
+		}
+
+		boolean needsEpochTimes()
+		{
+			return true;
+		}
+
+		public void invoke(ServerContext sc)
+		{
+			final EpochHistory h;
+			final long[] times;
+			synchronized (sc)
+			{
+				h = sc.getHistory();
+				times = sc.getEpochTimes();
+			}
+			final long cutoff = sc.getClock().millis() - ttl.toMillis();
+			// Keep the last old epoch, as the base for the recent ones, or
+			// just the last epoch if they are all old.
+			int young = 0;
+			while (young < h.size() && times[young] <= cutoff)
+				young++;
+			final int start = Math.min(young - 1, h.size() - 1);
+			if (start <= 0)
+				return; // At most one old epoch, nothing to collapse.
+			final int[] N = new int[h.size() - start];
+			for (int i = start; i < h.size(); i++)
+				N[i - start] = h.get(i);
+			sc.replaceHistory(new EpochHistory(N));
+		}
+
+		public String toString()
+		{
+			return super.toString() + "(" + ttl + ")";
+		}
+	}
+
+	/**
+	  * Pick whichever compaction moves the fewest live connections, rather
+	  * than the least of the id space, counted exactly over a registry of
+	  * connections. The candidates are what the library algorithms would
+	  * do, every cut from the front of the history, and every drop of one
+	  * epoch. The shortest candidate that moves no more than a budgeted
+	  * fraction of the connections, beyond those the history as it stands
+	  * already moves, wins, and the fewest moves break ties. With nobody
+	  * connected, nothing can move, so the history snaps.
+	  *
+	  * Candidates that repeat, or don't shrink the history, are dropped
+	  * before anything is counted, and the rest are counted shortest first,
+	  * so that once one fits, only others of its length are counted, and
+	  * only up to its moves. Counting is done over a snapshot of the
+	  * registry, which stays free for connections to come and go.
+	  */
+	static public class Connected extends WhatAlgorithm
+	{
+		final private ConnectionRegistry registry;
+		final private double budget;
+		final private WhatAlgorithm[] library = { new Snap(), new Squeeze(),
+			new Halve(), new Spring(), new Anneal() };
+
+		public Connected(final ConnectionRegistry registry,
+			final double budget)
+		{
+			this.registry = registry;
+			this.budget = budget;
+		}
+
+		public void invoke(ServerContext sc)
+		{
+			final EpochHistory h = sc.getHistory();
+			final int size = h.size();
+			if (size < 2)
+				return; // Nothing to change.
+			final Set<EpochHistory> unique = new LinkedHashSet<>();
+			for (WhatAlgorithm what : library)
+			{
+				final ServerContext copy = sc.copy();
+				what.invoke(copy);
+				unique.add(copy.getHistory());
+			}
+			final int[] N = h.toArray();
+			for (int len = 1; len < size; len++)
+				unique.add(new EpochHistory
+					(Arrays.copyOfRange(N, size - len, size)));
+			for (int i = 0; i < size - 1; i++)
+			{
+				final int[] newN = new int[size - 1];
+				System.arraycopy(N, 0, newN, 0, i);
+				System.arraycopy(N, i + 1, newN, i, newN.length - i);
+				unique.add(new EpochHistory(newN));
+			}
+			final List<EpochHistory> candidates = new ArrayList<>();
+			for (EpochHistory candidate : unique)
+			{
+				if (candidate.size() > 0 && candidate.size() < size
+					&& candidate.getLastEpoch() == h.getLastEpoch())
+					candidates.add(candidate);
+			}
+			// Shortest first, keeping the order above among equals.
+			candidates.sort(Comparator.comparingInt(EpochHistory::size));
+			final ConnectionRegistry.Connections connections =
+				registry.snapshot();
+			final int limit = connections.countMoved(h, Integer.MAX_VALUE)
+				+ (int) Math.floor(budget * connections.size());
+			EpochHistory best = null;
+			int bestMoved = limit + 1;
+			for (EpochHistory candidate : candidates)
+			{
+				if (best != null && candidate.size() > best.size())
+					break; // Nothing longer can win.
+				final int moved = connections.countMoved(candidate,
+					bestMoved - 1);
+				if (moved < bestMoved)
 				{
-					// Don't rock the boat. No change.
-					newN.add(N.get(i));
+					best = candidate;
+					bestMoved = moved;
 				}
 			}
-			Collections.reverse(newN);
-			sc.replaceAllEpochs(newN);
+			if (best != null)
+				sc.replaceHistory(best);
+		}
+
+		public String toString()
+		{
+			return super.toString() + "(" + budget + ")";
+		}
+	}
+
+	/**
+	  * Run some other algorithms one after the other, as one fused pass
+	  * over a working buffer, and publish only the final history, so that
+	  * nobody ever sees the ones in between. The library algorithms work
+	  * on the buffer directly; any others work on a private copy of the
+	  * server context. The size of the history after each stage of the
+	  * last run is kept for tuning.
+	  */
+	static public class Pipeline extends WhatAlgorithm
+	{
+		final private WhatAlgorithm[] whats;
+		private int[] sizes;
+
+		public Pipeline(final WhatAlgorithm... whats)
+		{
+			this.whats = whats.clone();
+			this.sizes = new int[whats.length + 1];
+		}
+
+		boolean needsEpochTimes()
+		{
+			for (WhatAlgorithm what : whats)
+			{
+				if (what.needsEpochTimes())
+					return true;
+			}
+			return false;
+		}
+
+		public void invoke(ServerContext sc)
+		{
+			final EpochHistory h = sc.getHistory();
+			final int[] newSizes = new int[whats.length + 1];
+			int[] N = h.toArray();
+			int size = N.length;
+			newSizes[0] = size;
+			ServerContext side = null;
+			for (int i = 0; i < whats.length; i++)
+			{
+				int newSize = (size < 1) ? 0 : whats[i].compact(N, size);
+				if (newSize < 0)
+				{
+					if (side == null)
+						side = sc.copy();
+					side.replaceHistory
+						(new EpochHistory(Arrays.copyOf(N, size)));
+					whats[i].invoke(side);
+					N = side.getHistory().toArray();
+					newSize = N.length;
+				}
+				size = newSize;
+				newSizes[i + 1] = size;
+			}
+			synchronized (this)
+			{
+				sizes = newSizes;
+			}
+			final EpochHistory newHistory =
+				new EpochHistory(Arrays.copyOf(N, size));
+			if (!newHistory.equals(h))
+				sc.replaceHistory(newHistory);
+		}
+
+		/**
+		  * Get the size of the history before the pipeline, and after each
+		  * stage, as of the last run.
+		  *
+		  * @return the sizes, one more than there are stages.
+		  */
+		public synchronized int[] getStageSizes()
+		{
+			return sizes.clone();
+		}
+
+		public String toString()
+		{
+			return super.toString() + Arrays.toString(whats);
 		}
 	}
 }
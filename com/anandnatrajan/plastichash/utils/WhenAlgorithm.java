@@ -1,6 +1,11 @@
 package com.anandnatrajan.plastichash.utils;
 
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalTime;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
   * A class to define algorithms that indicate WHEN to change the
@@ -29,6 +34,20 @@ public abstract class WhenAlgorithm
 	  */
 	// abstract public String getId();
 
+	/**
+	  * Indicate whether an instance carries no state of its own, so that
+	  * one instance can be shared by any number of plastic hash instances.
+	  * Stateless algorithms that take parameters must reflect all of them
+	  * in their string representation, since that is how shared instances
+	  * are told apart.
+	  *
+	  * @return true if the instance can be shared, false by default.
+	  */
+	public boolean isStateless()
+	{
+		return false;
+	}
+
 	public String toString()
 	{
 		return this.getClass().getSimpleName();
@@ -41,6 +60,11 @@ public abstract class WhenAlgorithm
 	  */
 	static public class Never extends WhenAlgorithm
 	{
+		public boolean isStateless()
+		{
+			return true;
+		}
+
 		public boolean invoke(ServerContext sc)
 		{
 			return false; // Yep, that's never.
@@ -52,6 +76,11 @@ public abstract class WhenAlgorithm
 	  */
 	static public class Always extends WhenAlgorithm
 	{
+		public boolean isStateless()
+		{
+			return true;
+		}
+
 		public boolean invoke(ServerContext sc)
 		{
 			return true; // Yep, that's always.
@@ -70,6 +99,11 @@ public abstract class WhenAlgorithm
 			this.k = k;
 		}
 
+		public boolean isStateless()
+		{
+			return true;
+		}
+
 		public boolean invoke(ServerContext sc)
 		{
 			return (sc.getNumEpochs() % k == 0); // Every kth time.
@@ -82,27 +116,26 @@ public abstract class WhenAlgorithm
 	}
 
 	/**
-	  * Modify the configuration history on demand.
+	  * Modify the configuration history on demand. The demand may come
+	  * from any thread.
 	  */
 	static public class OnDemand extends WhenAlgorithm
 	{
-		private boolean go;
+		private final AtomicBoolean go = new AtomicBoolean();
 
 		public void setGo(final boolean go)
 		{
-			this.go = go;
+			this.go.set(go);
 		}
 
 		public boolean isGo()
 		{
-			return go;
+			return go.get();
 		}
 
 		public boolean invoke(ServerContext sc)
 		{
-			final boolean wasGo = go;
-			go = false;
-			return wasGo; // Pretty capricious.
+			return go.getAndSet(false); // Pretty capricious.
 		}
 
 		public String toString()
@@ -113,6 +146,11 @@ public abstract class WhenAlgorithm
 
 	static public class Stasis extends WhenAlgorithm
 	{
+		public boolean isStateless()
+		{
+			return true;
+		}
+
 		public boolean invoke(ServerContext sc)
 		{
 			final List<Integer> N = sc.getAllEpochs();
@@ -135,6 +173,11 @@ public abstract class WhenAlgorithm
 			this.threshold = threshold;
 		}
 
+		public boolean isStateless()
+		{
+			return true;
+		}
+
 		public boolean invoke(ServerContext sc)
 		{
 			return (sc.getLastEpoch() < threshold);
@@ -159,6 +202,11 @@ public abstract class WhenAlgorithm
 			this.threshold = threshold;
 		}
 
+		public boolean isStateless()
+		{
+			return true;
+		}
+
 		public boolean invoke(ServerContext sc)
 		{
 			return (sc.getLastEpoch() > threshold);
@@ -169,4 +217,473 @@ public abstract class WhenAlgorithm
 			return super.toString() + "(" + threshold + ")";
 		}
 	}
+
+	/**
+	  * Modify the configuration history when lookups get too slow. The
+	  * cost of a lookup is either measured, or modelled from the depth of
+	  * the history, and compared with a budget. Measuring times batches of
+	  * lookups against the current history, since the clock can't resolve
+	  * a single one, and takes the p99 of the batch averages: a tail of
+	  * slow batches, e.g., from a deep history or a busy machine, rather
+	  * than of single slow lookups, which averaging smooths out. Once
+	  * triggered, it holds off until the cost has come back down below a
+	  * lower watermark, so that it doesn't flap around the budget.
+	  */
+	static public class LatencyBudget extends WhenAlgorithm
+	{
+		// Lookups per timed batch, since timing a single lookup would mostly
+		// time the clock.
+		static final int BATCH = 64;
+		// Cost of one epoch in a lookup, measured once per JVM, for the
+		// model. Zero until measured.
+		static private double nanosPerEpoch;
+		// Somewhere to put lookup results so they don't get optimised away.
+		static volatile int sink;
+
+		final private long budgetNanos;
+		final private long resumeNanos;
+		final private int samples;
+		private boolean armed = true;
+
+		/**
+		  * @param budgetNanos the lookup cost above which to trigger.
+		  * @param resumeNanos the lookup cost below which to re-arm, no
+		  * more than the budget.
+		  * @param samples the number of batches of lookups to time, or zero
+		  * to model the cost from the history depth instead.
+		  * @throws IllegalArgumentException if the watermark is above the
+		  * budget.
+		  */
+		public LatencyBudget(final long budgetNanos, final long resumeNanos,
+			final int samples)
+		{
+			if (resumeNanos > budgetNanos)
+				throw new IllegalArgumentException("Resume above budget: "
+					+ resumeNanos + " > " + budgetNanos);
+			this.budgetNanos = budgetNanos;
+			this.resumeNanos = resumeNanos;
+			this.samples = samples;
+		}
+
+		public synchronized boolean invoke(ServerContext sc)
+		{
+			final long cost = getCost(sc);
+			if (armed && cost > budgetNanos)
+			{
+				armed = false;
+				return true;
+			}
+			if (!armed && cost < resumeNanos)
+				armed = true;
+			return false;
+		}
+
+		/**
+		  * Get the cost of a lookup against the current history: the p99 of
+		  * the average lookup in each timed batch, or the modelled average.
+		  *
+		  * @param sc the server context.
+		  * @return the cost in nanoseconds.
+		  */
+		public long getCost(final ServerContext sc)
+		{
+			final EpochHistory h = sc.getHistory();
+			if (h.size() == 0)
+				return 0;
+			if (samples <= 0)
+				return (long) Math.ceil(h.size() * getNanosPerEpoch());
+			return sample(h, samples);
+		}
+
+		// Time batches of lookups of scattered ids, and get the p99 of the
+		// per-lookup average of each batch.
+		static long sample(final EpochHistory h, final int samples)
+		{
+			final long[] nanos = new long[samples];
+			long id = System.nanoTime();
+			int result = 0;
+			for (int i = 0; i < samples; i++)
+			{
+				final long start = System.nanoTime();
+				for (int j = 0; j < BATCH; j++)
+				{
+					id += 0x9E3779B97F4A7C15L; // Golden ratio stride.
+					result += h.getServer(id >>> 1);
+				}
+				nanos[i] = (System.nanoTime() - start + BATCH - 1) / BATCH;
+			}
+			sink = result;
+			Arrays.sort(nanos);
+			return nanos[Math.min(samples - 1, (int) (samples * 0.99))];
+		}
+
+		static synchronized double getNanosPerEpoch()
+		{
+			if (nanosPerEpoch == 0)
+			{
+				// Something deep enough that the walk dwarfs the overhead.
+				final int[] N = new int[256];
+				for (int i = 0; i < N.length; i++)
+					N[i] = 100 + (i % 2) * (i % 7 + 1);
+				final EpochHistory h = new EpochHistory(N);
+				sample(h, 1000); // Warm up.
+				nanosPerEpoch = Math.max(0.01,
+					(double) sample(h, 1000) / N.length);
+			}
+			return nanosPerEpoch;
+		}
+
+		public String toString()
+		{
+			return super.toString() + "(" + budgetNanos + "," + resumeNanos
+				+ "," + samples + ")";
+		}
+	}
+
+	/**
+	  * Defer the decision of another when algorithm until traffic is low.
+	  * Once the other algorithm says it is time, the change is held back
+	  * until the request rate drops to a threshold, or the time of day
+	  * falls into a trough window, or the change has been held back for
+	  * too long. Until the meter knows the rate, traffic isn't taken to be
+	  * low. Since nothing may happen to the history in the meantime,
+	  * the instance needs to be given another chance to act, e.g., by a
+	  * compaction scheduler.
+	  */
+	static public class LowTraffic extends WhenAlgorithm
+	{
+		final private WhenAlgorithm inner;
+		final private RequestMeter meter;
+		final private double maxRate;
+		final private long maxDeferMillis;
+		final private LocalTime troughStart;
+		final private LocalTime troughEnd;
+		final private Clock clock;
+		private long seenVersion = -1;
+		private boolean pending;
+		private long pendingSince;
+
+		/**
+		  * @param inner the when algorithm whose decisions to defer.
+		  * @param meter the meter counting requests.
+		  * @param maxRate the request rate at or below which to go ahead.
+		  * @param maxDefer the longest to defer a decision.
+		  * @param troughStart the time of day a trough window starts, or
+		  * null if there is no trough window.
+		  * @param troughEnd the time of day a trough window ends, which may
+		  * be before its start if the window spans midnight.
+		  * @param clock the clock for the deferral and the time of day.
+		  */
+		public LowTraffic(final WhenAlgorithm inner,
+			final RequestMeter meter, final double maxRate,
+			final Duration maxDefer, final LocalTime troughStart,
+			final LocalTime troughEnd, final Clock clock)
+		{
+			this.inner = inner;
+			this.meter = meter;
+			this.maxRate = maxRate;
+			this.maxDeferMillis = maxDefer.toMillis();
+			this.troughStart = troughStart;
+			this.troughEnd = troughEnd;
+			this.clock = clock;
+		}
+
+		public LowTraffic(final WhenAlgorithm inner,
+			final RequestMeter meter, final double maxRate,
+			final Duration maxDefer)
+		{
+			this(inner, meter, maxRate, maxDefer, null, null,
+				Clock.systemDefaultZone());
+		}
+
+		public synchronized boolean invoke(ServerContext sc)
+		{
+			// Only ask the other algorithm about histories it hasn't seen.
+			final long version = sc.getVersion();
+			if (version != seenVersion)
+			{
+				seenVersion = version;
+				if (!pending && inner.invoke(sc))
+				{
+					pending = true;
+					pendingSince = clock.millis();
+				}
+			}
+			if (!pending)
+				return false;
+			// An unknown rate, NaN, is never at or below the threshold.
+			if (meter.getRate() <= maxRate || isTrough()
+				|| clock.millis() - pendingSince >= maxDeferMillis)
+			{
+				pending = false;
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		  * Tell whether a change is being deferred.
+		  *
+		  * @return true if a change is pending.
+		  */
+		public synchronized boolean isPending()
+		{
+			return pending;
+		}
+
+		private boolean isTrough()
+		{
+			if (troughStart == null)
+				return false;
+			final LocalTime now = LocalTime.now(clock);
+			return troughStart.isBefore(troughEnd)
+				? !now.isBefore(troughStart) && now.isBefore(troughEnd)
+				: !now.isBefore(troughStart) || now.isBefore(troughEnd);
+		}
+
+		public String toString()
+		{
+			return super.toString() + "(" + inner + "," + maxRate + ")";
+		}
+	}
+
+	/**
+	  * Modify the configuration history when all of some other algorithms
+	  * say so. The algorithms are asked in order, and stop being asked as
+	  * soon as one says no, so put stateful ones, e.g., on demand, last.
+	  */
+	static public class And extends WhenAlgorithm
+	{
+		final private WhenAlgorithm[] whens;
+
+		public And(final WhenAlgorithm... whens)
+		{
+			this.whens = whens.clone();
+		}
+
+		public boolean isStateless()
+		{
+			return isAllStateless(whens);
+		}
+
+		public boolean invoke(ServerContext sc)
+		{
+			for (WhenAlgorithm when : whens)
+			{
+				if (!when.invoke(sc))
+					return false;
+			}
+			return true;
+		}
+
+		public String toString()
+		{
+			return super.toString() + Arrays.toString(whens);
+		}
+	}
+
+	/**
+	  * Modify the configuration history when any of some other algorithms
+	  * say so. The algorithms are asked in order, and stop being asked as
+	  * soon as one says yes, so those after it keep whatever state they
+	  * have, e.g., an on demand that is set stays set, and fires at the
+	  * next chance, even though the change it asked for has just been
+	  * made. Put stateful ones first if that matters.
+	  */
+	static public class Or extends WhenAlgorithm
+	{
+		final private WhenAlgorithm[] whens;
+
+		public Or(final WhenAlgorithm... whens)
+		{
+			this.whens = whens.clone();
+		}
+
+		public boolean isStateless()
+		{
+			return isAllStateless(whens);
+		}
+
+		public boolean invoke(ServerContext sc)
+		{
+			for (WhenAlgorithm when : whens)
+			{
+				if (when.invoke(sc))
+					return true;
+			}
+			return false;
+		}
+
+		public String toString()
+		{
+			return super.toString() + Arrays.toString(whens);
+		}
+	}
+
+	/**
+	  * Modify the configuration history when another algorithm says not to.
+	  */
+	static public class Not extends WhenAlgorithm
+	{
+		final private WhenAlgorithm when;
+
+		public Not(final WhenAlgorithm when)
+		{
+			this.when = when;
+		}
+
+		public boolean isStateless()
+		{
+			return when.isStateless();
+		}
+
+		public boolean invoke(ServerContext sc)
+		{
+			return !when.invoke(sc);
+		}
+
+		public String toString()
+		{
+			return super.toString() + "(" + when + ")";
+		}
+	}
+
+	/**
+	  * Modify the configuration history when another algorithm says so,
+	  * but not within some time of the last modification. The other
+	  * algorithm isn't even asked while cooling down.
+	  */
+	static public class Cooldown extends WhenAlgorithm
+	{
+		final private WhenAlgorithm when;
+		final private long cooldownMillis;
+		final private Clock clock;
+		private long lastMillis;
+		private boolean isFirst = true;
+
+		public Cooldown(final WhenAlgorithm when, final Duration cooldown,
+			final Clock clock)
+		{
+			this.when = when;
+			this.cooldownMillis = cooldown.toMillis();
+			this.clock = clock;
+		}
+
+		public Cooldown(final WhenAlgorithm when, final Duration cooldown)
+		{
+			this(when, cooldown, Clock.systemUTC());
+		}
+
+		public synchronized boolean invoke(ServerContext sc)
+		{
+			final long now = clock.millis();
+			if (!isFirst && now - lastMillis < cooldownMillis)
+				return false;
+			if (!when.invoke(sc))
+				return false;
+			isFirst = false;
+			lastMillis = now;
+			return true;
+		}
+
+		public String toString()
+		{
+			return super.toString() + "(" + when + "," + cooldownMillis + ")";
+		}
+	}
+
+	/**
+	  * Modify the configuration history when another algorithm says so,
+	  * but only once at least k epochs have been added since the last
+	  * modification. The other algorithm isn't even asked until then.
+	  */
+	static public class MinEpochs extends WhenAlgorithm
+	{
+		final private WhenAlgorithm when;
+		final private int k;
+		private long lastAdded;
+
+		public MinEpochs(final WhenAlgorithm when, final int k)
+		{
+			this.when = when;
+			this.k = k;
+		}
+
+		public synchronized boolean invoke(ServerContext sc)
+		{
+			final long added = sc.getEpochsAdded();
+			if (added - lastAdded < k || !when.invoke(sc))
+				return false;
+			lastAdded = added;
+			return true;
+		}
+
+		public String toString()
+		{
+			return super.toString() + "(" + when + "," + k + ")";
+		}
+	}
+
+	/**
+	  * Modify the configuration history when another algorithm says so,
+	  * but no more than some number of times in any window of time. The
+	  * other algorithm isn't even asked once the limit is reached.
+	  */
+	static public class RateLimit extends WhenAlgorithm
+	{
+		final private WhenAlgorithm when;
+		final private long windowMillis;
+		final private Clock clock;
+		// The times of the most recent modifications, as a ring.
+		final private long[] times;
+		private int count;
+		private int next;
+
+		public RateLimit(final WhenAlgorithm when, final int max,
+			final Duration window, final Clock clock)
+		{
+			this.when = when;
+			this.times = new long[max];
+			this.windowMillis = window.toMillis();
+			this.clock = clock;
+		}
+
+		public RateLimit(final WhenAlgorithm when, final int max,
+			final Duration window)
+		{
+			this(when, max, window, Clock.systemUTC());
+		}
+
+		public synchronized boolean invoke(ServerContext sc)
+		{
+			final long now = clock.millis();
+			// The oldest of the last max modifications must be out of the
+			// window for another one to fit in.
+			if (times.length == 0 || (count == times.length
+				&& now - times[next] < windowMillis))
+				return false;
+			if (!when.invoke(sc))
+				return false;
+			times[next] = now;
+			next = (next + 1) % times.length;
+			count = Math.min(count + 1, times.length);
+			return true;
+		}
+
+		public String toString()
+		{
+			return super.toString() + "(" + when + "," + times.length + ","
+				+ windowMillis + ")";
+		}
+	}
+
+	static private boolean isAllStateless(final WhenAlgorithm[] whens)
+	{
+		for (WhenAlgorithm when : whens)
+		{
+			if (!when.isStateless())
+				return false;
+		}
+		return true;
+	}
 }
@@ -0,0 +1,185 @@
+package com.anandnatrajan.plastichash.utils;
+
+import java.util.Arrays;
+
+/**
+ * A two-level plastic hash, which first picks a zone, and then a server
+ * within the zone. Each level is a plastic hash instance of its own, with
+ * its own when/what algorithms: one over the zones, and one per zone over
+ * its servers. Resizing a zone touches only the instance for that zone,
+ * so clients in other zones stay exactly where they are.
+ *
+ * Lookups return the zone and the server packed into one long, so that
+ * nothing is allocated per lookup. Use zoneOf and serverOf to unpack.
+ *
+ * @author Anand Natrajan
+ */
+public class ZonedPlasticHash
+{
+	private final PlasticHash zoneHash;
+	// The instance for each zone, replaced wholesale on every change.
+	private volatile PlasticHash[] zones = new PlasticHash[0];
+
+	/**
+	 * @param zoneHash the plastic hash instance for picking zones. Its
+	 * configuration history is managed by this instance from here on.
+	 */
+	public ZonedPlasticHash(final PlasticHash zoneHash)
+	{
+		this.zoneHash = zoneHash;
+	}
+
+	/**
+	 * Add a zone at the end, with its own plastic hash instance for
+	 * picking servers within the zone.
+	 *
+	 * @param serverHash the instance for the new zone, with at least one
+	 * epoch, so that there is somewhere to route to.
+	 * @return the current instance, just so we can chain calls.
+	 * @throws IllegalArgumentException if the instance has no servers.
+	 */
+	public synchronized ZonedPlasticHash addZone(final PlasticHash serverHash)
+	{
+		if (serverHash.getServerContext().getLastEpoch() <= 0)
+			throw new IllegalArgumentException("Zone has no servers");
+		// The zone has to be there before anybody can be routed to it.
+		final PlasticHash[] oldZones = zones;
+		final PlasticHash[] newZones = Arrays.copyOf(oldZones,
+			oldZones.length + 1);
+		newZones[oldZones.length] = serverHash;
+		zones = newZones;
+		try
+		{
+			zoneHash.addEpoch(newZones.length);
+		}
+		catch (RuntimeException re)
+		{
+			zones = oldZones;
+			throw re;
+		}
+		return this;
+	}
+
+	/**
+	 * Remove the last zone. The first zone is never removed, since orphans
+	 * are routed to it.
+	 *
+	 * @return the current instance, just so we can chain calls.
+	 * @throws IllegalStateException if only one zone is left.
+	 */
+	public synchronized ZonedPlasticHash removeZone()
+	{
+		if (zones.length <= 1)
+			throw new IllegalStateException("Can't remove the last zone");
+		// Nobody must be routed to the zone by the time it goes.
+		zoneHash.addEpoch(zones.length - 1);
+		zones = Arrays.copyOf(zones, zones.length - 1);
+		return this;
+	}
+
+	/**
+	 * Get the plastic hash instance for one zone, e.g., to resize the
+	 * zone by adding an epoch to it.
+	 *
+	 * @param zone the number of the zone, zero-based.
+	 * @return the instance for the zone.
+	 */
+	public PlasticHash getZone(final int zone)
+	{
+		return zones[zone];
+	}
+
+	/**
+	 * Get the count of zones.
+	 *
+	 * @return the number of zones.
+	 */
+	public int getNumZones()
+	{
+		return zones.length;
+	}
+
+	/**
+	 * Get the zone and server allocation for one request.
+	 *
+	 * @param id the id of the request, any long, with its sign bit ignored
+	 * for picking the zone.
+	 * @return the zone and server, packed.
+	 */
+	public long getServer(final long id)
+	{
+		// If a zone is being removed right now, the zone history may still
+		// point at it after it is gone. As with servers, such orphans go to
+		// zone 0, which will always be around. Zones are picked by residues,
+		// which only make sense for ids that aren't negative.
+		final int zone = zoneHash.getServer(id & Long.MAX_VALUE);
+		final PlasticHash[] zones = this.zones;
+		final int z = (zone < zones.length) ? zone : 0;
+		return pack(z, zones[z].getServer(innerId(id)));
+	}
+
+	/**
+	 * Get the zone and server allocation for one request, preferring the
+	 * zone of the caller. If the preferred zone exists, the request stays
+	 * in it, on the server it would get if it had been routed there in the
+	 * first place; otherwise, the request is routed as usual.
+	 *
+	 * @param id the id of the request.
+	 * @param localZone the zone of the caller, or -1 for no preference.
+	 * @return the zone and server, packed.
+	 */
+	public long getServer(final long id, final int localZone)
+	{
+		final PlasticHash[] zones = this.zones;
+		if (localZone < 0 || localZone >= zones.length
+			|| zones[localZone].getServerContext().getLastEpoch() <= 0)
+			return getServer(id);
+		return pack(localZone, zones[localZone].getServer(innerId(id)));
+	}
+
+	/**
+	 * Get the zone from a packed zone and server.
+	 *
+	 * @param packed the zone and server.
+	 * @return the number of the zone, zero-based.
+	 */
+	public static int zoneOf(final long packed)
+	{
+		return (int) (packed >>> 32);
+	}
+
+	/**
+	 * Get the server from a packed zone and server.
+	 *
+	 * @param packed the zone and server.
+	 * @return the number of the server within its zone, zero-based.
+	 */
+	public static int serverOf(final long packed)
+	{
+		return (int) packed;
+	}
+
+	private static long pack(final int zone, final int server)
+	{
+		return ((long) zone << 32) | (server & 0xFFFFFFFFL);
+	}
+
+	// All the ids in one zone share a residue modulo the zone count, so
+	// scatter them again before picking servers, or else zone and server
+	// counts with common factors would leave some servers idle.
+	private static long innerId(final long id)
+	{
+		return PlasticHash.mix(id) >>> 1;
+	}
+
+	/**
+	  * Human-friendly string representation, NOT to be used for any
+	  * manipulation of configuration history.
+	  *
+	  * @return string version of this instance.
+	  */
+	public String toString()
+	{
+		return "Zones=" + zoneHash + " Servers=" + Arrays.toString(zones);
+	}
+}